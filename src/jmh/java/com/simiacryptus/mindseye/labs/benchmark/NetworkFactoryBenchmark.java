@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.labs.benchmark;
+
+import com.simiacryptus.mindseye.labs.matrix.CaltechTests;
+import com.simiacryptus.mindseye.labs.matrix.MnistTests;
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.mindseye.layers.cudnn.PoolingLayer;
+import com.simiacryptus.mindseye.layers.cudnn.conv.ConvolutionLayer;
+import com.simiacryptus.mindseye.network.DAGNetwork;
+import com.simiacryptus.mindseye.test.RandomSeeds;
+import com.simiacryptus.notebook.NullNotebookOutput;
+import com.simiacryptus.ref.wrappers.RefString;
+import com.simiacryptus.util.Util;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Throughput of the network factories the labs train with, forward only and forward+backward, over
+ * a range of batch sizes and thread counts. The factories build cuDNN convolution and pooling
+ * layers; these are swapped for their CPU compatibility layers before measuring. The Aparapi
+ * kernels those layers use would still run on an OpenCL GPU when one is present, so the forked JVM
+ * pins Aparapi to its Java thread pool mode; the numbers describe CPU execution on any machine.
+ * <p>
+ * Each evaluation runs inside a ForkJoinPool with the given parallelism, which bounds the parallel
+ * streams the Java layers use over the batch. Scores are batches per second;
+ * multiply by the batch size for examples per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g", "-Dcom.aparapi.executionMode=JTP"})
+public class NetworkFactoryBenchmark {
+
+  @Param({"MnistTests.fwd_conv_1", "MnistTests.fwd_conv_1_n", "MnistTests.fwd_linear_1", "MnistTests.rev_conv_1",
+      "CaltechTests.fwd_conv_1"})
+  public String factory;
+  @Param({"1", "16", "128"})
+  public int batchSize;
+  @Param({"1", "4"})
+  public int threads;
+
+  @Nullable
+  private DAGNetwork network;
+  @Nullable
+  private TensorList input;
+  @Nullable
+  private TensorList gradient;
+  @Nullable
+  private ForkJoinPool pool;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    network = newNetwork(factory);
+    toCpuLayers(network);
+    input = random(inputDimensions(factory), batchSize, "NetworkFactoryBenchmark.input");
+    pool = new ForkJoinPool(threads);
+    final Result result = network.eval(new ConstantResult(input.addRef()));
+    final TensorList output = result.getData();
+    result.freeRef();
+    gradient = constant(output.getDimensions(), output.length(), 1.0);
+    output.freeRef();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    if (null != pool) pool.shutdown();
+    if (null != gradient) gradient.freeRef();
+    if (null != input) input.freeRef();
+    if (null != network) network.freeRef();
+    pool = null;
+    gradient = null;
+    input = null;
+    network = null;
+  }
+
+  @Benchmark
+  public void forward(@Nonnull final Blackhole blackhole) {
+    submit(() -> {
+      final Result result = network.eval(new ConstantResult(input.addRef()));
+      final TensorList output = result.getData();
+      result.freeRef();
+      blackhole.consume(output.length());
+      output.freeRef();
+      return null;
+    });
+  }
+
+  @Benchmark
+  public void forwardBackward(@Nonnull final Blackhole blackhole) {
+    submit(() -> {
+      final Result result = network.eval(new ConstantResult(input.addRef()));
+      @Nonnull final DeltaSet<UUID> buffer = new DeltaSet<>();
+      result.accumulate(buffer.addRef(), gradient.addRef());
+      result.freeRef();
+      blackhole.consume(buffer.getMap().size());
+      buffer.freeRef();
+      return null;
+    });
+  }
+
+  /**
+   * Replaces every cuDNN convolution and pooling layer with its CPU compatibility layer, and fails if
+   * any other cuDNN layer is left, so a GPU layer is never measured by accident.
+   */
+  public static void toCpuLayers(@Nonnull final DAGNetwork network) {
+    @Nonnull final List<String> remaining = new ArrayList<>();
+    network.visitNodes(node -> {
+      final Layer layer = node.getLayer();
+      if (layer instanceof ConvolutionLayer) {
+        node.setLayer(((ConvolutionLayer) layer).getCompatibilityLayer());
+      } else if (layer instanceof PoolingLayer) {
+        node.setLayer(((PoolingLayer) layer).getCompatibilityLayer());
+      } else if (null != layer && layer.getClass().getName().startsWith("com.simiacryptus.mindseye.layers.cudnn.")) {
+        remaining.add(layer.getClass().getSimpleName());
+      }
+      if (null != layer) layer.freeRef();
+    });
+    if (!remaining.isEmpty()) {
+      throw new IllegalStateException(RefString.format("No CPU implementation for %s", remaining));
+    }
+  }
+
+  @Nonnull
+  private static DAGNetwork newNetwork(@Nonnull final String factory) {
+    @Nonnull final NullNotebookOutput log = new NullNotebookOutput();
+    switch (factory) {
+      case "MnistTests.fwd_conv_1":
+        return MnistTests.fwd_conv_1.imageToVector(log, 10);
+      case "MnistTests.fwd_conv_1_n":
+        return MnistTests.fwd_conv_1_n.imageToVector(log, 10);
+      case "MnistTests.fwd_linear_1":
+        return MnistTests.fwd_linear_1.imageToVector(log, 10);
+      case "MnistTests.rev_conv_1":
+        return MnistTests.rev_conv_1.vectorToImage(log, 10);
+      case "CaltechTests.fwd_conv_1":
+        return CaltechTests.fwd_conv_1.imageToVector(log, 100);
+      default:
+        throw new IllegalArgumentException(factory);
+    }
+  }
+
+  @Nonnull
+  private static int[] inputDimensions(@Nonnull final String factory) {
+    switch (factory) {
+      case "MnistTests.rev_conv_1":
+        return new int[]{10};
+      case "CaltechTests.fwd_conv_1":
+        return new int[]{256, 256, 3};
+      default:
+        return new int[]{28, 28, 1};
+    }
+  }
+
+  @Nonnull
+  private static TensorList random(@Nonnull final int[] dims, final int length, @Nonnull final String key) {
+    final DoubleSupplier random = RandomSeeds.doubles(key);
+    @Nonnull final Tensor[] tensors = new Tensor[length];
+    for (int i = 0; i < length; i++) {
+      @Nonnull final double[] data = new double[Tensor.length(dims)];
+      for (int j = 0; j < data.length; j++) {
+        data[j] = random.getAsDouble();
+      }
+      tensors[i] = new Tensor(data, dims);
+    }
+    return new TensorArray(tensors);
+  }
+
+  @Nonnull
+  private static TensorList constant(@Nonnull final int[] dims, final int length, final double value) {
+    @Nonnull final Tensor[] tensors = new Tensor[length];
+    for (int i = 0; i < length; i++) {
+      @Nonnull final double[] data = new double[Tensor.length(dims)];
+      Arrays.fill(data, value);
+      tensors[i] = new Tensor(data, dims);
+    }
+    return new TensorArray(tensors);
+  }
+
+  private <T> T submit(@Nonnull final Supplier<T> fn) {
+    try {
+      return pool.submit(fn::get).get();
+    } catch (InterruptedException | ExecutionException e) {
+      throw Util.throwException(e);
+    }
+  }
+}
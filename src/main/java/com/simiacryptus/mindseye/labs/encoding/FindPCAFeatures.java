@@ -20,15 +20,13 @@
 package com.simiacryptus.mindseye.labs.encoding;
 
 import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.test.CovarianceAccumulator;
 import com.simiacryptus.mindseye.test.PCAUtil;
 import com.simiacryptus.notebook.NotebookOutput;
-import com.simiacryptus.ref.lang.RefUtil;
-import com.simiacryptus.ref.wrappers.RefIntStream;
 import com.simiacryptus.ref.wrappers.RefStream;
 import org.apache.commons.math3.linear.RealMatrix;
 
 import javax.annotation.Nonnull;
-import java.util.function.Supplier;
 
 abstract class FindPCAFeatures extends FindFeatureSpace {
 
@@ -42,31 +40,53 @@ abstract class FindPCAFeatures extends FindFeatureSpace {
   @Nonnull
   @Override
   public FindFeatureSpace invoke() {
-    double[] averages = findBandBias();
-    Tensor[] vectors = findFeatureSpace(log, () -> getFeatures().map(tensor -> {
-      return new Tensor[]{tensor[0], tensor[1].mapCoords(c -> tensor[1].get(c) - averages[c.getCoords()[2]])};
-    }), inputBands);
+    @Nonnull final int[][] dimensions = new int[1][];
+    @Nonnull final CovarianceAccumulator moments = getFeatures().parallel().collect(() -> new CovarianceAccumulator(),
+        (accumulator, tensor) -> {
+          if (null == dimensions[0]) dimensions[0] = tensor[1].getDimensions();
+          accumulator.accept(tensor[1].getData());
+        }, (a, b) -> a.combine(b));
+    final double[] averages = findBandBias(moments, dimensions[0]);
+    Tensor[] vectors = findFeatureSpace(log, moments, dimensions[0], averages, inputBands);
     return this;
   }
 
-  protected double[] findBandBias() {
-    final int outputBands = RefUtil.get(getFeatures().findAny())[1].getDimensions()[2];
-    return RefIntStream.range(0, outputBands).parallel().mapToDouble(b -> {
-      return getFeatures().mapToDouble(tensor -> {
-        return tensor[1].coordStream(false).filter(c -> c.getCoords()[2] == b).mapToDouble(c -> tensor[1].get(c))
-            .average().getAsDouble();
-      }).average().getAsDouble();
-    }).toArray();
+  /**
+   * Per-band feature means, used to center the features before the covariance is taken.
+   */
+  @Nonnull
+  protected double[] findBandBias(@Nonnull final CovarianceAccumulator moments, @Nonnull final int[] dimensions) {
+    return bandMeans(moments.getMeans(), dimensions);
+  }
+
+  @Nonnull
+  protected static double[] bandMeans(@Nonnull final double[] elementMeans, @Nonnull final int[] dimensions) {
+    final int bandSize = dimensions[0] * dimensions[1];
+    @Nonnull final double[] averages = new double[dimensions[2]];
+    for (int i = 0; i < elementMeans.length; i++) {
+      averages[i / bandSize] += elementMeans[i];
+    }
+    for (int b = 0; b < averages.length; b++) {
+      averages[b] /= bandSize;
+    }
+    return averages;
   }
 
-  protected Tensor[] findFeatureSpace(@Nonnull final NotebookOutput log,
-                                      @Nonnull final Supplier<RefStream<Tensor[]>> featureVectors, final int components) {
+  /**
+   * Principal components of the features centered on the given band bias, taken from the moments
+   * already accumulated so the features are not streamed again.
+   */
+  protected Tensor[] findFeatureSpace(@Nonnull final NotebookOutput log, @Nonnull final CovarianceAccumulator moments,
+                                      @Nonnull final int[] dimensions, @Nonnull final double[] bandBias,
+                                      final int components) {
+    final double[] offsets = new double[moments.getDimension()];
+    final int bandSize = dimensions[0] * dimensions[1];
+    for (int i = 0; i < offsets.length; i++) {
+      offsets[i] = bandBias[i / bandSize];
+    }
     return log.eval(() -> {
-      final int column = 1;
-      @Nonnull final Tensor[] prototype = RefUtil.get(featureVectors.get().findAny());
-      @Nonnull final int[] dimensions = prototype[column].getDimensions();
-      RealMatrix covariance = PCAUtil.getCovariance(() -> featureVectors.get().map(tensors -> tensors[column].getData()));
-      return PCAUtil.pcaFeatures(covariance, components, dimensions, -1);
+      RealMatrix covariance = moments.getCovariance(offsets);
+      return PCAUtil.pcaFeatures(covariance, components, dimensions, -1, PCAUtil.EigenSolver.Subspace);
     });
   }
 
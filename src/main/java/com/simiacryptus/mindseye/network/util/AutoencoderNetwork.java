@@ -38,16 +38,23 @@ import com.simiacryptus.ref.lang.RefUtil;
 import com.simiacryptus.ref.lang.ReferenceCountingBase;
 import com.simiacryptus.ref.wrappers.RefArrayList;
 import com.simiacryptus.ref.wrappers.RefCollections;
-import com.simiacryptus.ref.wrappers.RefCollectors;
+import com.simiacryptus.ref.wrappers.RefIntStream;
 import com.simiacryptus.ref.wrappers.RefList;
+import com.simiacryptus.util.Util;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 
 public class AutoencoderNetwork extends ReferenceCountingBase {
 
+  private static final Map<Integer, ForkJoinPool> encodePools = new ConcurrentHashMap<>();
+
   @Nonnull
   private final PipelineNetwork decoder;
   @Nonnull
@@ -93,7 +100,9 @@ public class AutoencoderNetwork extends ReferenceCountingBase {
     DropoutNoiseLayer dropoutNoiseLayer = new DropoutNoiseLayer();
     dropoutNoiseLayer.setValue(networkParameters.getDropout());
     encodedNoise = dropoutNoiseLayer.addRef();
-    decoderSynapse = encoderSynapse.getTranspose();
+    decoderSynapse = networkParameters.isTiedWeights()
+        ? new TiedTransposeLayer(encoderSynapse.addRef())
+        : encoderSynapse.getTranspose();
     decoderSynapsePlaceholder = new VariableLayer(decoderSynapse);
     BiasLayer biasLayer = new BiasLayer(outerSize);
     biasLayer.setWeights(i -> 0.0);
@@ -191,14 +200,44 @@ public class AutoencoderNetwork extends ReferenceCountingBase {
     return RefUtil.addRef(array);
   }
 
-  @Nullable
+  @Nonnull
   public TensorList encode(@Nonnull final TensorList data) {
-    Layer layer = encoder.addRef();
-    TensorList tensorList = layer
-        .eval(ConstantResult.batchResultArray(data.stream().map(x -> new Tensor[]{x}).toArray(i -> new Tensor[i][])))
-        .getData();
-    layer.freeRef();
-    return tensorList;
+    return encode(data, networkParameters.getEncodeBatchSize(), networkParameters.getEncodeThreads());
+  }
+
+  /**
+   * Encodes the data in fixed-size chunks on a pool of the given size, so that only the chunks in
+   * flight hold intermediate activations; results are written into a preallocated output array.
+   * Pools are shared between calls, one per thread count, capped at the number of processors.
+   */
+  @Nonnull
+  public TensorList encode(@Nonnull final TensorList data, final int chunkSize, final int threads) {
+    if (chunkSize < 1) throw new IllegalArgumentException("chunkSize: " + chunkSize);
+    final int length = data.length();
+    @Nonnull final Tensor[] output = new Tensor[length];
+    final int chunks = (length + chunkSize - 1) / chunkSize;
+    final int parallelism = Math.max(1, Math.min(threads, Runtime.getRuntime().availableProcessors()));
+    final ForkJoinPool pool = encodePools.computeIfAbsent(parallelism, ForkJoinPool::new);
+    try {
+      pool.submit(() -> RefIntStream.range(0, chunks).parallel().forEach(chunk -> {
+        final int from = chunk * chunkSize;
+        final int to = Math.min(length, from + chunkSize);
+        @Nonnull final Tensor[] inputs = new Tensor[to - from];
+        for (int i = from; i < to; i++) {
+          inputs[i - from] = data.get(i);
+        }
+        final Result result = encoder.eval(new ConstantResult(new TensorArray(inputs)));
+        final TensorList encoded = result.getData();
+        result.freeRef();
+        for (int i = from; i < to; i++) {
+          output[i] = encoded.get(i - from);
+        }
+        encoded.freeRef();
+      })).get();
+    } catch (InterruptedException | ExecutionException e) {
+      throw Util.throwException(e);
+    }
+    return new TensorArray(output);
   }
 
   public void runMode() {
@@ -264,10 +303,13 @@ public class AutoencoderNetwork extends ReferenceCountingBase {
     private final int[] innerSize;
     private final int[] outerSize;
     private double dropout = 0.0;
+    private int encodeBatchSize = 1000;
+    private int encodeThreads = Runtime.getRuntime().availableProcessors();
     private double initPeak = 0.001;
     private double initRadius = 0.5;
     private int initStiffness = 3;
     private double noise = 0.0;
+    private boolean tiedWeights = false;
 
     private Builder(final int[] outerSize, final int[] innerSize) {
       this.outerSize = outerSize;
@@ -283,6 +325,26 @@ public class AutoencoderNetwork extends ReferenceCountingBase {
       return this;
     }
 
+    public int getEncodeBatchSize() {
+      return encodeBatchSize;
+    }
+
+    public AutoencoderNetwork.Builder setEncodeBatchSize(final int encodeBatchSize) {
+      if (encodeBatchSize < 1) throw new IllegalArgumentException("encodeBatchSize: " + encodeBatchSize);
+      this.encodeBatchSize = encodeBatchSize;
+      return this;
+    }
+
+    public int getEncodeThreads() {
+      return encodeThreads;
+    }
+
+    public AutoencoderNetwork.Builder setEncodeThreads(final int encodeThreads) {
+      if (encodeThreads < 1) throw new IllegalArgumentException("encodeThreads: " + encodeThreads);
+      this.encodeThreads = encodeThreads;
+      return this;
+    }
+
     public double getInitPeak() {
       return initPeak;
     }
@@ -327,6 +389,15 @@ public class AutoencoderNetwork extends ReferenceCountingBase {
       return outerSize;
     }
 
+    public boolean isTiedWeights() {
+      return tiedWeights;
+    }
+
+    public AutoencoderNetwork.Builder setTiedWeights(final boolean tiedWeights) {
+      this.tiedWeights = tiedWeights;
+      return this;
+    }
+
     @Nonnull
     public AutoencoderNetwork build() {
       return new AutoencoderNetwork(AutoencoderNetwork.Builder.this);
@@ -337,13 +408,23 @@ public class AutoencoderNetwork extends ReferenceCountingBase {
 
     private final RefList<int[]> dimensions = new RefArrayList<>();
     private final RefList<AutoencoderNetwork> layers = new RefArrayList<>();
-    private final RefList<TensorList> representations = new RefArrayList<>();
+    private final RepresentationStore representations;
 
     public RecursiveBuilder(@Nonnull final TensorList data) {
-      representations.add(data);
+      this(data, new RepresentationStore());
+    }
+
+    public RecursiveBuilder(@Nonnull final TensorList data, @Nonnull final RepresentationStore representations) {
+      this.representations = representations;
+      representations.add(data.addRef());
       dimensions.add(data.get(0).getDimensions());
     }
 
+    @Nonnull
+    public RepresentationStore getRepresentations() {
+      return representations;
+    }
+
     @Nonnull
     public Layer getDecoder() {
       @Nonnull final PipelineNetwork network = new PipelineNetwork();
@@ -387,24 +468,26 @@ public class AutoencoderNetwork extends ReferenceCountingBase {
       @Nonnull final AutoencoderNetwork newLayer = configure(
           AutoencoderNetwork.newLayer(dimensions.get(dimensions.size() - 1), dims)).build();
 
-      final TensorList data = representations.get(representations.size() - 1);
+      final TensorList data = representations.latest();
       dimensions.add(dims);
       layers.add(newLayer);
 
       if (pretrainingSize > 0 && pretrainIterations > 0 && pretrainingMinutes > 0) {
-        @Nonnull final RefArrayList<Tensor> list = new RefArrayList<>(data.stream().collect(RefCollectors.toList()));
-        RefCollections.shuffle(list);
-        @Nonnull final Tensor[] pretrainingSet = list.subList(0, pretrainingSize).toArray(new Tensor[]{});
+        @Nonnull final Tensor[] pretrainingSet = TensorSampling.sample(data, pretrainingSize,
+            "AutoencoderNetwork.pretraining." + layers.size()).toArray(new Tensor[]{});
         configure(newLayer.train()).setMaxIterations(pretrainIterations).setTimeoutMinutes(pretrainingMinutes)
             .run(new TensorArray(pretrainingSet));
       }
-      newLayer.decoderSynapse = ((FullyConnectedLayer) newLayer.decoderSynapse).getTranspose();
-      newLayer.decoderSynapsePlaceholder.setInner(newLayer.decoderSynapse);
+      if (!newLayer.networkParameters.isTiedWeights()) {
+        newLayer.decoderSynapse = ((FullyConnectedLayer) newLayer.decoderSynapse).getTranspose();
+        newLayer.decoderSynapsePlaceholder.setInner(newLayer.decoderSynapse);
+      }
       this.addRef();
       configure(newLayer.train()).run(data);
 
       runMode();
       representations.add(newLayer.encode(data));
+      data.freeRef();
       return newLayer;
     }
 
@@ -417,6 +500,7 @@ public class AutoencoderNetwork extends ReferenceCountingBase {
     }
 
     public void tune() {
+      final TensorList input = representations.get(0);
       configure(new AutoencoderNetwork.TrainingParameters() {
         @Nonnull
         @Override
@@ -446,7 +530,13 @@ public class AutoencoderNetwork extends ReferenceCountingBase {
             }
           };
         }
-      }).run(representations.get(0));
+      }).run(input);
+      input.freeRef();
+    }
+
+    public @SuppressWarnings("unused")
+    void _free() {
+      representations.clear();
     }
 
     protected AutoencoderNetwork.Builder configure(final AutoencoderNetwork.Builder builder) {
@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.network.util;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.mindseye.network.DAGNetwork;
+import com.simiacryptus.mindseye.network.PipelineNetwork;
+import com.simiacryptus.ref.wrappers.RefArrayList;
+import com.simiacryptus.ref.wrappers.RefIntStream;
+import com.simiacryptus.ref.wrappers.RefList;
+import com.simiacryptus.util.Util;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Evaluates independent branches over a shared input on a fork-join pool and joins them at a
+ * combining layer, which receives the branch outputs in order. The backward pass is split the same
+ * way: the combiner's gradient is captured per branch, the branches back-propagate concurrently,
+ * and their input gradients are summed before being passed to the shared input once.
+ */
+@SuppressWarnings("serial")
+public class BranchParallelLayer extends LayerBase {
+
+  @Nonnull
+  private final List<Layer> branches;
+  @Nonnull
+  private final Layer combiner;
+  @Nonnull
+  private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+  /**
+   * Takes ownership of the combiner and branch references.
+   */
+  public BranchParallelLayer(@Nonnull final Layer combiner, @Nonnull final Layer... branches) {
+    this.combiner = combiner;
+    this.branches = new ArrayList<>(Arrays.asList(branches));
+  }
+
+  protected BranchParallelLayer(@Nonnull final JsonObject json, Map<CharSequence, byte[]> rs) {
+    super(json);
+    combiner = Layer.fromJson(json.getAsJsonObject("combiner"), rs);
+    branches = new ArrayList<>();
+    json.getAsJsonArray("branches").forEach(item -> branches.add(Layer.fromJson(item.getAsJsonObject(), rs)));
+  }
+
+  @Nonnull
+  public List<Layer> getBranches() {
+    return branches;
+  }
+
+  @Nonnull
+  public Layer getCombiner() {
+    return combiner;
+  }
+
+  @Nonnull
+  public BranchParallelLayer setPool(@Nonnull final ForkJoinPool pool) {
+    this.pool = pool;
+    return this;
+  }
+
+  @Nonnull
+  @SuppressWarnings("unused")
+  public static BranchParallelLayer fromJson(@Nonnull final JsonObject json, Map<CharSequence, byte[]> rs) {
+    return new BranchParallelLayer(json, rs);
+  }
+
+  /**
+   * Finds a layer by id among the branches and the combiner, including layers nested inside them.
+   */
+  @Nullable
+  public Layer findLayer(@Nonnull final UUID id) {
+    for (final Layer branch : branches) {
+      final Layer found = findLayer(branch, id);
+      if (null != found) return found;
+    }
+    return findLayer(combiner, id);
+  }
+
+  /**
+   * Finds a layer by id at or below {@code root}, descending into networks, branch-parallel layers
+   * and fused polynomial terms.
+   */
+  @Nullable
+  public static Layer findLayer(@Nonnull final Layer root, @Nonnull final UUID id) {
+    if (root.getId().equals(id)) return root;
+    if (root instanceof DAGNetwork) {
+      for (final Layer layer : ((DAGNetwork) root).getLayersById().values()) {
+        final Layer found = findLayer(layer, id);
+        if (null != found) return found;
+      }
+    } else if (root instanceof BranchParallelLayer) {
+      return ((BranchParallelLayer) root).findLayer(id);
+    } else if (root instanceof PolynomialTermsLayer) {
+      return ((PolynomialTermsLayer) root).findLayer(id);
+    }
+    return null;
+  }
+
+  /**
+   * Chains single-input layers into a pipeline usable as a branch. Takes ownership of the given
+   * references; null entries are skipped.
+   */
+  @Nonnull
+  public static Layer newPipeline(@Nonnull final Layer... layers) {
+    @Nonnull final PipelineNetwork pipeline = new PipelineNetwork(1);
+    for (final Layer layer : layers) {
+      if (null != layer) pipeline.add(layer).freeRef();
+    }
+    return pipeline;
+  }
+
+  @Nonnull
+  @Override
+  public Result eval(@Nonnull final Result... inObj) {
+    final Result input = inObj[0];
+    for (int i = 1; i < inObj.length; i++) {
+      inObj[i].freeRef();
+    }
+    final TensorList inputData = input.getData();
+    final int count = branches.size();
+    @Nonnull final List<TensorList> passback = Collections.synchronizedList(new ArrayList<>());
+    @Nonnull final TensorList[] branchDeltas = new TensorList[count];
+    @Nonnull final Result[] branchResults = submit(() -> RefIntStream.range(0, count).parallel().mapToObj(i -> {
+      final Result branchInput = new Result(inputData.addRef(), new Result.Accumulator() {
+        @Override
+        public void accept(@Nonnull final DeltaSet<UUID> buffer, @Nonnull final TensorList delta) {
+          passback.add(delta);
+          buffer.freeRef();
+        }
+      });
+      return branches.get(i).eval(branchInput);
+    }).toArray(i -> new Result[i]));
+    // The combiner takes ownership of these wrappers; the branch results stay with this layer's result
+    @Nonnull final Result[] captured = new Result[count];
+    for (int i = 0; i < count; i++) {
+      final int index = i;
+      captured[i] = new Result(branchResults[i].getData(), new Result.Accumulator() {
+        @Override
+        public void accept(@Nonnull final DeltaSet<UUID> buffer, @Nonnull final TensorList delta) {
+          final TensorList previous = branchDeltas[index];
+          branchDeltas[index] = delta;
+          if (null != previous) previous.freeRef();
+          buffer.freeRef();
+        }
+      });
+    }
+    final Result combined = combiner.eval(captured);
+    final TensorList output = combined.getData();
+    return new Result(output, new Result.Accumulator() {
+      @Override
+      public void accept(@Nonnull final DeltaSet<UUID> buffer, @Nonnull final TensorList delta) {
+        combined.accumulate(buffer.addRef(), delta);
+        submit(() -> {
+          RefIntStream.range(0, count).parallel().forEach(i -> {
+            final TensorList branchDelta = branchDeltas[i];
+            branchDeltas[i] = null;
+            if (null != branchDelta) branchResults[i].accumulate(buffer.addRef(), branchDelta);
+          });
+          return null;
+        });
+        if (input.isAlive()) {
+          final TensorList sum = sum(passback, inputData.length());
+          if (null != sum) input.accumulate(buffer.addRef(), sum);
+        } else {
+          for (final TensorList unused : passback) {
+            unused.freeRef();
+          }
+        }
+        passback.clear();
+        buffer.freeRef();
+      }
+
+      @Override
+      public void _free() {
+        for (final TensorList branchDelta : branchDeltas) {
+          if (null != branchDelta) branchDelta.freeRef();
+        }
+        for (final Result branchResult : branchResults) {
+          branchResult.freeRef();
+        }
+        combined.freeRef();
+        inputData.freeRef();
+        input.freeRef();
+        super._free();
+      }
+    });
+  }
+
+  @Nonnull
+  @Override
+  public JsonObject getJson(Map<CharSequence, byte[]> resources, DataSerializer dataSerializer) {
+    @Nonnull final JsonObject json = super.getJsonStub();
+    json.add("combiner", combiner.getJson(resources, dataSerializer));
+    @Nonnull final JsonArray array = new JsonArray();
+    for (final Layer branch : branches) {
+      array.add(branch.getJson(resources, dataSerializer));
+    }
+    json.add("branches", array);
+    return json;
+  }
+
+  @Nullable
+  @Override
+  public RefList<double[]> state() {
+    @Nonnull final RefList<double[]> state = new RefArrayList<>();
+    for (final Layer branch : branches) {
+      final RefList<double[]> branchState = branch.state();
+      if (null != branchState) state.addAll(branchState);
+    }
+    final RefList<double[]> combinerState = combiner.state();
+    if (null != combinerState) state.addAll(combinerState);
+    return state;
+  }
+
+  @Override
+  public void _free() {
+    for (final Layer branch : branches) {
+      branch.freeRef();
+    }
+    combiner.freeRef();
+    super._free();
+  }
+
+  private <T> T submit(@Nonnull final Callable<T> task) {
+    try {
+      return pool.submit(task).get();
+    } catch (InterruptedException | ExecutionException e) {
+      throw Util.throwException(e);
+    }
+  }
+
+  @Nullable
+  private static TensorList sum(@Nonnull final List<TensorList> deltas, final int length) {
+    @Nullable double[][] total = null;
+    @Nullable int[] dims = null;
+    for (final TensorList delta : deltas) {
+      if (null == total) total = new double[length][];
+      for (int b = 0; b < length; b++) {
+        final Tensor tensor = delta.get(b);
+        final double[] values = tensor.getData();
+        if (null == dims) dims = tensor.getDimensions();
+        if (null == total[b]) total[b] = new double[values.length];
+        for (int j = 0; j < values.length; j++) {
+          total[b][j] += values[j];
+        }
+        tensor.freeRef();
+      }
+      delta.freeRef();
+    }
+    if (null == total) return null;
+    @Nonnull final Tensor[] rows = new Tensor[length];
+    for (int b = 0; b < length; b++) {
+      rows[b] = new Tensor(total[b], dims);
+    }
+    return new TensorArray(rows);
+  }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.network.util;
+
+import com.simiacryptus.mindseye.eval.Trainable;
+import com.simiacryptus.mindseye.network.DAGNetwork;
+import com.simiacryptus.mindseye.opt.IterativeTrainer;
+import com.simiacryptus.mindseye.opt.Step;
+import com.simiacryptus.mindseye.opt.TrainingMonitor;
+import com.simiacryptus.mindseye.opt.orient.LBFGS;
+import com.simiacryptus.mindseye.opt.orient.OrientationStrategy;
+import com.simiacryptus.mindseye.test.TestUtil;
+import com.simiacryptus.mindseye.test.TrainingHistory;
+import com.simiacryptus.ref.wrappers.RefString;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Trains an evolving network in short rounds and grows it when training plateaus. After each round
+ * the recent fitness trend is measured as the decrease of log10(fitness) per second; once that
+ * rate falls below the threshold the network advances (nextPhase() for an EvolvingNetwork, a new
+ * term for a PolynomialNetwork) and training continues from the current weights with a fresh
+ * orientation, since the old curvature history no longer matches the parameter space.
+ */
+public class EvolutionScheduler {
+
+  @Nonnull
+  private final DAGNetwork network;
+  @Nonnull
+  private final Trainable trainable;
+  @Nonnull
+  private final TrainingHistory history = new TrainingHistory();
+  @Nonnull
+  private Supplier<OrientationStrategy<?>> orientation = () -> new LBFGS();
+  private double minImprovementRate = 1e-3;
+  private double windowSeconds = 30;
+  private int roundIterations = 10;
+  private int maxPhases = 4;
+  private double termPower = 2.0;
+  private double terminateThreshold = Double.NEGATIVE_INFINITY;
+  private int timeoutMinutes = 10;
+  private int phases = 0;
+
+  public EvolutionScheduler(@Nonnull final DAGNetwork network, @Nonnull final Trainable trainable) {
+    if (!(network instanceof EvolvingNetwork) && !(network instanceof PolynomialNetwork))
+      throw new IllegalArgumentException(network.getClass().getName());
+    this.network = network;
+    this.trainable = trainable;
+  }
+
+  @Nonnull
+  public TrainingHistory getHistory() {
+    return history;
+  }
+
+  public int getMaxPhases() {
+    return maxPhases;
+  }
+
+  @Nonnull
+  public EvolutionScheduler setMaxPhases(final int maxPhases) {
+    this.maxPhases = maxPhases;
+    return this;
+  }
+
+  public double getMinImprovementRate() {
+    return minImprovementRate;
+  }
+
+  @Nonnull
+  public EvolutionScheduler setMinImprovementRate(final double minImprovementRate) {
+    this.minImprovementRate = minImprovementRate;
+    return this;
+  }
+
+  @Nonnull
+  public EvolutionScheduler setOrientation(@Nonnull final Supplier<OrientationStrategy<?>> orientation) {
+    this.orientation = orientation;
+    return this;
+  }
+
+  public int getPhases() {
+    return phases;
+  }
+
+  public int getRoundIterations() {
+    return roundIterations;
+  }
+
+  @Nonnull
+  public EvolutionScheduler setRoundIterations(final int roundIterations) {
+    this.roundIterations = roundIterations;
+    return this;
+  }
+
+  public double getTermPower() {
+    return termPower;
+  }
+
+  @Nonnull
+  public EvolutionScheduler setTermPower(final double termPower) {
+    this.termPower = termPower;
+    return this;
+  }
+
+  public double getTerminateThreshold() {
+    return terminateThreshold;
+  }
+
+  @Nonnull
+  public EvolutionScheduler setTerminateThreshold(final double terminateThreshold) {
+    this.terminateThreshold = terminateThreshold;
+    return this;
+  }
+
+  public int getTimeoutMinutes() {
+    return timeoutMinutes;
+  }
+
+  @Nonnull
+  public EvolutionScheduler setTimeoutMinutes(final int timeoutMinutes) {
+    this.timeoutMinutes = timeoutMinutes;
+    return this;
+  }
+
+  public double getWindowSeconds() {
+    return windowSeconds;
+  }
+
+  @Nonnull
+  public EvolutionScheduler setWindowSeconds(final double windowSeconds) {
+    this.windowSeconds = windowSeconds;
+    return this;
+  }
+
+  public double run() {
+    return run(new TrainingMonitor());
+  }
+
+  public double run(@Nonnull final TrainingMonitor monitor) {
+    final long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(timeoutMinutes);
+    @Nonnull final TrainingMonitor recorder = TestUtil.getMonitor(history);
+    @Nonnull final TrainingMonitor combined = new TrainingMonitor() {
+      @Override
+      public void log(final String msg) {
+        monitor.log(msg);
+      }
+
+      @Override
+      public void onStepComplete(final Step currentPoint) {
+        recorder.onStepComplete(currentPoint);
+        monitor.onStepComplete(currentPoint);
+      }
+    };
+    OrientationStrategy<?> orient = orientation.get();
+    long phaseStart = System.currentTimeMillis();
+    double fitness = Double.POSITIVE_INFINITY;
+    long remaining;
+    while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+      @Nonnull final IterativeTrainer trainer = new IterativeTrainer(trainable.addRef());
+      // Each round's trainer releases its orientation, so it gets its own reference
+      trainer.setOrientation(orient.addRef());
+      trainer.setMonitor(combined);
+      trainer.setMaxIterations(roundIterations);
+      trainer.setTerminateThreshold(terminateThreshold);
+      trainer.setTimeout((int) Math.min(Integer.MAX_VALUE, remaining), TimeUnit.MILLISECONDS);
+      fitness = trainer.run();
+      trainer.freeRef();
+      if (fitness <= terminateThreshold) break;
+      if (System.currentTimeMillis() - phaseStart < windowSeconds * 1000) continue;
+      final double rate = improvementRate();
+      if (rate >= minImprovementRate) continue;
+      if (phases >= maxPhases) break;
+      advance();
+      monitor.log(RefString.format("Improvement rate %.3e/s below %.3e/s; advanced to phase %d", rate, minImprovementRate, phases));
+      orient.freeRef();
+      orient = orientation.get();
+      phaseStart = System.currentTimeMillis();
+    }
+    orient.freeRef();
+    return fitness;
+  }
+
+  /**
+   * Decrease of log10(fitness) per second over the trailing window of recorded steps.
+   */
+  public double improvementRate() {
+    final long[] times = history.getEpochTimes();
+    final double[] fitness = history.getFitness();
+    final int last = times.length - 1;
+    if (last < 1) return Double.POSITIVE_INFINITY;
+    int first = last;
+    while (first > 0 && times[last] - times[first - 1] <= windowSeconds * 1000) {
+      first--;
+    }
+    final double seconds = (times[last] - times[first]) / 1000.0;
+    if (seconds <= 0) return Double.POSITIVE_INFINITY;
+    return (Math.log10(fitness[first]) - Math.log10(fitness[last])) / seconds;
+  }
+
+  protected void advance() {
+    if (network instanceof PolynomialNetwork) {
+      ((PolynomialNetwork) network).addTerm(termPower);
+    } else {
+      ((EvolvingNetwork) network).nextPhase();
+    }
+    phases++;
+  }
+}
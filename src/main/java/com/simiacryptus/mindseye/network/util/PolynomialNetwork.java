@@ -31,18 +31,17 @@ import com.simiacryptus.mindseye.layers.java.NthPowerActivationLayer;
 import com.simiacryptus.mindseye.layers.java.ProductInputsLayer;
 import com.simiacryptus.mindseye.network.DAGNetwork;
 import com.simiacryptus.mindseye.network.DAGNode;
+import com.simiacryptus.mindseye.network.PipelineNetwork;
+import com.simiacryptus.mindseye.test.RandomSeeds;
 import com.simiacryptus.ref.lang.RefUtil;
 import com.simiacryptus.ref.lang.ReferenceCountingBase;
 import com.simiacryptus.ref.wrappers.RefArrayList;
 import com.simiacryptus.ref.wrappers.RefList;
-import com.simiacryptus.ref.wrappers.RefMap;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import java.util.Arrays;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.UUID;
+import java.util.*;
+import java.util.function.IntToDoubleFunction;
 
 @SuppressWarnings("serial")
 public class PolynomialNetwork extends DAGNetwork {
@@ -55,8 +54,19 @@ public class PolynomialNetwork extends DAGNetwork {
   protected Layer alphaBias = null;
   @Nonnull
   protected RefList<Correcton> corrections = new RefArrayList<>();
+  // The graph is built off to the side as one body layer and published by swapping it into the
+  // head node; a null body marks the graph stale. Readers only take the monitor to rebuild.
   @Nullable
-  protected DAGNode head;
+  protected volatile DAGNode head;
+  @Nullable
+  private volatile Layer body;
+  // The previous body, kept alive until the next rebuild so evaluations already running on it can finish
+  @Nullable
+  private Layer retiredBody;
+  protected boolean fused = false;
+  protected boolean branchParallel = false;
+  // Numbers the random stream of each synapse, so alpha and every term draw independent weights
+  private int synapseCount = 0;
 
   public PolynomialNetwork(final int[] inputDims, final int[] outputDims) {
     super(1);
@@ -67,44 +77,136 @@ public class PolynomialNetwork extends DAGNetwork {
   protected PolynomialNetwork(@Nonnull final JsonObject json, Map<CharSequence, byte[]> rs) {
     super(json, rs);
     head = getNodeById(UUID.fromString(json.get("head").getAsString()));
-    RefMap<UUID, Layer> layersById = getLayersById();
+    assert head != null;
+    body = head.getLayer();
     if (json.get("alpha") != null) {
-      alpha = layersById.get(UUID.fromString(json.get("alpha").getAsString()));
+      alpha = findLayer(UUID.fromString(json.get("alpha").getAsString()));
     }
     if (json.get("alphaBias") != null) {
-      alphaBias = layersById.get(UUID.fromString(json.get("alphaBias").getAsString()));
+      alphaBias = findLayer(UUID.fromString(json.get("alphaBias").getAsString()));
     }
     inputDims = PolynomialNetwork.toIntArray(json.getAsJsonArray("inputDims"));
     outputDims = PolynomialNetwork.toIntArray(json.getAsJsonArray("outputDims"));
+    fused = json.has("fused") && json.get("fused").getAsBoolean();
+    branchParallel = json.has("branchParallel") && json.get("branchParallel").getAsBoolean();
     json.getAsJsonArray("corrections").forEach(item -> {
       corrections.add(new Correcton(item.getAsJsonObject(), PolynomialNetwork.this));
     });
+    synapseCount = corrections.size() + (null == alpha ? 0 : 1);
   }
 
   @Override
-  public synchronized DAGNode getHead() {
-    if (null == head) {
+  public DAGNode getHead() {
+    DAGNode current = head;
+    if (null == current || null == body) {
       synchronized (this) {
-        if (null == head) {
-          if (null == alpha) {
-            alpha = newSynapse(1e-8);
-            alphaBias = newBias(inputDims, 0.0);
-          }
-          reset();
-          final DAGNode input = getInput(0);
-          @Nonnull final RefArrayList<DAGNode> terms = new RefArrayList<>();
-          assert alphaBias != null;
-          terms.add(add(alpha, add(alphaBias, input)));
-          for (@Nonnull final Correcton c : corrections) {
-            terms.add(c.add(input));
-          }
-          head = terms.size() == 1 ? terms.get(0) : add(newProductLayer(), terms.toArray(new DAGNode[]{}));
+        current = head;
+        if (null == current || null == body) {
+          current = publish(newBody());
         }
       }
     }
-    assert head != null;
-    head.addRef();
-    return head;
+    current.addRef();
+    return current;
+  }
+
+  /**
+   * Swaps a fully built body into the head node, creating the node on first use. Evaluations that
+   * already hold the previous body keep running against it; only the node's layer reference changes.
+   */
+  @Nonnull
+  private DAGNode publish(@Nonnull final Layer newBody) {
+    DAGNode current = head;
+    if (null == current) {
+      current = add(newBody.addRef(), getInput(0));
+      head = current;
+    } else {
+      final Layer previous = current.getLayer();
+      current.setLayer(newBody.addRef());
+      if (null != retiredBody) retiredBody.freeRef();
+      retiredBody = previous;
+    }
+    final Layer stale = body;
+    body = newBody;
+    if (null != stale) stale.freeRef();
+    return current;
+  }
+
+  /**
+   * Marks the graph stale; the next {@link #getHead()} builds and publishes a replacement.
+   */
+  private void invalidate() {
+    final Layer stale = body;
+    body = null;
+    if (null != stale) stale.freeRef();
+  }
+
+  @Nonnull
+  private Layer newBody() {
+    if (null == alpha) {
+      alpha = newSynapse(1e-8);
+      alphaBias = newBias(inputDims, 0.0);
+    }
+    assert alphaBias != null;
+    if (branchParallel && !corrections.isEmpty()) {
+      @Nonnull final List<Layer> branches = new ArrayList<>();
+      branches.add(BranchParallelLayer.newPipeline(alphaBias.addRef(), alpha.addRef()));
+      if (fused) {
+        branches.add(newTermsLayer());
+      } else {
+        for (@Nonnull final Correcton c : corrections) {
+          branches.add(c.toPipeline());
+        }
+      }
+      return new BranchParallelLayer(newProductLayer(), branches.toArray(new Layer[]{}));
+    }
+    @Nonnull final PipelineNetwork network = new PipelineNetwork(1);
+    @Nonnull final RefArrayList<DAGNode> terms = new RefArrayList<>();
+    terms.add(network.add(alpha.addRef(), network.add(alphaBias.addRef(), network.getInput(0))));
+    if (fused && !corrections.isEmpty()) {
+      terms.add(network.add(newTermsLayer(), network.getInput(0)));
+    } else {
+      for (@Nonnull final Correcton c : corrections) {
+        terms.add(c.add(network, network.getInput(0)));
+      }
+    }
+    if (terms.size() > 1) network.add(newProductLayer(), terms.toArray(new DAGNode[]{})).freeRef();
+    terms.freeRef();
+    return network;
+  }
+
+  public boolean isBranchParallel() {
+    return branchParallel;
+  }
+
+  /**
+   * Evaluates the alpha term and each correction term as independent branches of a
+   * BranchParallelLayer, so their forward and backward passes run concurrently.
+   */
+  @Nonnull
+  public synchronized PolynomialNetwork setBranchParallel(final boolean branchParallel) {
+    if (this.branchParallel != branchParallel) {
+      this.branchParallel = branchParallel;
+      invalidate();
+    }
+    return this;
+  }
+
+  public boolean isFused() {
+    return fused;
+  }
+
+  /**
+   * Evaluates all correction terms with a single PolynomialTermsLayer instead of a
+   * synapse/bias/power chain per term.
+   */
+  @Nonnull
+  public synchronized PolynomialNetwork setFused(final boolean fused) {
+    if (this.fused != fused) {
+      this.fused = fused;
+      invalidate();
+    }
+    return this;
   }
 
   @Nonnull
@@ -148,17 +250,17 @@ public class PolynomialNetwork extends DAGNetwork {
 
   @Override
   public void _free() {
-    assert head != null;
-    head.freeRef();
-    assert alpha != null;
-    alpha.freeRef();
-    assert alphaBias != null;
-    alphaBias.freeRef();
+    if (null != head) head.freeRef();
+    if (null != body) body.freeRef();
+    if (null != retiredBody) retiredBody.freeRef();
+    if (null != alpha) alpha.freeRef();
+    if (null != alphaBias) alphaBias.freeRef();
     super._free();
   }
 
-  public void addTerm(final double power) {
+  public synchronized void addTerm(final double power) {
     corrections.add(new Correcton(power, newBias(outputDims, 1.0), newSynapse(0.0), PolynomialNetwork.this));
+    invalidate();
   }
 
   @Override
@@ -183,9 +285,20 @@ public class PolynomialNetwork extends DAGNetwork {
       elements.add(c.getJson());
     }
     json.add("corrections", elements);
+    json.addProperty("fused", fused);
+    json.addProperty("branchParallel", branchParallel);
     return json;
   }
 
+  /**
+   * Looks up a layer by id, including layers nested in the graph body, a fused PolynomialTermsLayer
+   * or the branches of a BranchParallelLayer.
+   */
+  @Nullable
+  public Layer findLayer(@Nonnull final UUID id) {
+    return BranchParallelLayer.findLayer(this, id);
+  }
+
   @Nonnull
   public Layer newBias(final int[] dims, final double weight) {
     BiasLayer biasLayer = new BiasLayer(dims);
@@ -200,15 +313,30 @@ public class PolynomialNetwork extends DAGNetwork {
     return nthPowerActivationLayer.addRef();
   }
 
+  @Nonnull
+  public Layer newTermsLayer() {
+    @Nonnull final List<Layer> factors = new ArrayList<>();
+    @Nonnull final List<Layer> biases = new ArrayList<>();
+    @Nonnull final double[] powers = new double[corrections.size()];
+    for (int i = 0; i < corrections.size(); i++) {
+      final Correcton c = corrections.get(i);
+      factors.add(c.factor.addRef());
+      biases.add(c.bias.addRef());
+      powers[i] = c.power;
+    }
+    return new PolynomialTermsLayer(factors, biases, powers);
+  }
+
   @Nonnull
   public Layer newProductLayer() {
     return new ProductInputsLayer();
   }
 
   @Nonnull
-  public Layer newSynapse(final double weight) {
+  public synchronized Layer newSynapse(final double weight) {
     FullyConnectedLayer fullyConnectedLayer = new FullyConnectedLayer(inputDims, outputDims);
-    fullyConnectedLayer.set(() -> weight * (Math.random() - 1));
+    final IntToDoubleFunction random = RandomSeeds.uniform("PolynomialNetwork.synapse." + synapseCount++);
+    fullyConnectedLayer.set(i -> weight * (random.applyAsDouble(i) - 1));
     return fullyConnectedLayer.addRef();
   }
 
@@ -237,9 +365,8 @@ public class PolynomialNetwork extends DAGNetwork {
     public Correcton(@Nonnull final JsonObject json, PolynomialNetwork parent) {
       power = json.get("power").getAsDouble();
       this.parent = parent;
-      RefMap<UUID, Layer> layersById = this.parent.getLayersById();
-      bias = layersById.get(UUID.fromString(json.get("bias").getAsString()));
-      factor = layersById.get(UUID.fromString(json.get("factor").getAsString()));
+      bias = this.parent.findLayer(UUID.fromString(json.get("bias").getAsString()));
+      factor = this.parent.findLayer(UUID.fromString(json.get("factor").getAsString()));
     }
 
     @Nonnull
@@ -260,10 +387,17 @@ public class PolynomialNetwork extends DAGNetwork {
     }
 
     @Nullable
-    public DAGNode add(final DAGNode input) {
+    public DAGNode add(@Nonnull final DAGNetwork network, final DAGNode input) {
+      assert factor != null;
+      assert bias != null;
+      return network.add(parent.newNthPowerLayer(power), network.add(bias.addRef(), network.add(factor.addRef(), input)));
+    }
+
+    @Nonnull
+    public Layer toPipeline() {
       assert factor != null;
       assert bias != null;
-      return parent.add(parent.newNthPowerLayer(power), parent.add(bias, parent.add(factor, input)));
+      return BranchParallelLayer.newPipeline(factor.addRef(), bias.addRef(), parent.newNthPowerLayer(power));
     }
 
     public @SuppressWarnings("unused")
@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.network.util;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.mindseye.layers.java.FullyConnectedLayer;
+import com.simiacryptus.ref.wrappers.RefArrayList;
+import com.simiacryptus.ref.wrappers.RefIntStream;
+import com.simiacryptus.ref.wrappers.RefList;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Evaluates the product of polynomial correction terms, prod_t (W_t x + b_t)^p_t, in one pass.
+ * The term layers are kept as the owners of their weights: this layer reads their state buffers
+ * directly and accumulates gradients under their ids, so the fused and unfused graphs train the
+ * same parameters. The backward pass uses prefix/suffix products of the terms, which avoids
+ * dividing by terms that are zero. Powers follow NthPowerActivationLayer, which the unfused graph
+ * uses: a near-zero base or a non-finite result gives zero, for both the value and the derivative.
+ */
+@SuppressWarnings("serial")
+public class PolynomialTermsLayer extends LayerBase {
+
+  @Nonnull
+  private final List<Layer> factors;
+  @Nonnull
+  private final List<Layer> biases;
+  @Nonnull
+  private final double[] powers;
+  private final int[] inputDims;
+  private final int[] outputDims;
+
+  /**
+   * Takes ownership of the factor and bias layer references.
+   */
+  public PolynomialTermsLayer(@Nonnull final List<Layer> factors, @Nonnull final List<Layer> biases,
+                              @Nonnull final double[] powers) {
+    if (factors.isEmpty() || factors.size() != biases.size() || factors.size() != powers.length)
+      throw new IllegalArgumentException();
+    this.factors = new ArrayList<>(factors);
+    this.biases = new ArrayList<>(biases);
+    this.powers = powers.clone();
+    final FullyConnectedLayer first = (FullyConnectedLayer) factors.get(0);
+    this.inputDims = first.inputDims;
+    this.outputDims = first.outputDims;
+  }
+
+  protected PolynomialTermsLayer(@Nonnull final JsonObject json, Map<CharSequence, byte[]> rs) {
+    super(json);
+    final JsonArray terms = json.getAsJsonArray("terms");
+    factors = new ArrayList<>();
+    biases = new ArrayList<>();
+    powers = new double[terms.size()];
+    for (int t = 0; t < terms.size(); t++) {
+      final JsonObject term = terms.get(t).getAsJsonObject();
+      factors.add(Layer.fromJson(term.getAsJsonObject("factor"), rs));
+      biases.add(Layer.fromJson(term.getAsJsonObject("bias"), rs));
+      powers[t] = term.get("power").getAsDouble();
+    }
+    final FullyConnectedLayer first = (FullyConnectedLayer) factors.get(0);
+    this.inputDims = first.inputDims;
+    this.outputDims = first.outputDims;
+  }
+
+  @Nonnull
+  public List<Layer> getBiases() {
+    return biases;
+  }
+
+  @Nonnull
+  public List<Layer> getFactors() {
+    return factors;
+  }
+
+  @Nonnull
+  public double[] getPowers() {
+    return powers.clone();
+  }
+
+  @Nonnull
+  @SuppressWarnings("unused")
+  public static PolynomialTermsLayer fromJson(@Nonnull final JsonObject json, Map<CharSequence, byte[]> rs) {
+    return new PolynomialTermsLayer(json, rs);
+  }
+
+  /**
+   * Finds a nested term layer by id, for networks serialized with fused terms.
+   */
+  @Nullable
+  public Layer findLayer(@Nonnull final UUID id) {
+    for (int t = 0; t < powers.length; t++) {
+      if (factors.get(t).getId().equals(id)) return factors.get(t);
+      if (biases.get(t).getId().equals(id)) return biases.get(t);
+    }
+    return null;
+  }
+
+  @Nonnull
+  @Override
+  public Result eval(@Nonnull final Result... inObj) {
+    final Result input = inObj[0];
+    for (int i = 1; i < inObj.length; i++) {
+      inObj[i].freeRef();
+    }
+    final TensorList inputData = input.getData();
+    final int terms = powers.length;
+    final int inputSize = Tensor.length(inputDims);
+    final int outputSize = Tensor.length(outputDims);
+    @Nonnull final double[][] weights = new double[terms][];
+    @Nonnull final double[][] offsets = new double[terms][];
+    for (int t = 0; t < terms; t++) {
+      weights[t] = buffer(factors.get(t));
+      offsets[t] = buffer(biases.get(t));
+    }
+    final int length = inputData.length();
+    // Pre-activation values z_t = W_t x + b_t for every row, laid out [row][term * outputSize + o]
+    @Nonnull final double[][] linear = new double[length][];
+    @Nonnull final Tensor[] outputs = RefIntStream.range(0, length).parallel().mapToObj(b -> {
+      final Tensor row = inputData.get(b);
+      final double[] x = row.getData();
+      @Nonnull final double[] z = new double[terms * outputSize];
+      @Nonnull final double[] y = new double[outputSize];
+      Arrays.fill(y, 1.0);
+      for (int t = 0; t < terms; t++) {
+        final double[] w = weights[t];
+        final double[] bias = offsets[t];
+        final int base = t * outputSize;
+        for (int o = 0; o < outputSize; o++) {
+          final int offset = o * inputSize;
+          double sum = bias[o];
+          for (int i = 0; i < inputSize; i++) {
+            sum += x[i] * w[offset + i];
+          }
+          z[base + o] = sum;
+          y[o] *= power(sum, powers[t]);
+        }
+      }
+      row.freeRef();
+      linear[b] = z;
+      return new Tensor(y, outputDims);
+    }).toArray(i -> new Tensor[i]);
+    return new Result(new TensorArray(outputs), new Result.Accumulator() {
+      @Override
+      public void accept(@Nonnull final DeltaSet<UUID> buffer, @Nonnull final TensorList delta) {
+        @Nonnull final Tensor[] passback = new Tensor[length];
+        // Rows are split into fixed chunks, each summing its own gradients, then reduced in chunk order
+        final int chunks = Math.max(1, Math.min(length, 4 * Runtime.getRuntime().availableProcessors()));
+        @Nonnull final double[][][] chunkGradients = RefIntStream.range(0, chunks).parallel().mapToObj(chunk -> {
+          @Nonnull final double[][] gradients = new double[2 * terms][];
+          for (int t = 0; t < terms; t++) {
+            gradients[2 * t] = new double[weights[t].length];
+            gradients[2 * t + 1] = new double[outputSize];
+          }
+          @Nonnull final double[] prefix = new double[terms + 1];
+          @Nonnull final double[] suffix = new double[terms + 1];
+          @Nonnull final double[] dz = new double[terms];
+          final int to = (int) ((long) length * (chunk + 1) / chunks);
+          for (int b = (int) ((long) length * chunk / chunks); b < to; b++) {
+            final Tensor deltaRow = delta.get(b);
+            final Tensor inputRow = inputData.get(b);
+            final double[] dy = deltaRow.getData();
+            final double[] x = inputRow.getData();
+            final double[] z = linear[b];
+            @Nonnull final double[] dx = new double[inputSize];
+            for (int o = 0; o < outputSize; o++) {
+              prefix[0] = 1.0;
+              for (int t = 0; t < terms; t++) {
+                prefix[t + 1] = prefix[t] * power(z[t * outputSize + o], powers[t]);
+              }
+              suffix[terms] = 1.0;
+              for (int t = terms - 1; t >= 0; t--) {
+                suffix[t] = suffix[t + 1] * power(z[t * outputSize + o], powers[t]);
+              }
+              for (int t = 0; t < terms; t++) {
+                dz[t] = dy[o] * prefix[t] * suffix[t + 1] * powerDerivative(z[t * outputSize + o], powers[t]);
+              }
+              final int offset = o * inputSize;
+              for (int t = 0; t < terms; t++) {
+                final double g = dz[t];
+                if (0 == g || !Double.isFinite(g)) continue;
+                gradients[2 * t + 1][o] += g;
+                final double[] w = weights[t];
+                final double[] dw = gradients[2 * t];
+                for (int i = 0; i < inputSize; i++) {
+                  dw[offset + i] += g * x[i];
+                  dx[i] += g * w[offset + i];
+                }
+              }
+            }
+            passback[b] = new Tensor(dx, inputDims);
+            deltaRow.freeRef();
+            inputRow.freeRef();
+          }
+          return gradients;
+        }).toArray(i -> new double[i][][]);
+        for (int t = 0; t < terms; t++) {
+          accumulate(buffer, factors.get(t), weights[t], sum(chunkGradients, 2 * t));
+          accumulate(buffer, biases.get(t), offsets[t], sum(chunkGradients, 2 * t + 1));
+        }
+        if (input.isAlive()) {
+          input.accumulate(buffer.addRef(), new TensorArray(passback));
+        } else {
+          for (final Tensor tensor : passback) {
+            tensor.freeRef();
+          }
+        }
+        delta.freeRef();
+        buffer.freeRef();
+      }
+
+      @Override
+      public void _free() {
+        inputData.freeRef();
+        input.freeRef();
+        super._free();
+      }
+    });
+  }
+
+  @Nonnull
+  @Override
+  public JsonObject getJson(Map<CharSequence, byte[]> resources, DataSerializer dataSerializer) {
+    @Nonnull final JsonObject json = super.getJsonStub();
+    @Nonnull final JsonArray terms = new JsonArray();
+    for (int t = 0; t < powers.length; t++) {
+      @Nonnull final JsonObject term = new JsonObject();
+      term.add("factor", factors.get(t).getJson(resources, dataSerializer));
+      term.add("bias", biases.get(t).getJson(resources, dataSerializer));
+      term.addProperty("power", powers[t]);
+      terms.add(term);
+    }
+    json.add("terms", terms);
+    return json;
+  }
+
+  @Nullable
+  @Override
+  public RefList<double[]> state() {
+    @Nonnull final RefList<double[]> state = new RefArrayList<>();
+    for (int t = 0; t < powers.length; t++) {
+      state.add(buffer(factors.get(t)));
+      state.add(buffer(biases.get(t)));
+    }
+    return state;
+  }
+
+  @Override
+  public void _free() {
+    for (final Layer layer : factors) {
+      layer.freeRef();
+    }
+    for (final Layer layer : biases) {
+      layer.freeRef();
+    }
+    super._free();
+  }
+
+  static double power(final double x, final double power) {
+    if (Math.abs(x) < 1e-20) return 0.0;
+    final double f = Math.pow(x, power);
+    return Double.isFinite(f) ? f : 0.0;
+  }
+
+  static double powerDerivative(final double x, final double power) {
+    if (Math.abs(x) < 1e-20) return 0.0;
+    final double d = power * Math.pow(x, power - 1);
+    return Double.isFinite(d) ? d : 0.0;
+  }
+
+  private static void accumulate(@Nonnull final DeltaSet<UUID> buffer, @Nonnull final Layer layer,
+                                 @Nonnull final double[] target, @Nonnull final double[] gradient) {
+    if (layer.isFrozen()) return;
+    final Delta<UUID> delta = buffer.get(layer.getId(), target);
+    delta.addInPlace(gradient);
+    delta.freeRef();
+  }
+
+  @Nonnull
+  private static double[] sum(@Nonnull final double[][][] chunkGradients, final int index) {
+    @Nonnull final double[] total = chunkGradients[0][index];
+    for (int chunk = 1; chunk < chunkGradients.length; chunk++) {
+      final double[] gradient = chunkGradients[chunk][index];
+      for (int i = 0; i < total.length; i++) {
+        total[i] += gradient[i];
+      }
+    }
+    return total;
+  }
+
+  @Nonnull
+  private static double[] buffer(@Nonnull final Layer layer) {
+    final RefList<double[]> state = layer.state();
+    assert state != null;
+    final double[] data = state.get(0);
+    state.freeRef();
+    return data;
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.network.util;
+
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.lang.TensorArray;
+import com.simiacryptus.mindseye.lang.TensorList;
+import com.simiacryptus.mindseye.test.MappedTensorStore;
+import com.simiacryptus.util.Util;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds the per-level representations of a layer stack. Level 0 is the caller's data and is only
+ * referenced, never spilled, since the caller keeps it alive anyway. Of the derived levels only the
+ * newest stays on the heap; when a level is added, the previous one is written to a memory-mapped
+ * tensor file and released, and is paged back in when requested.
+ */
+public class RepresentationStore {
+
+  @Nonnull
+  private final File directory;
+  @Nonnull
+  private final List<File> spilled = new ArrayList<>();
+  @Nullable
+  private TensorList base = null;
+  @Nullable
+  private TensorList resident = null;
+
+  public RepresentationStore() {
+    this(createTempDirectory());
+  }
+
+  public RepresentationStore(@Nonnull final File directory) {
+    this.directory = directory;
+  }
+
+  public int size() {
+    return (null == base ? 0 : 1) + spilled.size() + (null == resident ? 0 : 1);
+  }
+
+  /**
+   * Adds a new level, taking ownership of the reference. The previous newest level is spilled to
+   * disk unless it is level 0.
+   */
+  public synchronized void add(@Nonnull final TensorList level) {
+    if (null == base) {
+      base = level;
+      return;
+    }
+    if (null != resident) {
+      spilled.add(spill(resident, spilled.size() + 1));
+      resident.freeRef();
+    }
+    resident = level;
+  }
+
+  /**
+   * Returns a new reference to the given level; spilled levels are read back from their mapped file.
+   */
+  @Nonnull
+  public synchronized TensorList get(final int level) {
+    if (level < 0 || level >= size()) throw new IndexOutOfBoundsException(Integer.toString(level));
+    if (level == 0) {
+      assert base != null;
+      return base.addRef();
+    }
+    if (level == spilled.size() + 1) {
+      assert resident != null;
+      return resident.addRef();
+    }
+    return new TensorArray(MappedTensorStore.open(spilled.get(level - 1)).stream().toArray(i -> new Tensor[i]));
+  }
+
+  @Nonnull
+  public TensorList latest() {
+    return get(size() - 1);
+  }
+
+  /**
+   * Releases level 0 and the resident level and deletes the spill files.
+   */
+  public synchronized void clear() {
+    if (null != base) {
+      base.freeRef();
+      base = null;
+    }
+    if (null != resident) {
+      resident.freeRef();
+      resident = null;
+    }
+    for (final File file : spilled) {
+      file.delete();
+    }
+    spilled.clear();
+  }
+
+  @Nonnull
+  private File spill(@Nonnull final TensorList data, final int level) {
+    directory.mkdirs();
+    @Nonnull final File file = new File(directory, "level_" + level + ".tensors");
+    file.deleteOnExit();
+    final Tensor first = data.get(0);
+    @Nonnull final MappedTensorStore.Writer writer = MappedTensorStore.write(file, first.getDimensions());
+    first.freeRef();
+    try {
+      for (int i = 0; i < data.length(); i++) {
+        final Tensor tensor = data.get(i);
+        writer.add(tensor.getData());
+        tensor.freeRef();
+      }
+    } finally {
+      try {
+        writer.close();
+      } catch (IOException e) {
+        throw Util.throwException(e);
+      }
+    }
+    return file;
+  }
+
+  @Nonnull
+  private static File createTempDirectory() {
+    try {
+      final File directory = Files.createTempDirectory("representations").toFile();
+      directory.deleteOnExit();
+      return directory;
+    } catch (IOException e) {
+      throw Util.throwException(e);
+    }
+  }
+}
@@ -20,22 +20,22 @@
 package com.simiacryptus.mindseye.network.util;
 
 import com.google.gson.JsonObject;
-import com.simiacryptus.mindseye.lang.DataSerializer;
-import com.simiacryptus.mindseye.lang.Layer;
+import com.simiacryptus.mindseye.lang.*;
 import com.simiacryptus.mindseye.layers.java.*;
 import com.simiacryptus.mindseye.network.DAGNetwork;
 import com.simiacryptus.mindseye.network.DAGNode;
+import com.simiacryptus.mindseye.network.PipelineNetwork;
+import com.simiacryptus.mindseye.test.RandomSeeds;
 import com.simiacryptus.ref.lang.RefUtil;
 import com.simiacryptus.ref.wrappers.RefList;
-import com.simiacryptus.ref.wrappers.RefMap;
 import com.simiacryptus.ref.wrappers.RefSystem;
-import com.simiacryptus.util.FastRandom;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.UUID;
+import java.util.function.IntToDoubleFunction;
 
 @SuppressWarnings("serial")
 public class SigmoidTreeNetwork extends DAGNetwork implements EvolvingNetwork {
@@ -54,38 +54,50 @@ public class SigmoidTreeNetwork extends DAGNetwork implements EvolvingNetwork {
   private Layer gate = null;
   @Nullable
   private Layer gateBias = null;
+  // The graph is built off to the side as one body layer and published by swapping it into the
+  // head node; a null body marks the graph stale. Readers only take the monitor to rebuild.
   @Nullable
-  private DAGNode head = null;
+  private volatile DAGNode head = null;
+  @Nullable
+  private volatile Layer body = null;
+  // The previous body, kept alive until the next rebuild so evaluations already running on it can finish
+  @Nullable
+  private Layer retiredBody = null;
   @Nullable
   private NodeMode mode = null;
   private boolean skipChildStage = true;
   private boolean skipFuzzy = false;
+  private double gateEpsilon = 1e-3;
+  private boolean branchParallel = false;
 
   protected SigmoidTreeNetwork(@Nonnull final JsonObject json, Map<CharSequence, byte[]> rs) {
     super(json, rs);
     head = getNodeById(UUID.fromString(json.get("head").getAsString()));
-    RefMap<UUID, Layer> layersById = getLayersById();
+    assert head != null;
+    body = head.getLayer();
     if (json.get("alpha") != null) {
-      alpha = layersById.get(UUID.fromString(json.get("alpha").getAsString()));
+      alpha = findLayer(UUID.fromString(json.get("alpha").getAsString()));
     }
     if (json.get("alphaBias") != null) {
-      alphaBias = layersById.get(UUID.fromString(json.get("alphaBias").getAsString()));
+      alphaBias = findLayer(UUID.fromString(json.get("alphaBias").getAsString()));
     }
     if (json.get("beta") != null) {
-      beta = layersById.get(UUID.fromString(json.get("beta").getAsString()));
+      beta = findLayer(UUID.fromString(json.get("beta").getAsString()));
     }
     if (json.get("betaBias") != null) {
-      betaBias = layersById.get(UUID.fromString(json.get("betaBias").getAsString()));
+      betaBias = findLayer(UUID.fromString(json.get("betaBias").getAsString()));
     }
     if (json.get("gate") != null) {
-      gate = layersById.get(UUID.fromString(json.get("gate").getAsString()));
+      gate = findLayer(UUID.fromString(json.get("gate").getAsString()));
     }
     if (json.get("gateBias") != null) {
-      gate = layersById.get(UUID.fromString(json.get("gateBias").getAsString()));
+      gateBias = findLayer(UUID.fromString(json.get("gateBias").getAsString()));
     }
     setSkipChildStage(
         json.get("skipChildStage") != null ? json.get("skipChildStage").getAsBoolean() : skipChildStage());
     setSkipFuzzy(json.get("skipFuzzy") != null ? json.get("skipFuzzy").getAsBoolean() : isSkipFuzzy());
+    setGateEpsilon(json.get("gateEpsilon") != null ? json.get("gateEpsilon").getAsDouble() : getGateEpsilon());
+    branchParallel = json.get("branchParallel") != null && json.get("branchParallel").getAsBoolean();
     mode = NodeMode.valueOf(json.get("mode").getAsString());
   }
 
@@ -98,100 +110,191 @@ public class SigmoidTreeNetwork extends DAGNetwork implements EvolvingNetwork {
 
   @Nullable
   @Override
-  public synchronized DAGNode getHead() {
-    if (null == head) {
+  public DAGNode getHead() {
+    DAGNode current = head;
+    if (null == current || null == body) {
       synchronized (this) {
-        if (null == head) {
-          reset();
-          final DAGNode input = getInput(0);
-          assert getMode() != null;
-          switch (getMode()) {
-            case Linear:
-              assert alphaBias != null;
-              assert alpha != null;
-              alphaBias.setFrozen(false);
-              alpha.setFrozen(false);
-              head = add(alpha.addRef(), add(alphaBias.addRef(), input));
-              break;
-            case Fuzzy: {
-              assert gate != null;
-              gateBias.setFrozen(false);
-              gate.setFrozen(false);
-              final DAGNode gateNode = add(gate.addRef(),
-                  null != gateBias ? add(gateBias.addRef(), input) : input);
-              assert alphaBias != null;
-              assert alpha != null;
-              alphaBias.setFrozen(false);
-              alpha.setFrozen(false);
-              LinearActivationLayer linearActivationLayer = new LinearActivationLayer();
-              linearActivationLayer.setScale(2);
-              SigmoidActivationLayer sigmoidActivationLayer = new SigmoidActivationLayer();
-              sigmoidActivationLayer.setBalanced(false);
-              Layer layer = linearActivationLayer.addRef();
-              layer.freeze();
-              head = add(new ProductInputsLayer(), add(alpha.addRef(), add(alphaBias.addRef(), input)),
-                  add(layer.addRef(),
-                      add(sigmoidActivationLayer.addRef(), gateNode)));
-              break;
-            }
-            case Bilinear: {
-              assert gate != null;
-              gateBias.setFrozen(false);
-              gate.setFrozen(false);
-              final DAGNode gateNode = add(gate.addRef(),
-                  null != gateBias ? add(gateBias.addRef(), input) : input);
-              assert betaBias != null;
-              assert beta != null;
-              assert alphaBias != null;
-              assert alpha != null;
-              betaBias.setFrozen(false);
-              beta.setFrozen(false);
-              alphaBias.setFrozen(false);
-              alpha.setFrozen(false);
-              LinearActivationLayer linearActivationLayer = new LinearActivationLayer();
-              linearActivationLayer.setScale(-1);
-              SigmoidActivationLayer sigmoidActivationLayer = new SigmoidActivationLayer();
-              sigmoidActivationLayer.setBalanced(false);
-              SigmoidActivationLayer sigmoidActivationLayer1 = new SigmoidActivationLayer();
-              sigmoidActivationLayer1.setBalanced(false);
-              Layer layer = linearActivationLayer.addRef();
-              layer.freeze();
-              head = add(new SumInputsLayer(),
-                  add(new ProductInputsLayer(), add(alpha.addRef(), add(alphaBias.addRef(), input)),
-                      add(sigmoidActivationLayer1.addRef(), gateNode)),
-                  add(new ProductInputsLayer(), add(beta.addRef(), add(betaBias.addRef(), input)),
-                      add(sigmoidActivationLayer.addRef(),
-                          add(layer.addRef(), gateNode))));
-              break;
-            }
-            case Final:
-              assert gate != null;
-              gateBias.setFrozen(false);
-              gate.setFrozen(false);
-              final DAGNode gateNode = add(gate.addRef(),
-                  null != gateBias ? add(gateBias.addRef(), input) : input);
-              assert beta != null;
-              assert alpha != null;
-              LinearActivationLayer linearActivationLayer = new LinearActivationLayer();
-              linearActivationLayer.setScale(-1);
-              SigmoidActivationLayer sigmoidActivationLayer = new SigmoidActivationLayer();
-              sigmoidActivationLayer.setBalanced(false);
-              SigmoidActivationLayer sigmoidActivationLayer1 = new SigmoidActivationLayer();
-              sigmoidActivationLayer1.setBalanced(false);
-              Layer layer = linearActivationLayer.addRef();
-              layer.freeze();
-              head = add(new SumInputsLayer(),
-                  add(new ProductInputsLayer(), add(alpha, input),
-                      add(sigmoidActivationLayer1.addRef(), gateNode)),
-                  add(new ProductInputsLayer(), add(beta, input), add(sigmoidActivationLayer.addRef(),
-                      add(layer.addRef(), gateNode))));
-              break;
-          }
+        current = head;
+        if (null == current || null == body) {
+          current = publish(newBody());
+        }
+      }
+    }
+    current.addRef();
+    return current;
+  }
+
+  /**
+   * Swaps a fully built body into the head node, creating the node on first use. Evaluations that
+   * already hold the previous body keep running against it; only the node's layer reference changes.
+   */
+  @Nonnull
+  private DAGNode publish(@Nonnull final Layer newBody) {
+    DAGNode current = head;
+    if (null == current) {
+      current = add(newBody.addRef(), getInput(0));
+      head = current;
+    } else {
+      final Layer previous = current.getLayer();
+      current.setLayer(newBody.addRef());
+      if (null != retiredBody) retiredBody.freeRef();
+      retiredBody = previous;
+    }
+    final Layer stale = body;
+    body = newBody;
+    if (null != stale) stale.freeRef();
+    return current;
+  }
+
+  /**
+   * Marks the graph stale; the next {@link #getHead()} builds and publishes a replacement.
+   */
+  private void invalidate() {
+    final Layer stale = body;
+    body = null;
+    if (null != stale) stale.freeRef();
+  }
+
+  @Nonnull
+  private Layer newBody() {
+    assert getMode() != null;
+    @Nonnull final PipelineNetwork network = new PipelineNetwork(1);
+    switch (getMode()) {
+      case Linear:
+        assert alphaBias != null;
+        assert alpha != null;
+        alphaBias.setFrozen(false);
+        alpha.setFrozen(false);
+        network.add(alpha.addRef(), network.add(alphaBias.addRef(), network.getInput(0))).freeRef();
+        break;
+      case Fuzzy: {
+        assert gate != null;
+        gateBias.setFrozen(false);
+        gate.setFrozen(false);
+        final DAGNode gateNode = network.add(gate.addRef(),
+            null != gateBias ? network.add(gateBias.addRef(), network.getInput(0)) : network.getInput(0));
+        assert alphaBias != null;
+        assert alpha != null;
+        alphaBias.setFrozen(false);
+        alpha.setFrozen(false);
+        LinearActivationLayer linearActivationLayer = new LinearActivationLayer();
+        linearActivationLayer.setScale(2);
+        SigmoidActivationLayer sigmoidActivationLayer = new SigmoidActivationLayer();
+        sigmoidActivationLayer.setBalanced(false);
+        Layer layer = linearActivationLayer.addRef();
+        layer.freeze();
+        network.add(new ProductInputsLayer(),
+            network.add(alpha.addRef(), network.add(alphaBias.addRef(), network.getInput(0))),
+            network.add(layer.addRef(), network.add(sigmoidActivationLayer.addRef(), gateNode))).freeRef();
+        break;
+      }
+      case Bilinear: {
+        assert gate != null;
+        gateBias.setFrozen(false);
+        gate.setFrozen(false);
+        assert betaBias != null;
+        assert beta != null;
+        assert alphaBias != null;
+        assert alpha != null;
+        betaBias.setFrozen(false);
+        beta.setFrozen(false);
+        alphaBias.setFrozen(false);
+        alpha.setFrozen(false);
+        if (branchParallel) {
+          network.freeRef();
+          return new BranchParallelLayer(newGateCombiner(),
+              BranchParallelLayer.newPipeline(alphaBias.addRef(), alpha.addRef()),
+              BranchParallelLayer.newPipeline(betaBias.addRef(), beta.addRef()),
+              BranchParallelLayer.newPipeline(null != gateBias ? gateBias.addRef() : null, gate.addRef()));
+        }
+        final DAGNode gateNode = network.add(gate.addRef(),
+            null != gateBias ? network.add(gateBias.addRef(), network.getInput(0)) : network.getInput(0));
+        LinearActivationLayer linearActivationLayer = new LinearActivationLayer();
+        linearActivationLayer.setScale(-1);
+        SigmoidActivationLayer sigmoidActivationLayer = new SigmoidActivationLayer();
+        sigmoidActivationLayer.setBalanced(false);
+        SigmoidActivationLayer sigmoidActivationLayer1 = new SigmoidActivationLayer();
+        sigmoidActivationLayer1.setBalanced(false);
+        Layer layer = linearActivationLayer.addRef();
+        layer.freeze();
+        network.add(new SumInputsLayer(),
+            network.add(new ProductInputsLayer(),
+                network.add(alpha.addRef(), network.add(alphaBias.addRef(), network.getInput(0))),
+                network.add(sigmoidActivationLayer1.addRef(), gateNode.addRef())),
+            network.add(new ProductInputsLayer(),
+                network.add(beta.addRef(), network.add(betaBias.addRef(), network.getInput(0))),
+                network.add(sigmoidActivationLayer.addRef(), network.add(layer.addRef(), gateNode)))).freeRef();
+        break;
+      }
+      case Final: {
+        assert gate != null;
+        gateBias.setFrozen(false);
+        gate.setFrozen(false);
+        assert beta != null;
+        assert alpha != null;
+        if (branchParallel) {
+          network.freeRef();
+          return new BranchParallelLayer(newGateCombiner(), alpha.addRef(), beta.addRef(),
+              BranchParallelLayer.newPipeline(null != gateBias ? gateBias.addRef() : null, gate.addRef()));
         }
+        final DAGNode gateNode = network.add(gate.addRef(),
+            null != gateBias ? network.add(gateBias.addRef(), network.getInput(0)) : network.getInput(0));
+        LinearActivationLayer linearActivationLayer = new LinearActivationLayer();
+        linearActivationLayer.setScale(-1);
+        SigmoidActivationLayer sigmoidActivationLayer = new SigmoidActivationLayer();
+        sigmoidActivationLayer.setBalanced(false);
+        SigmoidActivationLayer sigmoidActivationLayer1 = new SigmoidActivationLayer();
+        sigmoidActivationLayer1.setBalanced(false);
+        Layer layer = linearActivationLayer.addRef();
+        layer.freeze();
+        network.add(new SumInputsLayer(),
+            network.add(new ProductInputsLayer(), network.add(alpha.addRef(), network.getInput(0)),
+                network.add(sigmoidActivationLayer1.addRef(), gateNode.addRef())),
+            network.add(new ProductInputsLayer(), network.add(beta.addRef(), network.getInput(0)),
+                network.add(sigmoidActivationLayer.addRef(), network.add(layer.addRef(), gateNode)))).freeRef();
+        break;
       }
     }
-    head.addRef();
-    return head;
+    return network;
+  }
+
+  public boolean isBranchParallel() {
+    return branchParallel;
+  }
+
+  /**
+   * In Bilinear and Final mode, evaluates the alpha, beta and gate paths as concurrent branches of a
+   * BranchParallelLayer instead of as nodes of this network's own graph.
+   */
+  @Nonnull
+  public synchronized SigmoidTreeNetwork setBranchParallel(final boolean branchParallel) {
+    if (this.branchParallel != branchParallel) {
+      this.branchParallel = branchParallel;
+      invalidate();
+    }
+    return this;
+  }
+
+  public double getGateEpsilon() {
+    return gateEpsilon;
+  }
+
+  /**
+   * Gate saturation threshold for {@link #infer(TensorList)}: a branch is skipped for rows whose gate
+   * weight on it is at most this value, which bounds the error of each skipped row by epsilon times
+   * that branch's output. The default, 1e-3, skips a branch once the gate logit passes about 6.9;
+   * zero only skips gates that saturate to exactly 0 or 1 in double precision.
+   */
+  @Nonnull
+  public SigmoidTreeNetwork setGateEpsilon(final double gateEpsilon) {
+    if (gateEpsilon < 0 || gateEpsilon >= 0.5) throw new IllegalArgumentException(Double.toString(gateEpsilon));
+    this.gateEpsilon = gateEpsilon;
+    return this;
+  }
+
+  @Nullable
+  public Layer getGate() {
+    return null == gate ? null : gate.addRef();
   }
 
   @Nullable
@@ -236,19 +339,137 @@ public class SigmoidTreeNetwork extends DAGNetwork implements EvolvingNetwork {
   }
 
   public void _free() {
-    assert head != null;
-    head.freeRef();
+    if (null != head) head.freeRef();
+    if (null != body) body.freeRef();
+    if (null != retiredBody) retiredBody.freeRef();
+    if (null != alpha) alpha.freeRef();
+    if (null != alphaBias) alphaBias.freeRef();
+    if (null != beta) beta.freeRef();
+    if (null != betaBias) betaBias.freeRef();
+    if (null != gate) gate.freeRef();
+    if (null != gateBias) gateBias.freeRef();
+    super._free();
+  }
+
+  /**
+   * Inference-only evaluation with conditional computation. In Bilinear and Final mode the batch is
+   * partitioned by gate value, and each branch (recursively, for child trees) is evaluated only for
+   * the rows whose gate weight on it exceeds the gate epsilon; the skipped contribution is bounded
+   * by epsilon times the skipped branch output. Other modes, and multi-output gates, fall back to
+   * full evaluation.
+   */
+  @Nonnull
+  public TensorList infer(@Nonnull final TensorList data) {
+    final NodeMode mode = getMode();
+    if ((mode != NodeMode.Bilinear && mode != NodeMode.Final) || multigate) {
+      return evalData(this, data);
+    }
+    assert gate != null;
     assert alpha != null;
-    alpha.freeRef();
-    assert alphaBias != null;
-    alphaBias.freeRef();
     assert beta != null;
-    beta.freeRef();
-    assert betaBias != null;
-    betaBias.freeRef();
-    assert gate != null;
-    gate.freeRef();
-    super._free();
+    final TensorList gateInput = null != gateBias ? evalData(gateBias, data) : data.addRef();
+    final TensorList gateOutput = evalData(gate, gateInput);
+    gateInput.freeRef();
+    final int length = data.length();
+    @Nonnull final double[] weights = new double[length];
+    int alphaCount = 0;
+    int betaCount = 0;
+    for (int i = 0; i < length; i++) {
+      final Tensor tensor = gateOutput.get(i);
+      weights[i] = 1.0 / (1.0 + Math.exp(-tensor.get(0)));
+      tensor.freeRef();
+      if (weights[i] > gateEpsilon) alphaCount++;
+      if (1.0 - weights[i] > gateEpsilon) betaCount++;
+    }
+    gateOutput.freeRef();
+    @Nonnull final int[] alphaRows = new int[alphaCount];
+    @Nonnull final int[] betaRows = new int[betaCount];
+    alphaCount = 0;
+    betaCount = 0;
+    for (int i = 0; i < length; i++) {
+      if (weights[i] > gateEpsilon) alphaRows[alphaCount++] = i;
+      if (1.0 - weights[i] > gateEpsilon) betaRows[betaCount++] = i;
+    }
+    @Nonnull final double[][] outputs = new double[length][];
+    @Nullable final int[] dims = accumulateBranch(mode == NodeMode.Final ? null : alphaBias, alpha, data, alphaRows, weights, false, outputs);
+    @Nullable final int[] betaDims = accumulateBranch(mode == NodeMode.Final ? null : betaBias, beta, data, betaRows, weights, true, outputs);
+    @Nonnull final int[] outputDims = null != dims ? dims : betaDims;
+    @Nonnull final Tensor[] rows = new Tensor[length];
+    for (int i = 0; i < length; i++) {
+      rows[i] = new Tensor(outputs[i], outputDims);
+    }
+    return new TensorArray(rows);
+  }
+
+  @Nullable
+  private static int[] accumulateBranch(@Nullable final Layer bias, @Nonnull final Layer branch, @Nonnull final TensorList data,
+                                        @Nonnull final int[] rows, @Nonnull final double[] weights, final boolean complement,
+                                        @Nonnull final double[][] outputs) {
+    if (0 == rows.length) return null;
+    @Nonnull final Tensor[] subset = new Tensor[rows.length];
+    for (int i = 0; i < rows.length; i++) {
+      subset[i] = data.get(rows[i]);
+    }
+    final TensorList input = new TensorArray(subset);
+    final TensorList branchInput = null != bias ? evalData(bias, input) : input.addRef();
+    input.freeRef();
+    final TensorList result = branch instanceof SigmoidTreeNetwork
+        ? ((SigmoidTreeNetwork) branch).infer(branchInput)
+        : evalData(branch, branchInput);
+    branchInput.freeRef();
+    int[] dims = null;
+    for (int i = 0; i < rows.length; i++) {
+      final Tensor tensor = result.get(i);
+      final double[] values = tensor.getData();
+      if (null == dims) dims = tensor.getDimensions();
+      final double weight = complement ? 1.0 - weights[rows[i]] : weights[rows[i]];
+      double[] target = outputs[rows[i]];
+      if (null == target) target = outputs[rows[i]] = new double[values.length];
+      for (int j = 0; j < values.length; j++) {
+        target[j] += weight * values[j];
+      }
+      tensor.freeRef();
+    }
+    result.freeRef();
+    return dims;
+  }
+
+  @Nonnull
+  private static TensorList evalData(@Nonnull final Layer layer, @Nonnull final TensorList data) {
+    final Result result = layer.eval(new ConstantResult(data.addRef()));
+    final TensorList output = result.getData();
+    result.freeRef();
+    return output;
+  }
+
+  /**
+   * Looks up a layer by id, including layers held by the graph body or the branches of a
+   * BranchParallelLayer.
+   */
+  @Nullable
+  public Layer findLayer(@Nonnull final UUID id) {
+    return BranchParallelLayer.findLayer(this, id);
+  }
+
+  /**
+   * Joins (alpha, beta, gate) branch outputs as alpha * sigmoid(gate) + beta * sigmoid(-gate).
+   */
+  @Nonnull
+  private static Layer newGateCombiner() {
+    @Nonnull final PipelineNetwork combiner = new PipelineNetwork(3);
+    LinearActivationLayer linearActivationLayer = new LinearActivationLayer();
+    linearActivationLayer.setScale(-1);
+    linearActivationLayer.freeze();
+    SigmoidActivationLayer sigmoidActivationLayer = new SigmoidActivationLayer();
+    sigmoidActivationLayer.setBalanced(false);
+    SigmoidActivationLayer sigmoidActivationLayer1 = new SigmoidActivationLayer();
+    sigmoidActivationLayer1.setBalanced(false);
+    combiner.add(new SumInputsLayer(),
+        combiner.add(new ProductInputsLayer(), combiner.getInput(0),
+            combiner.add(sigmoidActivationLayer1, combiner.getInput(2))),
+        combiner.add(new ProductInputsLayer(), combiner.getInput(1),
+            combiner.add(sigmoidActivationLayer, combiner.add(linearActivationLayer, combiner.getInput(2))))).freeRef();
+    return combiner;
   }
 
   public void copyState(@Nonnull final Layer from, @Nonnull final Layer to) {
@@ -274,36 +495,35 @@ public class SigmoidTreeNetwork extends DAGNetwork implements EvolvingNetwork {
       json.addProperty("alpha", alpha.getId().toString());
     }
     if (null != alphaBias) {
-      assert alpha != null;
-      json.addProperty("alphaBias", alpha.getId().toString());
+      json.addProperty("alphaBias", alphaBias.getId().toString());
     }
     if (null != beta) {
       json.addProperty("beta", beta.getId().toString());
     }
     if (null != betaBias) {
-      assert beta != null;
-      json.addProperty("betaBias", beta.getId().toString());
+      json.addProperty("betaBias", betaBias.getId().toString());
     }
     if (null != gate) {
       json.addProperty("gate", gate.getId().toString());
     }
     if (null != gateBias) {
-      assert gate != null;
-      json.addProperty("gateBias", gate.getId().toString());
+      json.addProperty("gateBias", gateBias.getId().toString());
     }
     assert getMode() != null;
     json.addProperty("mode", getMode().name());
     json.addProperty("skipChildStage", skipChildStage());
     json.addProperty("skipFuzzy", isSkipFuzzy());
+    json.addProperty("gateEpsilon", getGateEpsilon());
+    json.addProperty("branchParallel", isBranchParallel());
     return json;
   }
 
   @Override
-  public void nextPhase() {
+  public synchronized void nextPhase() {
     assert getMode() != null;
     switch (getMode()) {
       case Linear: {
-        head = null;
+        invalidate();
         assert this.alpha != null;
         @Nonnull final FullyConnectedLayer alpha = (FullyConnectedLayer) this.alpha;
         //alphaList.weights.scale(2);
@@ -315,7 +535,7 @@ public class SigmoidTreeNetwork extends DAGNetwork implements EvolvingNetwork {
         break;
       }
       case Fuzzy: {
-        head = null;
+        invalidate();
         @Nullable final FullyConnectedLayer alpha = (FullyConnectedLayer) this.alpha;
         assert this.alphaBias != null;
         @Nonnull final BiasLayer alphaBias = (BiasLayer) this.alphaBias;
@@ -323,8 +543,9 @@ public class SigmoidTreeNetwork extends DAGNetwork implements EvolvingNetwork {
         assert alpha.outputDims != null;
         assert alpha.inputDims != null;
         FullyConnectedLayer fullyConnectedLayer = new FullyConnectedLayer(alpha.inputDims, alpha.outputDims);
-        fullyConnectedLayer.set(() -> {
-          return initialFuzzyCoeff * (FastRandom.INSTANCE.random() - 0.5);
+        final IntToDoubleFunction random = RandomSeeds.uniform("SigmoidTreeNetwork.beta");
+        fullyConnectedLayer.set(i -> {
+          return initialFuzzyCoeff * (random.applyAsDouble(i) - 0.5);
         });
         beta = fullyConnectedLayer.addRef();
         assert alphaBias.bias != null;
@@ -338,7 +559,7 @@ public class SigmoidTreeNetwork extends DAGNetwork implements EvolvingNetwork {
         break;
       }
       case Bilinear:
-        head = null;
+        invalidate();
         alpha = new SigmoidTreeNetwork(alpha, alphaBias);
         if (skipChildStage()) {
           ((SigmoidTreeNetwork) alpha).nextPhase();
@@ -20,10 +20,6 @@
 package com.simiacryptus.mindseye.network.util;
 
 import com.simiacryptus.mindseye.lang.Layer;
-import com.simiacryptus.mindseye.layers.java.BinaryNoiseLayer;
-import com.simiacryptus.mindseye.layers.java.LinearActivationLayer;
-import com.simiacryptus.mindseye.layers.java.MeanSqLossLayer;
-import com.simiacryptus.mindseye.layers.java.SumReducerLayer;
 import com.simiacryptus.mindseye.network.DAGNode;
 import com.simiacryptus.mindseye.network.SupervisedNetwork;
 import com.simiacryptus.ref.lang.RefUtil;
@@ -32,6 +28,10 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.Arrays;
 
+/**
+ * Trains an encoder/decoder pair on reconstruction error plus an activation penalty on the code,
+ * both computed by a single {@link SparseReconstructionLossLayer} node.
+ */
 @SuppressWarnings("serial")
 public class SparseAutoencoderTrainer extends SupervisedNetwork {
 
@@ -41,33 +41,42 @@ public class SparseAutoencoderTrainer extends SupervisedNetwork {
   public final DAGNode encoder;
   @Nullable
   public final DAGNode loss;
-  @Nullable
-  public final DAGNode sparsity;
-  @Nullable
-  public final DAGNode sparsityThrottleLayer;
-  @Nullable
-  public final DAGNode sumFitnessLayer;
-  @Nullable
-  public final DAGNode sumSparsityLayer;
+  @Nonnull
+  private final SparseReconstructionLossLayer lossLayer;
 
   public SparseAutoencoderTrainer(@Nonnull final Layer encoder, @Nonnull final Layer decoder) {
+    this(encoder, decoder, new SparseReconstructionLossLayer());
+  }
+
+  public SparseAutoencoderTrainer(@Nonnull final Layer encoder, @Nonnull final Layer decoder,
+                                  @Nonnull final SparseReconstructionLossLayer lossLayer) {
     super(1);
+    this.lossLayer = lossLayer;
     this.encoder = add(encoder, getInput(0));
     this.decoder = add(decoder, this.encoder);
-    loss = add(new MeanSqLossLayer(), this.decoder, getInput(0));
-    sparsity = add(new BinaryNoiseLayer(), this.encoder);
-    sumSparsityLayer = add(new SumReducerLayer(), sparsity);
-    LinearActivationLayer linearActivationLayer = new LinearActivationLayer();
-    linearActivationLayer.setScale(0.5);
-    sparsityThrottleLayer = add(linearActivationLayer.addRef(), sumSparsityLayer);
-    sumFitnessLayer = add(new SumReducerLayer(), sparsityThrottleLayer, loss);
+    loss = add(lossLayer.addRef(), this.decoder, getInput(0), this.encoder);
+  }
+
+  @Nonnull
+  public SparseReconstructionLossLayer getLossLayer() {
+    return lossLayer;
+  }
+
+  public double getSparsityWeight() {
+    return lossLayer.getSparsityWeight();
+  }
+
+  @Nonnull
+  public SparseAutoencoderTrainer setSparsityWeight(final double sparsityWeight) {
+    lossLayer.setSparsityWeight(sparsityWeight);
+    return this;
   }
 
   @Override
   public DAGNode getHead() {
-    assert sumFitnessLayer != null;
-    sumFitnessLayer.addRef();
-    return sumFitnessLayer;
+    assert loss != null;
+    loss.addRef();
+    return loss;
   }
 
   @Nullable
@@ -87,6 +96,7 @@ public class SparseAutoencoderTrainer extends SupervisedNetwork {
 
   public @SuppressWarnings("unused")
   void _free() {
+    lossLayer.freeRef();
   }
 
   @Nonnull
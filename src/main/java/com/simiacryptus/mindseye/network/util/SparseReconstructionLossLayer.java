@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.network.util;
+
+import com.google.gson.JsonObject;
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.ref.wrappers.RefArrayList;
+import com.simiacryptus.ref.wrappers.RefIntStream;
+import com.simiacryptus.ref.wrappers.RefList;
+import com.simiacryptus.ref.wrappers.RefSystem;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Sparsity-regularized reconstruction loss over (reconstruction, target, code) inputs. Each row
+ * yields mean((reconstruction - target)^2) + weight * penalty(code), computed with its gradients in
+ * a single pass. The L1 penalty is sum(|code|) per row; the KL penalty compares the target
+ * activation rho with the batch-mean activation of each code unit and is divided evenly across the
+ * rows of the batch.
+ */
+@SuppressWarnings("serial")
+public class SparseReconstructionLossLayer extends LayerBase {
+
+  private static final double KL_CLAMP = 1e-6;
+
+  @Nonnull
+  private Penalty penalty = Penalty.L1;
+  private double sparsityWeight = 0.5;
+  private double targetActivation = 0.05;
+
+  public SparseReconstructionLossLayer() {
+  }
+
+  protected SparseReconstructionLossLayer(@Nonnull final JsonObject json) {
+    super(json);
+    penalty = Penalty.valueOf(json.get("penalty").getAsString());
+    sparsityWeight = json.get("sparsityWeight").getAsDouble();
+    targetActivation = json.get("targetActivation").getAsDouble();
+  }
+
+  @Nonnull
+  public Penalty getPenalty() {
+    return penalty;
+  }
+
+  @Nonnull
+  public SparseReconstructionLossLayer setPenalty(@Nonnull final Penalty penalty) {
+    this.penalty = penalty;
+    return this;
+  }
+
+  public double getSparsityWeight() {
+    return sparsityWeight;
+  }
+
+  @Nonnull
+  public SparseReconstructionLossLayer setSparsityWeight(final double sparsityWeight) {
+    this.sparsityWeight = sparsityWeight;
+    return this;
+  }
+
+  public double getTargetActivation() {
+    return targetActivation;
+  }
+
+  /**
+   * Target mean activation rho of the KL penalty, in (0, 1).
+   */
+  @Nonnull
+  public SparseReconstructionLossLayer setTargetActivation(final double targetActivation) {
+    if (targetActivation <= 0 || targetActivation >= 1)
+      throw new IllegalArgumentException(Double.toString(targetActivation));
+    this.targetActivation = targetActivation;
+    return this;
+  }
+
+  @Nonnull
+  @SuppressWarnings("unused")
+  public static SparseReconstructionLossLayer fromJson(@Nonnull final JsonObject json, Map<CharSequence, byte[]> rs) {
+    return new SparseReconstructionLossLayer(json);
+  }
+
+  @Nonnull
+  @Override
+  public Result eval(@Nonnull final Result... inObj) {
+    if (3 != inObj.length) throw new IllegalArgumentException(Integer.toString(inObj.length));
+    final Result reconstruction = inObj[0];
+    final Result target = inObj[1];
+    final Result code = inObj[2];
+    final TensorList reconstructionData = reconstruction.getData();
+    final TensorList targetData = target.getData();
+    final TensorList codeData = code.getData();
+    final int length = reconstructionData.length();
+    if (length != targetData.length() || length != codeData.length()) throw new IllegalArgumentException();
+    final Penalty penalty = this.penalty;
+    final double weight = sparsityWeight;
+    final double rho = targetActivation;
+    @Nullable final double[] meanActivation = Penalty.KL == penalty ? meanActivation(codeData) : null;
+    final double batchPenalty = null == meanActivation ? 0 : klDivergence(rho, meanActivation) / length;
+    @Nonnull final double[] values = RefIntStream.range(0, length).parallel().mapToDouble(b -> {
+      final Tensor r = reconstructionData.get(b);
+      final Tensor t = targetData.get(b);
+      final double[] rv = r.getData();
+      final double[] tv = t.getData();
+      double sum = 0;
+      for (int i = 0; i < rv.length; i++) {
+        final double d = rv[i] - tv[i];
+        sum += d * d;
+      }
+      r.freeRef();
+      t.freeRef();
+      double value = sum / rv.length;
+      if (Penalty.L1 == penalty) {
+        final Tensor h = codeData.get(b);
+        double l1 = 0;
+        for (final double x : h.getData()) {
+          l1 += Math.abs(x);
+        }
+        h.freeRef();
+        value += weight * l1;
+      } else {
+        value += weight * batchPenalty;
+      }
+      return value;
+    }).toArray();
+    @Nonnull final Tensor[] outputs = new Tensor[length];
+    for (int b = 0; b < length; b++) {
+      outputs[b] = new Tensor(new double[]{values[b]}, 1);
+    }
+    return new Result(new TensorArray(outputs), new Result.Accumulator() {
+      @Override
+      public void accept(@Nonnull final DeltaSet<UUID> buffer, @Nonnull final TensorList delta) {
+        @Nonnull final double[] dy = new double[length];
+        double dySum = 0;
+        for (int b = 0; b < length; b++) {
+          final Tensor tensor = delta.get(b);
+          dy[b] = tensor.get(0);
+          dySum += dy[b];
+          tensor.freeRef();
+        }
+        if (reconstruction.isAlive() || target.isAlive()) {
+          @Nonnull final Tensor[] dr = new Tensor[length];
+          @Nonnull final Tensor[] dt = new Tensor[length];
+          RefIntStream.range(0, length).parallel().forEach(b -> {
+            final Tensor r = reconstructionData.get(b);
+            final Tensor t = targetData.get(b);
+            final double[] rv = r.getData();
+            final double[] tv = t.getData();
+            final double scale = 2 * dy[b] / rv.length;
+            @Nonnull final double[] gr = new double[rv.length];
+            @Nonnull final double[] gt = new double[rv.length];
+            for (int i = 0; i < rv.length; i++) {
+              gr[i] = scale * (rv[i] - tv[i]);
+              gt[i] = -gr[i];
+            }
+            dr[b] = new Tensor(gr, r.getDimensions());
+            dt[b] = new Tensor(gt, t.getDimensions());
+            r.freeRef();
+            t.freeRef();
+          });
+          passback(buffer.addRef(), reconstruction, dr);
+          passback(buffer.addRef(), target, dt);
+        }
+        if (code.isAlive()) {
+          @Nullable final double[] klGradient = null == meanActivation ? null : new double[meanActivation.length];
+          if (null != klGradient) {
+            // d(KL / length)/dh for each row: the mean activation moves by 1/length per row
+            final double scale = weight * dySum / ((double) length * length);
+            for (int j = 0; j < klGradient.length; j++) {
+              final double m = meanActivation[j];
+              // A clamped mean leaves the penalty flat in this unit
+              if (m != clamp(m)) continue;
+              klGradient[j] = scale * ((1 - rho) / (1 - m) - rho / m);
+            }
+          }
+          @Nonnull final Tensor[] dh = RefIntStream.range(0, length).parallel().mapToObj(b -> {
+            final Tensor h = codeData.get(b);
+            final double[] hv = h.getData();
+            @Nonnull final double[] g = new double[hv.length];
+            if (null != klGradient) {
+              RefSystem.arraycopy(klGradient, 0, g, 0, g.length);
+            } else {
+              final double scale = weight * dy[b];
+              for (int j = 0; j < hv.length; j++) {
+                g[j] = scale * Math.signum(hv[j]);
+              }
+            }
+            final Tensor gradient = new Tensor(g, h.getDimensions());
+            h.freeRef();
+            return gradient;
+          }).toArray(i -> new Tensor[i]);
+          code.accumulate(buffer.addRef(), new TensorArray(dh));
+        }
+        delta.freeRef();
+        buffer.freeRef();
+      }
+
+      @Override
+      public void _free() {
+        reconstructionData.freeRef();
+        targetData.freeRef();
+        codeData.freeRef();
+        reconstruction.freeRef();
+        target.freeRef();
+        code.freeRef();
+        super._free();
+      }
+    });
+  }
+
+  @Nonnull
+  @Override
+  public JsonObject getJson(Map<CharSequence, byte[]> resources, DataSerializer dataSerializer) {
+    @Nonnull final JsonObject json = super.getJsonStub();
+    json.addProperty("penalty", penalty.name());
+    json.addProperty("sparsityWeight", sparsityWeight);
+    json.addProperty("targetActivation", targetActivation);
+    return json;
+  }
+
+  @Nullable
+  @Override
+  public RefList<double[]> state() {
+    return new RefArrayList<>();
+  }
+
+  private static void passback(@Nonnull final DeltaSet<UUID> buffer, @Nonnull final Result input,
+                               @Nonnull final Tensor[] gradient) {
+    if (input.isAlive()) {
+      input.accumulate(buffer, new TensorArray(gradient));
+    } else {
+      for (final Tensor tensor : gradient) {
+        tensor.freeRef();
+      }
+      buffer.freeRef();
+    }
+  }
+
+  @Nonnull
+  private static double[] meanActivation(@Nonnull final TensorList codeData) {
+    final int length = codeData.length();
+    @Nullable double[] mean = null;
+    for (int b = 0; b < length; b++) {
+      final Tensor h = codeData.get(b);
+      final double[] hv = h.getData();
+      if (null == mean) mean = new double[hv.length];
+      for (int j = 0; j < hv.length; j++) {
+        mean[j] += hv[j] / length;
+      }
+      h.freeRef();
+    }
+    return null == mean ? new double[0] : mean;
+  }
+
+  private static double klDivergence(final double rho, @Nonnull final double[] meanActivation) {
+    double sum = 0;
+    for (final double activation : meanActivation) {
+      final double m = clamp(activation);
+      sum += rho * Math.log(rho / m) + (1 - rho) * Math.log((1 - rho) / (1 - m));
+    }
+    return sum;
+  }
+
+  private static double clamp(final double activation) {
+    return Math.min(1 - KL_CLAMP, Math.max(KL_CLAMP, activation));
+  }
+
+  /**
+   * Activation penalty applied to the code input.
+   */
+  public enum Penalty {
+    /**
+     * Sum of absolute code activations per row.
+     */
+    L1,
+    /**
+     * KL divergence between the target activation and the batch-mean activation of each unit;
+     * assumes code activations in (0, 1), such as sigmoid outputs.
+     */
+    KL
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.network.util;
+
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.lang.TensorList;
+import com.simiacryptus.mindseye.test.RandomSeeds;
+
+import javax.annotation.Nonnull;
+import java.util.AbstractList;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Uniform sampling of rows from a TensorList without touching the unsampled rows: indices are drawn
+ * with Floyd's algorithm in O(k) time and space, and the rows are fetched only when the view is read.
+ */
+public class TensorSampling {
+
+  /**
+   * Draws k distinct indices uniformly from [0, n) using Floyd's algorithm.
+   */
+  @Nonnull
+  public static int[] sampleIndices(final int n, final int k, @Nonnull final Random random) {
+    if (k < 0 || k > n) throw new IllegalArgumentException(k + " of " + n);
+    @Nonnull final Set<Integer> chosen = new HashSet<>(2 * k);
+    @Nonnull final int[] indices = new int[k];
+    int count = 0;
+    for (int j = n - k; j < n; j++) {
+      final int t = random.nextInt(j + 1);
+      final int index = chosen.add(t) ? t : j;
+      if (index == j) chosen.add(j);
+      indices[count++] = index;
+    }
+    // Floyd's algorithm yields a uniform subset but not a uniform order; shuffle the k results
+    for (int i = k - 1; i > 0; i--) {
+      final int swap = random.nextInt(i + 1);
+      final int tmp = indices[i];
+      indices[i] = indices[swap];
+      indices[swap] = tmp;
+    }
+    return indices;
+  }
+
+  /**
+   * Samples with a generator seeded from the named {@link RandomSeeds} stream, so the sample is
+   * reproducible under the run's seed.
+   */
+  @Nonnull
+  public static IndexedView sample(@Nonnull final TensorList data, final int k, @Nonnull final CharSequence key) {
+    return sample(data, k, new Random(RandomSeeds.random(key).nextLong()));
+  }
+
+  @Nonnull
+  public static IndexedView sample(@Nonnull final TensorList data, final int k, @Nonnull final Random random) {
+    return new IndexedView(data, sampleIndices(data.length(), Math.min(k, data.length()), random));
+  }
+
+  /**
+   * A read-only view of selected rows of a TensorList.
+   */
+  public static class IndexedView extends AbstractList<Tensor> {
+    @Nonnull
+    private final TensorList data;
+    @Nonnull
+    private final int[] indices;
+
+    public IndexedView(@Nonnull final TensorList data, @Nonnull final int[] indices) {
+      this.data = data;
+      this.indices = indices;
+    }
+
+    @Nonnull
+    public int[] getIndices() {
+      return indices.clone();
+    }
+
+    @Override
+    public Tensor get(final int index) {
+      return data.get(indices[index]);
+    }
+
+    @Override
+    public int size() {
+      return indices.length;
+    }
+  }
+}
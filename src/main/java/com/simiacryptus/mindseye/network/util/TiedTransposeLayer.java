@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.network.util;
+
+import com.google.gson.JsonObject;
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.mindseye.layers.WrapperLayer;
+import com.simiacryptus.mindseye.layers.java.FullyConnectedLayer;
+import com.simiacryptus.mindseye.network.DAGNetwork;
+import com.simiacryptus.ref.wrappers.RefArrayList;
+import com.simiacryptus.ref.wrappers.RefIntStream;
+import com.simiacryptus.ref.wrappers.RefList;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The transpose of a FullyConnectedLayer evaluated directly against that layer's weight buffer.
+ * No weights are copied: the forward pass multiplies by W^T, and weight gradients are accumulated
+ * under the encoder layer's id into the same buffer, so the encoder and this view train as one
+ * tied parameter set.
+ * <p>
+ * The JSON form embeds a copy of the encoder, so a deserialized view evaluates on its own, e.g. a
+ * decoder saved without its encoder. When the encoder is loaded as part of the same network,
+ * {@link #bind(DAGNetwork)} rebinds the view to that instance so the weights are shared again.
+ */
+@SuppressWarnings("serial")
+public class TiedTransposeLayer extends LayerBase {
+
+  @Nonnull
+  private final UUID encoderId;
+  @Nullable
+  private FullyConnectedLayer encoder;
+  @Nullable
+  private Tensor weights;
+  private int inputSize;
+  private int outputSize;
+
+  public TiedTransposeLayer(@Nonnull final FullyConnectedLayer encoder) {
+    this.encoderId = encoder.getId();
+    bind(encoder);
+  }
+
+  protected TiedTransposeLayer(@Nonnull final JsonObject json, Map<CharSequence, byte[]> rs) {
+    super(json);
+    this.encoderId = UUID.fromString(json.get("encoder").getAsString());
+    if (json.has("encoderLayer")) {
+      bind((FullyConnectedLayer) Layer.fromJson(json.getAsJsonObject("encoderLayer"), rs));
+    }
+  }
+
+  @Nonnull
+  public FullyConnectedLayer getEncoder() {
+    if (null == encoder) throw new IllegalStateException("Encoder " + encoderId + " is not bound");
+    return encoder;
+  }
+
+  @Nonnull
+  public UUID getEncoderId() {
+    return encoderId;
+  }
+
+  public boolean isBound() {
+    return null != encoder;
+  }
+
+  @Nonnull
+  @SuppressWarnings("unused")
+  public static TiedTransposeLayer fromJson(@Nonnull final JsonObject json, Map<CharSequence, byte[]> rs) {
+    return new TiedTransposeLayer(json, rs);
+  }
+
+  /**
+   * Binds every TiedTransposeLayer in the network, including nested networks, to the
+   * FullyConnectedLayer with its encoder id, replacing the embedded copy a deserialized view holds.
+   * Views whose encoder is not in the network keep their embedded copy.
+   *
+   * @throws IllegalStateException if a view has neither an embedded encoder nor one in the network
+   */
+  public static void bind(@Nonnull final DAGNetwork network) {
+    @Nonnull final Map<UUID, Layer> layers = new HashMap<>();
+    collect(network, layers);
+    for (final Layer layer : layers.values()) {
+      if (!(layer instanceof TiedTransposeLayer)) continue;
+      final TiedTransposeLayer view = (TiedTransposeLayer) layer;
+      final Layer encoder = layers.get(view.encoderId);
+      if (encoder instanceof FullyConnectedLayer) {
+        if (encoder != view.encoder) view.bind(((FullyConnectedLayer) encoder).addRef());
+      } else if (!view.isBound()) {
+        throw new IllegalStateException("Encoder " + view.encoderId + " not found for " + view.getId());
+      }
+    }
+  }
+
+  private static void collect(@Nonnull final DAGNetwork network, @Nonnull final Map<UUID, Layer> layers) {
+    for (final Layer layer : network.getLayersById().values()) {
+      layers.put(layer.getId(), layer);
+      collectNested(layer, layers);
+    }
+  }
+
+  private static void collectNested(@Nullable final Layer layer, @Nonnull final Map<UUID, Layer> layers) {
+    if (layer instanceof DAGNetwork) {
+      collect((DAGNetwork) layer, layers);
+    } else if (layer instanceof WrapperLayer) {
+      // e.g. the VariableLayer holding an autoencoder's decoder synapse
+      final Layer inner = ((WrapperLayer) layer).getInner();
+      if (null != inner) {
+        layers.put(inner.getId(), inner);
+        collectNested(inner, layers);
+      }
+    }
+  }
+
+  private synchronized void bind(@Nonnull final FullyConnectedLayer encoder) {
+    if (null != this.weights) this.weights.freeRef();
+    if (null != this.encoder) this.encoder.freeRef();
+    this.encoder = encoder;
+    this.weights = encoder.getWeights();
+    // The encoder maps inputDims -> outputDims with W(i,o) at data[i + inputSize * o]
+    this.inputSize = Tensor.length(encoder.inputDims);
+    this.outputSize = Tensor.length(encoder.outputDims);
+  }
+
+  @Nonnull
+  @Override
+  public Result eval(@Nonnull final Result... inObj) {
+    final FullyConnectedLayer encoder = getEncoder();
+    final int inputSize = this.inputSize;
+    final int outputSize = this.outputSize;
+    final Result input = inObj[0];
+    final TensorList inputData = input.getData();
+    final double[] w = weights.getData();
+    final int length = inputData.length();
+    @Nonnull final Tensor[] outputs = RefIntStream.range(0, length).parallel().mapToObj(b -> {
+      final Tensor row = inputData.get(b);
+      final double[] x = row.getData();
+      @Nonnull final double[] y = new double[inputSize];
+      for (int o = 0; o < outputSize; o++) {
+        final double xo = x[o];
+        if (0 == xo) continue;
+        final int offset = o * inputSize;
+        for (int i = 0; i < inputSize; i++) {
+          y[i] += xo * w[offset + i];
+        }
+      }
+      row.freeRef();
+      return new Tensor(y, encoder.inputDims);
+    }).toArray(i -> new Tensor[i]);
+    final UUID weightId = encoder.getId();
+    return new Result(new TensorArray(outputs), new Result.Accumulator() {
+      @Override
+      public void accept(@Nonnull final DeltaSet<UUID> buffer, @Nonnull final TensorList delta) {
+        if (!encoder.isFrozen()) {
+          @Nonnull final double[] gradient = new double[w.length];
+          for (int b = 0; b < length; b++) {
+            final Tensor deltaRow = delta.get(b);
+            final Tensor inputRow = inputData.get(b);
+            final double[] dy = deltaRow.getData();
+            final double[] x = inputRow.getData();
+            for (int o = 0; o < outputSize; o++) {
+              final double xo = x[o];
+              if (0 == xo) continue;
+              final int offset = o * inputSize;
+              for (int i = 0; i < inputSize; i++) {
+                gradient[offset + i] += dy[i] * xo;
+              }
+            }
+            deltaRow.freeRef();
+            inputRow.freeRef();
+          }
+          final Delta<UUID> weightDelta = buffer.get(weightId, w);
+          weightDelta.addInPlace(gradient);
+          weightDelta.freeRef();
+        }
+        if (input.isAlive()) {
+          @Nonnull final Tensor[] passback = RefIntStream.range(0, length).parallel().mapToObj(b -> {
+            final Tensor deltaRow = delta.get(b);
+            final double[] dy = deltaRow.getData();
+            @Nonnull final double[] dx = new double[outputSize];
+            for (int o = 0; o < outputSize; o++) {
+              final int offset = o * inputSize;
+              double sum = 0;
+              for (int i = 0; i < inputSize; i++) {
+                sum += dy[i] * w[offset + i];
+              }
+              dx[o] = sum;
+            }
+            deltaRow.freeRef();
+            return new Tensor(dx, encoder.outputDims);
+          }).toArray(i -> new Tensor[i]);
+          input.accumulate(buffer, new TensorArray(passback));
+        }
+        delta.freeRef();
+      }
+    });
+  }
+
+  @Nonnull
+  @Override
+  public JsonObject getJson(Map<CharSequence, byte[]> resources, DataSerializer dataSerializer) {
+    @Nonnull final JsonObject json = super.getJsonStub();
+    json.addProperty("encoder", encoderId.toString());
+    json.add("encoderLayer", getEncoder().getJson(resources, dataSerializer));
+    return json;
+  }
+
+  /**
+   * Empty: the shared weights are reported by the encoder layer.
+   */
+  @Nullable
+  @Override
+  public RefList<double[]> state() {
+    return new RefArrayList<>();
+  }
+
+  public @SuppressWarnings("unused")
+  void _free() {
+    if (null != weights) weights.freeRef();
+    if (null != encoder) encoder.freeRef();
+    super._free();
+  }
+}
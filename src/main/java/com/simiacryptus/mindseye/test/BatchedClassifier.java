@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.test;
+
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.ref.wrappers.RefStream;
+import com.simiacryptus.util.Util;
+import com.simiacryptus.util.test.LabeledObject;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.ToIntFunction;
+
+/**
+ * Scores labeled data against a classifier in batches. Rows are grouped into TensorArray batches
+ * which are each evaluated once on a worker pool; a bounded number of batches is in flight so
+ * that only a few batches of the source stream are resident at a time.
+ */
+public class BatchedClassifier {
+
+  @Nonnull
+  private final Layer network;
+  private int batchSize = 1000;
+  private int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+  public BatchedClassifier(@Nonnull final Layer network) {
+    this.network = network;
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  @Nonnull
+  public BatchedClassifier setBatchSize(final int batchSize) {
+    if (batchSize < 1) throw new IllegalArgumentException(Integer.toString(batchSize));
+    this.batchSize = batchSize;
+    return this;
+  }
+
+  public int getThreads() {
+    return threads;
+  }
+
+  @Nonnull
+  public BatchedClassifier setThreads(final int threads) {
+    if (threads < 1) throw new IllegalArgumentException(Integer.toString(threads));
+    this.threads = threads;
+    return this;
+  }
+
+  /**
+   * Returns the indices of the k largest entries of the signal, in descending order, using a
+   * bounded insertion selection rather than a full sort.
+   */
+  @Nonnull
+  public static int[] topK(@Nonnull final double[] signal, final int k) {
+    final int n = Math.min(k, signal.length);
+    @Nonnull final int[] indices = new int[n];
+    int filled = 0;
+    for (int i = 0; i < signal.length; i++) {
+      final double value = signal[i];
+      if (filled == n && !(value > signal[indices[n - 1]])) continue;
+      int position = filled < n ? filled++ : n - 1;
+      while (position > 0 && value > signal[indices[position - 1]]) {
+        indices[position] = indices[position - 1];
+        position--;
+      }
+      indices[position] = i;
+    }
+    return indices;
+  }
+
+  /**
+   * Returns the percentage of rows whose top prediction matches the category given by the label function.
+   */
+  public double accuracy(@Nonnull final RefStream<LabeledObject<Tensor>> data,
+                         @Nonnull final ToIntFunction<LabeledObject<Tensor>> category) {
+    final long[] counts = new long[2];
+    classify(data, (index, row, signal) -> {
+      final boolean correct = topK(signal, 1)[0] == category.applyAsInt(row);
+      synchronized (counts) {
+        if (correct) counts[0]++;
+        counts[1]++;
+      }
+    });
+    return 0 == counts[1] ? Double.NaN : 100.0 * counts[0] / counts[1];
+  }
+
+  /**
+   * Evaluates every row and passes it with its position in the source and its output signal to the
+   * consumer. The consumer is called concurrently from the worker threads, in no particular order;
+   * the index lets callers make order-dependent choices deterministic. The source is read on the
+   * calling thread even if it is a parallel stream, and reading stops at the first failed batch.
+   */
+  public void classify(@Nonnull final RefStream<LabeledObject<Tensor>> data, @Nonnull final RowConsumer consumer) {
+    final ExecutorService pool = Executors.newFixedThreadPool(threads);
+    final Semaphore inFlight = new Semaphore(2 * threads);
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    final List<Future<?>> futures = new ArrayList<>();
+    try {
+      final Iterator<LabeledObject<Tensor>> rows = data.iterator();
+      List<LabeledObject<Tensor>> batch = new ArrayList<>(batchSize);
+      int offset = 0;
+      while (rows.hasNext() && null == failure.get()) {
+        batch.add(rows.next());
+        if (batch.size() >= batchSize) {
+          futures.add(submit(pool, inFlight, failure, offset, batch, consumer));
+          offset += batch.size();
+          batch = new ArrayList<>(batchSize);
+        }
+      }
+      if (!batch.isEmpty() && null == failure.get())
+        futures.add(submit(pool, inFlight, failure, offset, batch, consumer));
+      for (final Future<?> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw Util.throwException(e);
+    } catch (ExecutionException e) {
+      throw Util.throwException(e.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  @Nonnull
+  private Future<?> submit(@Nonnull final ExecutorService pool, @Nonnull final Semaphore inFlight,
+                           @Nonnull final AtomicReference<Throwable> failure, final int offset,
+                           @Nonnull final List<LabeledObject<Tensor>> batch, @Nonnull final RowConsumer consumer) {
+    try {
+      inFlight.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw Util.throwException(e);
+    }
+    return pool.submit(() -> {
+      try {
+        evaluate(offset, batch, consumer);
+      } catch (Throwable e) {
+        failure.compareAndSet(null, e);
+        throw e;
+      } finally {
+        inFlight.release();
+      }
+    });
+  }
+
+  private void evaluate(final int offset, @Nonnull final List<LabeledObject<Tensor>> batch, @Nonnull final RowConsumer consumer) {
+    @Nonnull final TensorArray batchIn = new TensorArray(batch.stream().map(x -> x.data.addRef()).toArray(i -> new Tensor[i]));
+    final Result result = network.eval(new ConstantResult(batchIn));
+    final TensorList batchOut = result.getData();
+    result.freeRef();
+    try {
+      for (int i = 0; i < batchOut.length(); i++) {
+        final Tensor tensor = batchOut.get(i);
+        final double[] signal = tensor.copyData();
+        tensor.freeRef();
+        consumer.accept(offset + i, batch.get(i), signal);
+      }
+    } finally {
+      batchOut.freeRef();
+    }
+  }
+
+  public interface RowConsumer {
+    void accept(int index, LabeledObject<Tensor> row, double[] signal);
+  }
+}
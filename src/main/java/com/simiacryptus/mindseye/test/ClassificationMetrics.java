@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.test;
+
+import com.simiacryptus.notebook.TableOutput;
+import com.simiacryptus.ref.wrappers.RefString;
+
+import javax.annotation.Nonnull;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Incremental classification statistics: a confusion matrix and top-k hit counts, updated one
+ * row at a time so that a single streaming validation pass yields accuracy, per-class
+ * precision/recall and top-k accuracy together. Updates are synchronized and may come from
+ * several scoring threads.
+ */
+public class ClassificationMetrics {
+
+  private final int categories;
+  private final int maxK;
+  @Nonnull
+  private final long[][] confusion;
+  @Nonnull
+  private final long[] topKHits;
+  private long count = 0;
+
+  public ClassificationMetrics(final int categories, final int maxK) {
+    this.categories = categories;
+    this.maxK = Math.max(1, Math.min(maxK, categories));
+    this.confusion = new long[categories][categories];
+    this.topKHits = new long[this.maxK];
+  }
+
+  public int getCategories() {
+    return categories;
+  }
+
+  public synchronized long getCount() {
+    return count;
+  }
+
+  public int getMaxK() {
+    return maxK;
+  }
+
+  /**
+   * Records one scored row and returns whether the top prediction was correct.
+   */
+  public boolean accept(final int actual, @Nonnull final double[] signal) {
+    final int[] ranked = BatchedClassifier.topK(signal, maxK);
+    int rank = ranked.length;
+    for (int i = 0; i < ranked.length; i++) {
+      if (ranked[i] == actual) {
+        rank = i;
+        break;
+      }
+    }
+    synchronized (this) {
+      count++;
+      if (actual >= 0 && actual < categories) confusion[actual][ranked[0]]++;
+      for (int k = rank; k < maxK; k++) {
+        topKHits[k]++;
+      }
+    }
+    return rank == 0;
+  }
+
+  @Nonnull
+  public synchronized ClassificationMetrics combine(@Nonnull final ClassificationMetrics other) {
+    if (other.categories != categories || other.maxK != maxK) throw new IllegalArgumentException();
+    synchronized (other) {
+      for (int i = 0; i < categories; i++) {
+        for (int j = 0; j < categories; j++) {
+          confusion[i][j] += other.confusion[i][j];
+        }
+      }
+      for (int k = 0; k < maxK; k++) {
+        topKHits[k] += other.topKHits[k];
+      }
+      count += other.count;
+    }
+    return this;
+  }
+
+  public double getAccuracy() {
+    return getTopKAccuracy(1);
+  }
+
+  /**
+   * Percentage of rows whose actual category is among the k highest predictions.
+   */
+  public synchronized double getTopKAccuracy(final int k) {
+    if (k < 1 || k > maxK) throw new IllegalArgumentException(Integer.toString(k));
+    return 0 == count ? Double.NaN : 100.0 * topKHits[k - 1] / count;
+  }
+
+  public synchronized long getConfusion(final int actual, final int predicted) {
+    return confusion[actual][predicted];
+  }
+
+  public synchronized double getPrecision(final int category) {
+    long predicted = 0;
+    for (int i = 0; i < categories; i++) {
+      predicted += confusion[i][category];
+    }
+    return 0 == predicted ? Double.NaN : (double) confusion[category][category] / predicted;
+  }
+
+  public synchronized double getRecall(final int category) {
+    long actual = 0;
+    for (int j = 0; j < categories; j++) {
+      actual += confusion[category][j];
+    }
+    return 0 == actual ? Double.NaN : (double) confusion[category][category] / actual;
+  }
+
+  @Nonnull
+  public TableOutput topKTable() {
+    @Nonnull final TableOutput table = new TableOutput();
+    for (int k = 1; k <= maxK; k++) {
+      @Nonnull final LinkedHashMap<CharSequence, Object> row = new LinkedHashMap<>();
+      row.put("k", k);
+      row.put("Accuracy", RefString.format("%.2f%%", getTopKAccuracy(k)));
+      table.putRow(row);
+    }
+    return table;
+  }
+
+  @Nonnull
+  public synchronized TableOutput classTable(@Nonnull final List<? extends CharSequence> labels) {
+    @Nonnull final TableOutput table = new TableOutput();
+    for (int c = 0; c < categories; c++) {
+      long support = 0;
+      for (int j = 0; j < categories; j++) {
+        support += confusion[c][j];
+      }
+      @Nonnull final LinkedHashMap<CharSequence, Object> row = new LinkedHashMap<>();
+      row.put("Class", label(labels, c));
+      row.put("Support", support);
+      row.put("Precision", RefString.format("%.3f", getPrecision(c)));
+      row.put("Recall", RefString.format("%.3f", getRecall(c)));
+      table.putRow(row);
+    }
+    return table;
+  }
+
+  @Nonnull
+  public synchronized TableOutput confusionTable(@Nonnull final List<? extends CharSequence> labels) {
+    @Nonnull final TableOutput table = new TableOutput();
+    for (int i = 0; i < categories; i++) {
+      @Nonnull final LinkedHashMap<CharSequence, Object> row = new LinkedHashMap<>();
+      row.put("Actual", label(labels, i));
+      for (int j = 0; j < categories; j++) {
+        row.put(label(labels, j), confusion[i][j]);
+      }
+      table.putRow(row);
+    }
+    return table;
+  }
+
+  @Nonnull
+  private static CharSequence label(@Nonnull final List<? extends CharSequence> labels, final int index) {
+    return index < labels.size() ? labels.get(index) : Integer.toString(index);
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.test;
+
+import org.apache.commons.math3.linear.BlockRealMatrix;
+import org.apache.commons.math3.linear.RealMatrix;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Accumulates second moments into a packed lower-triangular array. Rows are buffered and applied
+ * as blocked rank-k updates; partial accumulators from parallel stream chunks are merged with
+ * {@link #combine(CovarianceAccumulator)}.
+ */
+public class CovarianceAccumulator {
+  private static final int BLOCK_ROWS = 32;
+
+  private int dimension = -1;
+  private double[] packed;
+  private double[] sum;
+  // column-major buffer of pending rows, so each rank-k update reads contiguous columns
+  private double[] block;
+  private int blockSize = 0;
+  private long count = 0;
+
+  public CovarianceAccumulator() {
+  }
+
+  public CovarianceAccumulator(final int dimension) {
+    allocate(dimension);
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public int getDimension() {
+    return dimension;
+  }
+
+  /**
+   * Returns the averaged first moment E[x].
+   */
+  @Nonnull
+  public double[] getMeans() {
+    @Nonnull final double[] means = new double[dimension];
+    for (int i = 0; i < dimension; i++) {
+      means[i] = sum[i] / count;
+    }
+    return means;
+  }
+
+  public void accept(@Nonnull final double[] row) {
+    if (dimension < 0) allocate(row.length);
+    if (row.length != dimension) throw new IllegalArgumentException(row.length + " != " + dimension);
+    for (int i = 0, offset = blockSize; i < dimension; i++, offset += BLOCK_ROWS) {
+      block[offset] = row[i];
+      sum[i] += row[i];
+    }
+    count++;
+    if (++blockSize == BLOCK_ROWS) flush();
+  }
+
+  @Nonnull
+  public CovarianceAccumulator combine(@Nonnull final CovarianceAccumulator other) {
+    if (other.dimension < 0) return this;
+    if (dimension < 0) allocate(other.dimension);
+    if (other.dimension != dimension) throw new IllegalArgumentException(other.dimension + " != " + dimension);
+    flush();
+    other.flush();
+    for (int i = 0; i < packed.length; i++) {
+      packed[i] += other.packed[i];
+    }
+    for (int i = 0; i < dimension; i++) {
+      sum[i] += other.sum[i];
+    }
+    count += other.count;
+    return this;
+  }
+
+  /**
+   * Returns the averaged second moment E[x x^T].
+   */
+  @Nonnull
+  public RealMatrix getCovariance() {
+    return getCovariance(new double[dimension]);
+  }
+
+  /**
+   * Returns the second moment about the given offsets, E[(x-o)(x-o)^T], expanded from the
+   * accumulated moments so that centering needs no second pass over the data.
+   */
+  @Nonnull
+  public RealMatrix getCovariance(@Nonnull final double[] offsets) {
+    flush();
+    @Nonnull final double[] means = getMeans();
+    @Nonnull final RealMatrix covariance = new BlockRealMatrix(dimension, dimension);
+    int k = 0;
+    for (int i = 0; i < dimension; i++) {
+      for (int j = 0; j <= i; j++) {
+        final double v = packed[k++] / count - offsets[i] * means[j] - means[i] * offsets[j] + offsets[i] * offsets[j];
+        covariance.setEntry(i, j, v);
+        covariance.setEntry(j, i, v);
+      }
+    }
+    return covariance;
+  }
+
+  private void allocate(final int dimension) {
+    this.dimension = dimension;
+    this.packed = new double[dimension * (dimension + 1) / 2];
+    this.sum = new double[dimension];
+    this.block = new double[BLOCK_ROWS * dimension];
+  }
+
+  protected void flush() {
+    final int rows = blockSize;
+    if (rows == 0) return;
+    int k = 0;
+    for (int i = 0; i < dimension; i++) {
+      final int columnI = i * BLOCK_ROWS;
+      for (int j = 0; j <= i; j++) {
+        final int columnJ = j * BLOCK_ROWS;
+        double sum = 0;
+        for (int r = 0; r < rows; r++) {
+          sum += block[columnI + r] * block[columnJ + r];
+        }
+        packed[k++] += sum;
+      }
+    }
+    blockSize = 0;
+  }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.test;
+
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.ref.wrappers.RefIntStream;
+import com.simiacryptus.ref.wrappers.RefStream;
+import com.simiacryptus.util.Util;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Fixed-stride, file-backed tensor array. Records are stored as raw doubles after a small header
+ * and read back through memory-mapped DoubleBuffer views, mapped in segments so that files larger
+ * than 2GB are supported.
+ */
+public class MappedTensorStore {
+  private static final int MAGIC = 0x4D545331;
+  private static final long MAX_SEGMENT_BYTES = Integer.MAX_VALUE;
+
+  private final int[] dimensions;
+  private final int stride;
+  private final int size;
+  private final int recordsPerSegment;
+  @Nonnull
+  private final DoubleBuffer[] segments;
+
+  private MappedTensorStore(@Nonnull final File file) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      if (raf.readInt() != MAGIC) throw new IOException("Not a tensor store: " + file);
+      dimensions = new int[raf.readInt()];
+      for (int i = 0; i < dimensions.length; i++) {
+        dimensions[i] = raf.readInt();
+      }
+      size = Math.toIntExact(raf.readLong());
+      stride = Tensor.length(dimensions);
+      final long headerBytes = raf.getFilePointer();
+      if (raf.length() < headerBytes + (long) size * stride * 8) throw new IOException("Truncated tensor store: " + file);
+      recordsPerSegment = (int) Math.max(1, MAX_SEGMENT_BYTES / (8L * Math.max(1, stride)));
+      segments = new DoubleBuffer[(size + recordsPerSegment - 1) / recordsPerSegment];
+      final FileChannel channel = raf.getChannel();
+      for (int s = 0; s < segments.length; s++) {
+        final int records = Math.min(recordsPerSegment, size - s * recordsPerSegment);
+        final long offset = headerBytes + (long) s * recordsPerSegment * stride * 8;
+        segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, offset, (long) records * stride * 8).asDoubleBuffer();
+      }
+    }
+  }
+
+  public int[] getDimensions() {
+    return Arrays.copyOf(dimensions, dimensions.length);
+  }
+
+  public int getStride() {
+    return stride;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  @Nonnull
+  public static MappedTensorStore open(@Nonnull final File file) {
+    try {
+      return new MappedTensorStore(file);
+    } catch (IOException e) {
+      throw Util.throwException(e);
+    }
+  }
+
+  @Nonnull
+  public static Writer write(@Nonnull final File file, @Nonnull final int[] dimensions) {
+    try {
+      return new Writer(file, dimensions);
+    } catch (IOException e) {
+      throw Util.throwException(e);
+    }
+  }
+
+  @Nonnull
+  public DoubleBuffer view(final int index) {
+    if (index < 0 || index >= size) throw new IndexOutOfBoundsException(Integer.toString(index));
+    final DoubleBuffer segment = segments[index / recordsPerSegment].duplicate();
+    final int position = (index % recordsPerSegment) * stride;
+    segment.limit(position + stride);
+    segment.position(position);
+    return segment.slice();
+  }
+
+  @Nonnull
+  public Tensor get(final int index) {
+    @Nonnull final double[] data = new double[stride];
+    view(index).get(data);
+    return new Tensor(data, dimensions);
+  }
+
+  @Nonnull
+  public RefStream<Tensor> stream() {
+    return RefIntStream.range(0, size).mapToObj(i -> get(i));
+  }
+
+  public static class Writer implements AutoCloseable {
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final int[] dimensions;
+    private final long countOffset;
+    @Nonnull
+    private final ByteBuffer buffer;
+    private long count = 0;
+
+    private Writer(@Nonnull final File file, @Nonnull final int[] dimensions) throws IOException {
+      this.dimensions = Arrays.copyOf(dimensions, dimensions.length);
+      raf = new RandomAccessFile(file, "rw");
+      raf.setLength(0);
+      raf.writeInt(MAGIC);
+      raf.writeInt(dimensions.length);
+      for (final int d : dimensions) {
+        raf.writeInt(d);
+      }
+      countOffset = raf.getFilePointer();
+      raf.writeLong(0);
+      channel = raf.getChannel();
+      channel.position(raf.getFilePointer());
+      buffer = ByteBuffer.allocate(8 * Tensor.length(dimensions));
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public synchronized void add(@Nonnull final double[] data) {
+      if (data.length * 8 != buffer.capacity())
+        throw new IllegalArgumentException(data.length + " != " + Tensor.length(dimensions));
+      buffer.clear();
+      buffer.asDoubleBuffer().put(data);
+      try {
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+      } catch (IOException e) {
+        throw Util.throwException(e);
+      }
+      count++;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      raf.seek(countOffset);
+      raf.writeLong(count);
+      raf.close();
+    }
+  }
+}
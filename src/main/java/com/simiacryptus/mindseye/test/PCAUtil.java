@@ -23,53 +23,187 @@ import com.simiacryptus.mindseye.lang.Tensor;
 import com.simiacryptus.ref.lang.RecycleBin;
 import com.simiacryptus.ref.lang.RefUtil;
 import com.simiacryptus.ref.wrappers.*;
-import com.simiacryptus.util.data.DoubleStatistics;
-import org.apache.commons.math3.linear.BlockRealMatrix;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
 import org.apache.commons.math3.linear.EigenDecomposition;
 import org.apache.commons.math3.linear.RealMatrix;
 
 import javax.annotation.Nonnull;
+import java.util.Arrays;
+import java.util.Random;
 import java.util.function.Supplier;
 
 public class PCAUtil {
   @Nonnull
   public static RealMatrix getCovariance(@Nonnull final Supplier<RefStream<double[]>> stream) {
     final int dimension = RefUtil.get(stream.get().findAny()).length;
-    final RefList<DoubleStatistics> statList = RefIntStream.range(0, dimension * dimension)
-        .mapToObj(i -> new DoubleStatistics()).collect(RefCollectors.toList());
-    stream.get().forEach(array -> {
-      for (int i = 0; i < dimension; i++) {
-        for (int j = 0; j <= i; j++) {
-          statList.get(i * dimension + j).accept(array[i] * array[j]);
+    return stream.get().parallel().collect(() -> new CovarianceAccumulator(dimension), (accumulator, array) -> {
+      accumulator.accept(array);
+      RecycleBin.DOUBLES.recycle(array, array.length);
+    }, (a, b) -> a.combine(b)).getCovariance();
+  }
+
+  @Nonnull
+  public static Tensor[] pcaFeatures(@Nonnull final RealMatrix covariance, final int components, final int[] featureDimensions,
+                                     final double power) {
+    return pcaFeatures(covariance, components, featureDimensions, power, EigenSolver.Full);
+  }
+
+  @Nonnull
+  public static Tensor[] pcaFeatures(@Nonnull final RealMatrix covariance, final int components, final int[] featureDimensions,
+                                     final double power, @Nonnull final EigenSolver solver) {
+    @Nonnull final EigenPairs eigen = solver.solve(covariance, Math.min(components, covariance.getRowDimension()));
+    return RefIntStream.range(0, eigen.values.length).mapToObj(i -> {
+      @Nonnull final Tensor src = new Tensor(eigen.vectors[i], featureDimensions).copy();
+      return src.scale(1.0 / src.rms()).scale(Math.pow(eigen.values[i] / eigen.values[0], power));
+    }).toArray(i -> new Tensor[i]);
+  }
+
+  @Nonnull
+  static EigenPairs fullEigen(@Nonnull final RealMatrix covariance, final int components) {
+    @Nonnull final EigenDecomposition decomposition = new EigenDecomposition(covariance);
+    final int[] orderedVectors = RefIntStream.range(0, covariance.getRowDimension()).mapToObj(x -> x)
+        .sorted(RefComparator.comparingDouble(x -> -decomposition.getRealEigenvalue(x))).limit(components)
+        .mapToInt(x -> x).toArray();
+    @Nonnull final double[] values = new double[components];
+    @Nonnull final double[][] vectors = new double[components][];
+    for (int i = 0; i < components; i++) {
+      values[i] = decomposition.getRealEigenvalue(orderedVectors[i]);
+      vectors[i] = decomposition.getEigenvector(orderedVectors[i]).toArray();
+    }
+    return new EigenPairs(values, vectors);
+  }
+
+  /**
+   * Block subspace iteration with Rayleigh-Ritz extraction. Only an n-by-m basis is iterated, with m a small
+   * oversampling of the requested component count, so each sweep costs O(n^2 m) instead of a full O(n^3)
+   * decomposition.
+   */
+  @Nonnull
+  static EigenPairs subspaceEigen(@Nonnull final RealMatrix covariance, final int components, final int maxIterations,
+                                  final double tolerance) {
+    final int n = covariance.getRowDimension();
+    final int m = Math.min(n, components + Math.max(5, components / 2));
+    @Nonnull final double[][] a = covariance.getData();
+    @Nonnull final Random random = new Random(n * 31L + components);
+    @Nonnull double[][] basis = new double[m][n];
+    for (final double[] column : basis) {
+      for (int i = 0; i < n; i++) {
+        column[i] = random.nextGaussian();
+      }
+    }
+    orthonormalize(basis);
+    @Nonnull double[] ritzValues = new double[m];
+    for (int iteration = 0; iteration < maxIterations; iteration++) {
+      @Nonnull final double[][] product = multiply(a, basis);
+      @Nonnull final double[] previous = ritzValues;
+      ritzValues = new EigenDecomposition(rayleigh(basis, product)).getRealEigenvalues();
+      Arrays.sort(ritzValues);
+      basis = product;
+      orthonormalize(basis);
+      if (converged(previous, ritzValues, components, tolerance)) break;
+    }
+    @Nonnull final double[][] product = multiply(a, basis);
+    @Nonnull final EigenDecomposition small = new EigenDecomposition(rayleigh(basis, product));
+    final int[] ordered = RefIntStream.range(0, m).mapToObj(x -> x)
+        .sorted(RefComparator.comparingDouble(x -> -small.getRealEigenvalue(x))).limit(components)
+        .mapToInt(x -> x).toArray();
+    @Nonnull final double[] values = new double[components];
+    @Nonnull final double[][] vectors = new double[components][n];
+    for (int c = 0; c < components; c++) {
+      values[c] = small.getRealEigenvalue(ordered[c]);
+      @Nonnull final double[] coefficients = small.getEigenvector(ordered[c]).toArray();
+      for (int j = 0; j < m; j++) {
+        final double coefficient = coefficients[j];
+        final double[] column = basis[j];
+        for (int i = 0; i < n; i++) {
+          vectors[c][i] += coefficient * column[i];
         }
       }
-      RecycleBin.DOUBLES.recycle(array, array.length);
+    }
+    return new EigenPairs(values, vectors);
+  }
+
+  private static boolean converged(@Nonnull final double[] previous, @Nonnull final double[] current, final int components,
+                                   final double tolerance) {
+    final double scale = Math.max(Math.abs(current[current.length - 1]), Double.MIN_NORMAL);
+    for (int i = 1; i <= components; i++) {
+      if (Math.abs(current[current.length - i] - previous[previous.length - i]) > tolerance * scale) return false;
+    }
+    return true;
+  }
+
+  @Nonnull
+  private static double[][] multiply(@Nonnull final double[][] matrix, @Nonnull final double[][] columns) {
+    @Nonnull final double[][] result = new double[columns.length][matrix.length];
+    RefIntStream.range(0, columns.length).parallel().forEach(j -> {
+      final double[] column = columns[j];
+      final double[] out = result[j];
+      for (int i = 0; i < matrix.length; i++) {
+        final double[] row = matrix[i];
+        double sum = 0;
+        for (int k = 0; k < column.length; k++) {
+          sum += row[k] * column[k];
+        }
+        out[i] = sum;
+      }
     });
-    @Nonnull final RealMatrix covariance = new BlockRealMatrix(dimension, dimension);
-    for (int i = 0; i < dimension; i++) {
+    return result;
+  }
+
+  @Nonnull
+  private static RealMatrix rayleigh(@Nonnull final double[][] basis, @Nonnull final double[][] product) {
+    final int m = basis.length;
+    @Nonnull final RealMatrix result = new Array2DRowRealMatrix(m, m);
+    for (int i = 0; i < m; i++) {
       for (int j = 0; j <= i; j++) {
-        final double v = statList.get(i + dimension * j).getAverage();
-        covariance.setEntry(i, j, v);
-        covariance.setEntry(j, i, v);
+        double sum = 0;
+        for (int k = 0; k < basis[i].length; k++) {
+          sum += basis[i][k] * product[j][k];
+        }
+        result.setEntry(i, j, sum);
+        result.setEntry(j, i, sum);
       }
     }
-    return covariance;
+    return result;
   }
 
-  @Nonnull
-  public static Tensor[] pcaFeatures(@Nonnull final RealMatrix covariance, final int components, final int[] featureDimensions,
-                                     final double power) {
-    @Nonnull final EigenDecomposition decomposition = new EigenDecomposition(covariance);
-    final int[] orderedVectors = RefIntStream.range(0, components).mapToObj(x -> x)
-        .sorted(RefComparator.comparingDouble(x -> -decomposition.getRealEigenvalue(x))).mapToInt(x -> x).toArray();
-    return RefIntStream.range(0, orderedVectors.length).mapToObj(i -> {
-      @Nonnull final Tensor src = new Tensor(decomposition.getEigenvector(orderedVectors[i]).toArray(), featureDimensions)
-          .copy();
-      return src.scale(1.0 / src.rms())
-          .scale(Math.pow(
-              decomposition.getRealEigenvalue(orderedVectors[i]) / decomposition.getRealEigenvalue(orderedVectors[0]),
-              power));
-    }).toArray(i -> new Tensor[i]);
+  private static void orthonormalize(@Nonnull final double[][] columns) {
+    for (int j = 0; j < columns.length; j++) {
+      final double[] column = columns[j];
+      for (int attempt = 0; !normalizeAgainst(columns, j) && attempt < column.length; attempt++) {
+        // the column collapsed into the span of the prior columns; restart it from a coordinate axis
+        Arrays.fill(column, 0);
+        column[(j + attempt) % column.length] = 1;
+      }
+    }
+  }
+
+  private static boolean normalizeAgainst(@Nonnull final double[][] columns, final int j) {
+    final double[] column = columns[j];
+    double initial = 0;
+    for (final double v : column) {
+      initial += v * v;
+    }
+    for (int k = 0; k < j; k++) {
+      final double[] prior = columns[k];
+      double dot = 0;
+      for (int i = 0; i < column.length; i++) {
+        dot += prior[i] * column[i];
+      }
+      for (int i = 0; i < column.length; i++) {
+        column[i] -= dot * prior[i];
+      }
+    }
+    double norm = 0;
+    for (final double v : column) {
+      norm += v * v;
+    }
+    if (!(norm > 1e-20 * initial) || norm == 0) return false;
+    norm = Math.sqrt(norm);
+    for (int i = 0; i < column.length; i++) {
+      column[i] /= norm;
+    }
+    return true;
   }
 
   public static void populatePCAKernel_1(@Nonnull final Tensor kernel, @Nonnull final Tensor[] featureSpaceVectors) {
@@ -103,4 +237,39 @@ public class PCAUtil {
       return Double.isFinite(v) ? v : kernel.get(c);
     });
   }
+
+  public enum EigenSolver {
+    Full {
+      @Nonnull
+      @Override
+      public EigenPairs solve(@Nonnull final RealMatrix covariance, final int components) {
+        return fullEigen(covariance, components);
+      }
+    },
+    Subspace {
+      @Nonnull
+      @Override
+      public EigenPairs solve(@Nonnull final RealMatrix covariance, final int components) {
+        return subspaceEigen(covariance, components, 200, 1e-8);
+      }
+    };
+
+    /**
+     * The leading eigenpairs of a symmetric matrix, ordered by decreasing eigenvalue.
+     */
+    @Nonnull
+    public abstract EigenPairs solve(@Nonnull RealMatrix covariance, int components);
+  }
+
+  public static class EigenPairs {
+    @Nonnull
+    public final double[] values;
+    @Nonnull
+    public final double[][] vectors;
+
+    public EigenPairs(@Nonnull final double[] values, @Nonnull final double[][] vectors) {
+      this.values = values;
+      this.vectors = vectors;
+    }
+  }
 }
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.test;
+
+import javax.annotation.Nonnull;
+import java.util.SplittableRandom;
+import java.util.function.DoubleSupplier;
+import java.util.function.IntToDoubleFunction;
+import java.util.function.Supplier;
+
+/**
+ * Reproducible random streams for the training harness. Every stream is derived from a seed and a
+ * key naming its use (e.g. a layer of a network factory), so streams are independent of each other
+ * and of the order in which they are created. The seed is the default seed (the "mindseye.seed"
+ * system property, if set) unless a problem run scopes its own with {@link #withSeed}; the scope is
+ * per thread, so concurrent runs with different seeds do not interfere.
+ * <p>
+ * Indexed streams ({@link #uniform}) compute each value from its index, so initializers that run
+ * in parallel still yield the same values; sequential streams ({@link #doubles}) are backed by a
+ * SplittableRandom and should be split, not shared, across parallel tasks.
+ */
+public final class RandomSeeds {
+
+  private static final ThreadLocal<Long> scopedSeed = new ThreadLocal<>();
+  private static volatile long defaultSeed = Long.getLong("mindseye.seed", 0x5EEDL);
+
+  private RandomSeeds() {
+  }
+
+  public static long getDefaultSeed() {
+    return defaultSeed;
+  }
+
+  public static void setDefaultSeed(final long seed) {
+    defaultSeed = seed;
+  }
+
+  /**
+   * The seed in effect on the current thread.
+   */
+  public static long getSeed() {
+    final Long seed = scopedSeed.get();
+    return null == seed ? defaultSeed : seed;
+  }
+
+  /**
+   * Evaluates the function with the given seed in effect on the current thread.
+   */
+  public static <T> T withSeed(final long seed, @Nonnull final Supplier<T> fn) {
+    final Long previous = scopedSeed.get();
+    scopedSeed.set(seed);
+    try {
+      return fn.get();
+    } finally {
+      if (null == previous) scopedSeed.remove();
+      else scopedSeed.set(previous);
+    }
+  }
+
+  /**
+   * SplitMix64 finalizer over seed + key * golden gamma.
+   */
+  public static long mix(final long seed, final long key) {
+    long z = seed + key * 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  public static long key(@Nonnull final CharSequence name) {
+    long hash = 0x6A09E667F3BCC909L;
+    for (int i = 0; i < name.length(); i++) {
+      hash = mix(hash, name.charAt(i));
+    }
+    return hash;
+  }
+
+  /**
+   * A generator for the named stream under the current seed.
+   */
+  @Nonnull
+  public static SplittableRandom random(@Nonnull final CharSequence key) {
+    return new SplittableRandom(mix(getSeed(), key(key)));
+  }
+
+  /**
+   * A sequential stream of uniform values in [0, 1) for the named stream under the current seed.
+   */
+  @Nonnull
+  public static DoubleSupplier doubles(@Nonnull final CharSequence key) {
+    @Nonnull final SplittableRandom random = random(key);
+    return () -> {
+      synchronized (random) {
+        return random.nextDouble();
+      }
+    };
+  }
+
+  /**
+   * An indexed stream of uniform values in [0, 1) for the named stream under the current seed.
+   */
+  @Nonnull
+  public static IntToDoubleFunction uniform(@Nonnull final CharSequence key) {
+    final long stream = mix(getSeed(), key(key));
+    return index -> uniform(stream, index);
+  }
+
+  public static double uniform(final long stream, final long index) {
+    return (mix(stream, index) >>> 11) * 0x1.0p-53;
+  }
+}
@@ -0,0 +1,419 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.test;
+
+import com.simiacryptus.mindseye.lang.Layer;
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.opt.Step;
+import com.simiacryptus.mindseye.opt.TrainingMonitor;
+import com.simiacryptus.mindseye.opt.ValidatingTrainer;
+import com.simiacryptus.mindseye.opt.orient.OrientationStrategy;
+import com.simiacryptus.ref.wrappers.RefList;
+import com.simiacryptus.util.Util;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Periodic training checkpoints in a local directory: the layer state buffers, the step history and
+ * any registered tensor arrays (such as trained latent vectors). State is snapshotted on the
+ * training thread and written on a background thread, one checkpoint at a time. Each checkpoint is
+ * written in full to its own version directory and then made current by atomically replacing the
+ * checkpoint.properties manifest, so an interrupted write leaves the previous checkpoint intact and
+ * never pairs new weights with an old history.
+ * <p>
+ * Optimizer state is not saved. The LBFGS history holds point samples bound to the live network and
+ * trainable, and is rebuilt within a few iterations, so a resumed run calls {@link #resetOptimizer}
+ * and starts its line searches from a fresh orientation rather than from a stale one.
+ */
+public class TrainingCheckpoint implements AutoCloseable {
+  private static final Logger log = LoggerFactory.getLogger(TrainingCheckpoint.class);
+  private static final String MANIFEST = "checkpoint.properties";
+
+  @Nonnull
+  private final File directory;
+  @Nonnull
+  private final Map<String, Tensor[]> tensors = new LinkedHashMap<>();
+  @Nonnull
+  private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+    final Thread thread = new Thread(r, "checkpoint-writer");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private long intervalMillis = 5 * 60 * 1000;
+  private long lastSave = System.currentTimeMillis();
+  private long iteration = 0;
+  private volatile long iterationOffset = 0;
+  @Nullable
+  private Future<?> pending = null;
+
+  public TrainingCheckpoint(@Nonnull final File directory) {
+    this.directory = directory;
+  }
+
+  @Nonnull
+  public File getDirectory() {
+    return directory;
+  }
+
+  public long getIntervalSeconds() {
+    return intervalMillis / 1000;
+  }
+
+  @Nonnull
+  public TrainingCheckpoint setIntervalSeconds(final long intervalSeconds) {
+    this.intervalMillis = intervalSeconds * 1000;
+    return this;
+  }
+
+  /**
+   * The iteration of the last checkpoint written or restored.
+   */
+  public long getIteration() {
+    return iteration;
+  }
+
+  public boolean exists() {
+    return new File(directory, MANIFEST).exists();
+  }
+
+  /**
+   * Registers tensors whose contents are saved and restored in place along with the network state.
+   */
+  @Nonnull
+  public TrainingCheckpoint addTensors(@Nonnull final String name, @Nonnull final Tensor[] data) {
+    tensors.put(name, data);
+    return this;
+  }
+
+  /**
+   * A view of the history for a step recorder (such as TestUtil.getMonitor) that numbers appended
+   * steps after the restored iteration, so a resumed run continues the history instead of
+   * repeating its iteration numbers.
+   */
+  @Nonnull
+  public List<StepRecord> recorder(@Nonnull final TrainingHistory history) {
+    return new AbstractList<StepRecord>() {
+      @Override
+      public StepRecord get(final int index) {
+        return history.get(index);
+      }
+
+      @Override
+      public int size() {
+        return history.size();
+      }
+
+      @Override
+      public boolean add(@Nonnull final StepRecord record) {
+        history.add(record.iteration + iterationOffset, record.epochTime, record.fitness);
+        return true;
+      }
+    };
+  }
+
+  /**
+   * Wraps a monitor so that each completed step may trigger a checkpoint, at most once per interval.
+   */
+  @Nonnull
+  public TrainingMonitor monitor(@Nonnull final TrainingMonitor inner, @Nonnull final Layer network,
+                                 @Nonnull final TrainingHistory history) {
+    return new TrainingMonitor() {
+      @Override
+      public void log(final String msg) {
+        inner.log(msg);
+      }
+
+      @Override
+      public void onStepComplete(final Step currentPoint) {
+        inner.onStepComplete(currentPoint);
+        maybeSave(network, history);
+      }
+    };
+  }
+
+  /**
+   * Clears the orientation state (such as the LBFGS history) of every phase of a resumed trainer.
+   */
+  public static void resetOptimizer(@Nonnull final ValidatingTrainer trainer) {
+    final RefList<ValidatingTrainer.TrainingPhase> regimen = trainer.getRegimen();
+    for (int i = 0; i < regimen.size(); i++) {
+      final ValidatingTrainer.TrainingPhase phase = regimen.get(i);
+      final OrientationStrategy<?> orientation = phase.getOrientation();
+      if (null != orientation) {
+        orientation.reset();
+        orientation.freeRef();
+      }
+      phase.freeRef();
+    }
+    regimen.freeRef();
+  }
+
+  public synchronized void maybeSave(@Nonnull final Layer network, @Nonnull final TrainingHistory history) {
+    if (System.currentTimeMillis() - lastSave < intervalMillis) return;
+    if (null != pending && !pending.isDone()) return;
+    save(network, history);
+  }
+
+  public synchronized void save(@Nonnull final Layer network, @Nonnull final TrainingHistory history) {
+    final List<double[]> state = snapshot(network);
+    @Nonnull final ByteArrayOutputStream steps = new ByteArrayOutputStream();
+    final long[] iterations;
+    try {
+      synchronized (history) {
+        history.writeBinary(steps);
+        iterations = history.getIterations();
+      }
+    } catch (IOException e) {
+      throw Util.throwException(e);
+    }
+    final Map<String, double[][]> tensorData = new LinkedHashMap<>();
+    tensors.forEach((name, data) -> {
+      final double[][] copy = new double[data.length][];
+      for (int i = 0; i < data.length; i++) {
+        copy[i] = data[i].getData().clone();
+      }
+      tensorData.put(name, copy);
+    });
+    final long checkpointIteration = 0 == iterations.length ? iteration : iterations[iterations.length - 1];
+    lastSave = System.currentTimeMillis();
+    iteration = checkpointIteration;
+    // Write failures propagate through the future; close() rethrows the last one. The writer is
+    // single-threaded, so the previous write has finished by the time this one starts.
+    @Nullable final Future<?> previous = pending;
+    pending = writer.submit(() -> {
+      if (null != previous) logFailure(previous);
+      write(state, steps.toByteArray(), tensorData, checkpointIteration);
+      return null;
+    });
+  }
+
+  /**
+   * Loads the current checkpoint into the network, history and registered tensors. Steps recorded
+   * through {@link #recorder} afterwards are numbered from the restored iteration.
+   *
+   * @return false if there is no checkpoint to resume from
+   */
+  public synchronized boolean restore(@Nonnull final Layer network, @Nonnull final TrainingHistory history) {
+    if (!exists()) return false;
+    try {
+      final Properties manifest = new Properties();
+      try (InputStream in = new FileInputStream(new File(directory, MANIFEST))) {
+        manifest.load(in);
+      }
+      final File version = new File(directory, manifest.getProperty("version"));
+      final RefList<double[]> state = network.state();
+      assert state != null;
+      try (DataInputStream in = input(version, "state.bin")) {
+        final int count = in.readInt();
+        if (count != state.size()) throw new IllegalStateException(mismatch(count, state.size()));
+        for (int i = 0; i < count; i++) {
+          readArray(in, state.get(i));
+        }
+      }
+      for (final Map.Entry<String, Tensor[]> entry : tensors.entrySet()) {
+        final Tensor[] data = entry.getValue();
+        try (DataInputStream in = input(version, entry.getKey() + ".bin")) {
+          final int count = in.readInt();
+          if (count != data.length) throw new IllegalStateException(mismatch(count, data.length));
+          for (final Tensor tensor : data) {
+            readArray(in, tensor.getData());
+          }
+        }
+      }
+      final TrainingHistory steps;
+      try (InputStream in = new FileInputStream(new File(version, "history.bin"))) {
+        steps = TrainingHistory.readBinary(in);
+      }
+      synchronized (history) {
+        history.clear();
+        final long[] iterations = steps.getIterations();
+        final long[] epochTimes = steps.getEpochTimes();
+        final double[] fitness = steps.getFitness();
+        for (int i = 0; i < iterations.length; i++) {
+          history.add(iterations[i], epochTimes[i], fitness[i]);
+        }
+      }
+      iteration = Long.parseLong(manifest.getProperty("iteration", "0"));
+      iterationOffset = iteration;
+      lastSave = System.currentTimeMillis();
+      return true;
+    } catch (IOException e) {
+      throw Util.throwException(e);
+    }
+  }
+
+  /**
+   * Waits for the pending write, if any, and stops the writer thread. A failed final write is
+   * rethrown.
+   */
+  @Override
+  public void close() {
+    final Future<?> last;
+    synchronized (this) {
+      last = pending;
+    }
+    try {
+      if (null != last) last.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      throw Util.throwException(e.getCause());
+    } finally {
+      writer.shutdown();
+    }
+  }
+
+  /**
+   * Logs the failure of an earlier periodic write that has since been superseded; training goes on
+   * and the next checkpoint is attempted as usual.
+   */
+  private void logFailure(@Nonnull final Future<?> write) {
+    try {
+      write.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      log.warn("Error writing checkpoint to " + directory, e.getCause());
+    }
+  }
+
+  @Nonnull
+  private static List<double[]> snapshot(@Nonnull final Layer network) {
+    final RefList<double[]> state = network.state();
+    assert state != null;
+    final List<double[]> copy = new ArrayList<>(state.size());
+    for (int i = 0; i < state.size(); i++) {
+      copy.add(state.get(i).clone());
+    }
+    return copy;
+  }
+
+  private void write(@Nonnull final List<double[]> state, @Nonnull final byte[] steps,
+                     @Nonnull final Map<String, double[][]> tensorData, final long checkpointIteration) throws IOException {
+    directory.mkdirs();
+    final File version = newVersion(checkpointIteration);
+    if (!version.mkdirs()) throw new IOException("Cannot create " + version);
+    writeFile(new File(version, "state.bin"), out -> {
+      out.writeInt(state.size());
+      for (final double[] buffer : state) {
+        writeArray(out, buffer);
+      }
+    });
+    for (final Map.Entry<String, double[][]> entry : tensorData.entrySet()) {
+      writeFile(new File(version, entry.getKey() + ".bin"), out -> {
+        out.writeInt(entry.getValue().length);
+        for (final double[] buffer : entry.getValue()) {
+          writeArray(out, buffer);
+        }
+      });
+    }
+    writeFile(new File(version, "history.bin"), out -> out.write(steps));
+    final TrainingHistory history = TrainingHistory.readBinary(new ByteArrayInputStream(steps));
+    writeFile(new File(version, "history.csv"), out -> {
+      @Nonnull final Writer csv = new OutputStreamWriter(out, "UTF-8");
+      history.writeCsv(csv);
+    });
+    final Properties manifest = new Properties();
+    manifest.setProperty("version", version.getName());
+    manifest.setProperty("iteration", Long.toString(checkpointIteration));
+    manifest.setProperty("time", Long.toString(System.currentTimeMillis()));
+    manifest.setProperty("stateBuffers", Integer.toString(state.size()));
+    final File staged = new File(directory, MANIFEST + ".tmp");
+    writeFile(staged, out -> manifest.store(out, "Training checkpoint"));
+    Files.move(staged.toPath(), new File(directory, MANIFEST).toPath(),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    removeStaleVersions(version);
+    log.info("Wrote checkpoint at iteration " + checkpointIteration + " to " + version);
+  }
+
+  @Nonnull
+  private File newVersion(final long checkpointIteration) {
+    long stamp = System.currentTimeMillis();
+    File version;
+    do {
+      version = new File(directory, "checkpoint_" + checkpointIteration + "_" + stamp++);
+    } while (version.exists());
+    return version;
+  }
+
+  private void removeStaleVersions(@Nonnull final File current) {
+    final File[] versions = directory.listFiles(file -> file.isDirectory() && file.getName().startsWith("checkpoint_"));
+    if (null == versions) return;
+    for (final File version : versions) {
+      if (version.equals(current)) continue;
+      final File[] files = version.listFiles();
+      if (null != files) {
+        for (final File file : files) {
+          if (!file.delete()) log.warn("Could not delete " + file);
+        }
+      }
+      if (!version.delete()) log.warn("Could not delete " + version);
+    }
+  }
+
+  private static void writeFile(@Nonnull final File file, @Nonnull final FileBody body) throws IOException {
+    try (FileOutputStream stream = new FileOutputStream(file)) {
+      @Nonnull final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+      body.write(out);
+      out.flush();
+      stream.getFD().sync();
+    }
+  }
+
+  private static void writeArray(@Nonnull final DataOutputStream out, @Nonnull final double[] buffer) throws IOException {
+    out.writeInt(buffer.length);
+    for (final double v : buffer) {
+      out.writeDouble(v);
+    }
+  }
+
+  private static void readArray(@Nonnull final DataInputStream in, @Nonnull final double[] buffer) throws IOException {
+    final int length = in.readInt();
+    if (length != buffer.length) throw new IllegalStateException(mismatch(length, buffer.length));
+    for (int j = 0; j < length; j++) {
+      buffer[j] = in.readDouble();
+    }
+  }
+
+  @Nonnull
+  private static DataInputStream input(@Nonnull final File version, @Nonnull final String name) throws FileNotFoundException {
+    return new DataInputStream(new BufferedInputStream(new FileInputStream(new File(version, name))));
+  }
+
+  @Nonnull
+  private static String mismatch(final long actual, final long expected) {
+    return "Checkpoint mismatch: " + actual + " != " + expected;
+  }
+
+  private interface FileBody {
+    void write(@Nonnull DataOutputStream out) throws IOException;
+  }
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.test;
+
+import com.simiacryptus.util.Util;
+import smile.plot.swing.Canvas;
+import smile.plot.swing.PlotPanel;
+import smile.plot.swing.ScatterPlot;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.util.*;
+
+/**
+ * A training history stored as primitive columns (iteration, epoch time, fitness and any number of
+ * named metrics) instead of one StepRecord object per step. It is a List of StepRecord so it can be
+ * passed wherever a history list is expected; records are materialized only when read.
+ * <p>
+ * With a row limit set, the history stays bounded: when full it drops every other row and from then
+ * on keeps one row per doubled stride, while the most recent step always occupies the last row.
+ * A CSV sink, if set, receives every step at full resolution as it arrives.
+ */
+public class TrainingHistory extends AbstractList<StepRecord> implements RandomAccess {
+
+  private static final int MAGIC = 0x48495354;
+
+  @Nonnull
+  private final LinkedHashMap<String, double[]> metrics = new LinkedHashMap<>();
+  @Nonnull
+  private long[] iterations;
+  @Nonnull
+  private long[] epochTimes;
+  @Nonnull
+  private double[] fitness;
+  private int size = 0;
+  private int maxRows = Integer.MAX_VALUE;
+  private long stride = 1;
+  private long offered = 0;
+  private boolean provisionalTail = false;
+  @Nullable
+  private Writer sink = null;
+  private boolean sinkHeader = false;
+
+  public TrainingHistory() {
+    this(64);
+  }
+
+  public TrainingHistory(final int capacity) {
+    iterations = new long[Math.max(1, capacity)];
+    epochTimes = new long[iterations.length];
+    fitness = new double[iterations.length];
+  }
+
+  public synchronized int getMaxRows() {
+    return maxRows;
+  }
+
+  /**
+   * Row limit for bounded-memory downsampling; must be at least 3, since compacting fewer rows
+   * frees no space while the last row is always kept.
+   */
+  @Nonnull
+  public synchronized TrainingHistory setMaxRows(final int maxRows) {
+    if (maxRows < 3) throw new IllegalArgumentException(Integer.toString(maxRows));
+    this.maxRows = maxRows;
+    while (size > maxRows) compact();
+    return this;
+  }
+
+  /**
+   * Streams every appended step as a CSV row (header written before the first streamed row).
+   * Metrics must be declared with {@link #addMetric} before the first step to appear in the stream.
+   */
+  @Nonnull
+  public synchronized TrainingHistory setCsvSink(@Nullable final Writer sink) {
+    this.sink = sink;
+    this.sinkHeader = null != sink;
+    return this;
+  }
+
+  /**
+   * Opens a file as the CSV sink, closing any previous one. When appending to a non-empty file,
+   * such as when resuming from a checkpoint, the header is not repeated.
+   */
+  @Nonnull
+  public synchronized TrainingHistory openCsvSink(@Nonnull final File file, final boolean append) {
+    closeCsvSink();
+    final boolean header = !(append && file.length() > 0);
+    try {
+      setCsvSink(new BufferedWriter(new FileWriter(file, append)));
+    } catch (IOException e) {
+      throw Util.throwException(e);
+    }
+    sinkHeader = header;
+    return this;
+  }
+
+  public synchronized void closeCsvSink() {
+    if (null == sink) return;
+    try {
+      sink.close();
+    } catch (IOException e) {
+      throw Util.throwException(e);
+    } finally {
+      sink = null;
+      sinkHeader = false;
+    }
+  }
+
+  /**
+   * Declares a metric column; rows recorded before it was declared hold NaN.
+   */
+  @Nonnull
+  public synchronized TrainingHistory addMetric(@Nonnull final String name) {
+    if (!metrics.containsKey(name)) {
+      @Nonnull final double[] column = new double[iterations.length];
+      Arrays.fill(column, Double.NaN);
+      metrics.put(name, column);
+    }
+    return this;
+  }
+
+  @Nonnull
+  public synchronized List<String> getMetricNames() {
+    return new ArrayList<>(metrics.keySet());
+  }
+
+  @Override
+  public synchronized StepRecord get(final int index) {
+    if (index < 0 || index >= size) throw new IndexOutOfBoundsException(Integer.toString(index));
+    return new StepRecord(fitness[index], epochTimes[index], iterations[index]);
+  }
+
+  @Override
+  public synchronized int size() {
+    return size;
+  }
+
+  @Override
+  public boolean add(@Nonnull final StepRecord record) {
+    add(record.iteration, record.epochTime, record.fitness);
+    return true;
+  }
+
+  @Override
+  public void add(final int index, @Nonnull final StepRecord record) {
+    if (index != size()) throw new UnsupportedOperationException("Append only");
+    add(record);
+  }
+
+  public void add(final long iteration, final long epochTime, final double fitness) {
+    add(iteration, epochTime, fitness, Collections.emptyMap());
+  }
+
+  /**
+   * Appends a step with extra metric values; unknown metric names are declared as new columns.
+   */
+  public synchronized void add(final long iteration, final long epochTime, final double fitness,
+                               @Nonnull final Map<String, Double> values) {
+    for (final String name : values.keySet()) {
+      addMetric(name);
+    }
+    if (null != sink) writeRow(sink, iteration, epochTime, fitness, values);
+    final boolean keep = offered++ % stride == 0;
+    if (!provisionalTail) {
+      if (size >= maxRows) compact();
+      if (size == iterations.length) grow();
+      size++;
+    }
+    final int row = size - 1;
+    this.iterations[row] = iteration;
+    this.epochTimes[row] = epochTime;
+    this.fitness[row] = fitness;
+    for (final Map.Entry<String, double[]> entry : metrics.entrySet()) {
+      final Double value = values.get(entry.getKey());
+      entry.getValue()[row] = null == value ? Double.NaN : value;
+    }
+    provisionalTail = !keep;
+  }
+
+  @Override
+  public synchronized void clear() {
+    size = 0;
+    stride = 1;
+    offered = 0;
+    provisionalTail = false;
+  }
+
+  @Nonnull
+  public synchronized long[] getIterations() {
+    return Arrays.copyOf(iterations, size);
+  }
+
+  @Nonnull
+  public synchronized long[] getEpochTimes() {
+    return Arrays.copyOf(epochTimes, size);
+  }
+
+  @Nonnull
+  public synchronized double[] getFitness() {
+    return Arrays.copyOf(fitness, size);
+  }
+
+  @Nullable
+  public synchronized double[] getMetric(@Nonnull final String name) {
+    final double[] column = metrics.get(name);
+    return null == column ? null : Arrays.copyOf(column, size);
+  }
+
+  /**
+   * Points for plotting: {x, log10(fitness)} with x the iteration, or the seconds since the first
+   * step when byTime is set.
+   */
+  @Nonnull
+  public synchronized double[][] toPoints(final boolean byTime) {
+    @Nonnull final double[][] points = new double[size][];
+    for (int i = 0; i < size; i++) {
+      final double x = byTime ? (epochTimes[i] - epochTimes[0]) / 1000.0 : iterations[i];
+      points[i] = new double[]{x, Math.log10(fitness[i])};
+    }
+    return points;
+  }
+
+  /**
+   * Convergence plot of log10(fitness) against iteration, or against seconds when byTime is set,
+   * drawn from the columns without materializing step records.
+   */
+  @Nonnull
+  public PlotPanel plot(final boolean byTime) {
+    @Nonnull final Canvas canvas = new Canvas(new double[]{0, 0}, new double[]{1, 1});
+    canvas.add(ScatterPlot.of(toPoints(byTime)));
+    canvas.setTitle("Convergence Plot");
+    canvas.setAxisLabels(byTime ? "Time (s)" : "Iteration", "log10(Fitness)");
+    @Nonnull final PlotPanel plot = new PlotPanel(canvas);
+    plot.setSize(600, 400);
+    return plot;
+  }
+
+  public synchronized void writeCsv(@Nonnull final Writer out) throws IOException {
+    writeHeader(out);
+    @Nonnull final Map<String, Double> values = new HashMap<>();
+    for (int i = 0; i < size; i++) {
+      for (final Map.Entry<String, double[]> entry : metrics.entrySet()) {
+        values.put(entry.getKey(), entry.getValue()[i]);
+      }
+      writeRow(out, iterations[i], epochTimes[i], fitness[i], values);
+    }
+    out.flush();
+  }
+
+  public synchronized void writeBinary(@Nonnull final OutputStream stream) throws IOException {
+    @Nonnull final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+    out.writeInt(MAGIC);
+    out.writeInt(size);
+    out.writeInt(metrics.size());
+    for (final String name : metrics.keySet()) {
+      out.writeUTF(name);
+    }
+    for (int i = 0; i < size; i++) out.writeLong(iterations[i]);
+    for (int i = 0; i < size; i++) out.writeLong(epochTimes[i]);
+    for (int i = 0; i < size; i++) out.writeDouble(fitness[i]);
+    for (final double[] column : metrics.values()) {
+      for (int i = 0; i < size; i++) out.writeDouble(column[i]);
+    }
+    out.flush();
+  }
+
+  @Nonnull
+  public static TrainingHistory readBinary(@Nonnull final InputStream stream) throws IOException {
+    @Nonnull final DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+    if (MAGIC != in.readInt()) throw new IOException("Not a training history");
+    final int rows = in.readInt();
+    @Nonnull final String[] names = new String[in.readInt()];
+    for (int m = 0; m < names.length; m++) {
+      names[m] = in.readUTF();
+    }
+    @Nonnull final TrainingHistory history = new TrainingHistory(rows);
+    for (final String name : names) {
+      history.addMetric(name);
+    }
+    for (int i = 0; i < rows; i++) history.iterations[i] = in.readLong();
+    for (int i = 0; i < rows; i++) history.epochTimes[i] = in.readLong();
+    for (int i = 0; i < rows; i++) history.fitness[i] = in.readDouble();
+    for (final String name : names) {
+      final double[] column = history.metrics.get(name);
+      for (int i = 0; i < rows; i++) column[i] = in.readDouble();
+    }
+    history.size = rows;
+    history.offered = rows;
+    return history;
+  }
+
+  private void writeHeader(@Nonnull final Writer out) throws IOException {
+    out.write("iteration,epochTime,fitness");
+    for (final String name : metrics.keySet()) {
+      out.write(',');
+      out.write(name);
+    }
+    out.write('\n');
+  }
+
+  private void writeRow(@Nonnull final Writer out, final long iteration, final long epochTime, final double fitness,
+                        @Nonnull final Map<String, Double> values) {
+    try {
+      if (out == sink && sinkHeader) {
+        writeHeader(out);
+        sinkHeader = false;
+      }
+      out.write(Long.toString(iteration));
+      out.write(',');
+      out.write(Long.toString(epochTime));
+      out.write(',');
+      out.write(Double.toString(fitness));
+      for (final String name : metrics.keySet()) {
+        out.write(',');
+        final Double value = values.get(name);
+        if (null != value && !Double.isNaN(value)) out.write(Double.toString(value));
+      }
+      out.write('\n');
+      if (out == sink) out.flush();
+    } catch (IOException e) {
+      throw Util.throwException(e);
+    }
+  }
+
+  private void grow() {
+    final int capacity = Math.min(maxRows, Math.max(iterations.length + 1, iterations.length + (iterations.length >> 1)));
+    iterations = Arrays.copyOf(iterations, capacity);
+    epochTimes = Arrays.copyOf(epochTimes, capacity);
+    fitness = Arrays.copyOf(fitness, capacity);
+    for (final Map.Entry<String, double[]> entry : metrics.entrySet()) {
+      final double[] column = Arrays.copyOf(entry.getValue(), capacity);
+      Arrays.fill(column, entry.getValue().length, capacity, Double.NaN);
+      entry.setValue(column);
+    }
+  }
+
+  // Keeps the even rows and the last row, then doubles the stride for later steps
+  private void compact() {
+    int kept = 0;
+    for (int i = 0; i < size; i++) {
+      if (i % 2 != 0 && i != size - 1) continue;
+      iterations[kept] = iterations[i];
+      epochTimes[kept] = epochTimes[i];
+      fitness[kept] = fitness[i];
+      for (final double[] column : metrics.values()) {
+        column[kept] = column[i];
+      }
+      kept++;
+    }
+    size = kept;
+    stride *= 2;
+    provisionalTail = false;
+  }
+}
@@ -32,8 +32,10 @@ import com.simiacryptus.mindseye.opt.Step;
 import com.simiacryptus.mindseye.opt.TrainingMonitor;
 import com.simiacryptus.mindseye.opt.ValidatingTrainer;
 import com.simiacryptus.mindseye.test.GraphVizNetworkInspector;
-import com.simiacryptus.mindseye.test.StepRecord;
+import com.simiacryptus.mindseye.test.RandomSeeds;
 import com.simiacryptus.mindseye.test.TestUtil;
+import com.simiacryptus.mindseye.test.TrainingCheckpoint;
+import com.simiacryptus.mindseye.test.TrainingHistory;
 import com.simiacryptus.notebook.NotebookOutput;
 import com.simiacryptus.notebook.TableOutput;
 import com.simiacryptus.util.Util;
@@ -43,10 +45,9 @@ import guru.nidi.graphviz.engine.Graphviz;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.LinkedHashMap;
-import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 @SuppressWarnings("FieldCanBeLocal")
@@ -60,10 +61,17 @@ public class AutoencodingProblem implements Problem {
   private final int features;
   private final FwdNetworkFactory fwdFactory;
   @Nonnull
-  private final List<StepRecord> history = new ArrayList<>();
+  private final TrainingHistory history = new TrainingHistory();
   private final OptimizationStrategy optimizer;
   private final RevNetworkFactory revFactory;
   private int timeoutMinutes = 1;
+  private long seed = RandomSeeds.getSeed();
+  @Nullable
+  private File checkpointDirectory = null;
+  private boolean resume = false;
+  private int historyRows = 10000;
+  @Nullable
+  private File historyCsv = null;
 
   public AutoencodingProblem(final FwdNetworkFactory fwdFactory, final OptimizationStrategy optimizer,
                              final RevNetworkFactory revFactory, final ImageProblemData data, final int features, final double dropout) {
@@ -75,12 +83,62 @@ public class AutoencodingProblem implements Problem {
     this.dropout = dropout;
   }
 
+  @Nullable
+  public File getCheckpointDirectory() {
+    return checkpointDirectory;
+  }
+
+  @Nonnull
+  public AutoencodingProblem setCheckpointDirectory(@Nullable final File checkpointDirectory) {
+    this.checkpointDirectory = checkpointDirectory;
+    return this;
+  }
+
+  public int getHistoryRows() {
+    return historyRows;
+  }
+
+  /**
+   * Row limit of the in-memory training history; longer runs are downsampled.
+   */
+  @Nonnull
+  public AutoencodingProblem setHistoryRows(final int historyRows) {
+    this.historyRows = historyRows;
+    return this;
+  }
+
+  @Nullable
+  public File getHistoryCsv() {
+    return historyCsv;
+  }
+
+  /**
+   * File receiving every training step at full resolution, appended to when resuming.
+   */
+  @Nonnull
+  public AutoencodingProblem setHistoryCsv(@Nullable final File historyCsv) {
+    this.historyCsv = historyCsv;
+    return this;
+  }
+
   @Nonnull
   @Override
-  public List<StepRecord> getHistory() {
+  public TrainingHistory getHistory() {
     return history;
   }
 
+  @Override
+  public long getSeed() {
+    return seed;
+  }
+
+  @Nonnull
+  @Override
+  public AutoencodingProblem setSeed(final long seed) {
+    this.seed = seed;
+    return this;
+  }
+
   public int getTimeoutMinutes() {
     return timeoutMinutes;
   }
@@ -106,9 +164,25 @@ public class AutoencodingProblem implements Problem {
     return Integer.parseInt(label.replaceAll("[^\\d]", ""));
   }
 
+  @Nonnull
+  @Override
+  public AutoencodingProblem resume(@Nonnull final NotebookOutput log) {
+    resume = true;
+    try {
+      return run(log);
+    } finally {
+      resume = false;
+    }
+  }
+
   @Nonnull
   @Override
   public AutoencodingProblem run(@Nonnull final NotebookOutput log) {
+    return RandomSeeds.withSeed(seed, () -> train(log));
+  }
+
+  @Nonnull
+  private AutoencodingProblem train(@Nonnull final NotebookOutput log) {
 
     @Nonnull final DAGNetwork fwdNetwork = fwdFactory.imageToVector(log, features);
     @Nonnull final DAGNetwork revNetwork = revFactory.vectorToImage(log, features);
@@ -140,9 +214,18 @@ public class AutoencodingProblem implements Problem {
           .toImage();
     });
 
+    @Nullable final TrainingCheckpoint checkpoint = null == checkpointDirectory ? null : new TrainingCheckpoint(checkpointDirectory);
+    final boolean resumed = resume && null != checkpoint && checkpoint.restore(supervisedNetwork, history);
+    history.setMaxRows(historyRows);
+    if (null != historyCsv) history.openCsvSink(historyCsv, resumed);
+    if (resumed) {
+      log.p("Resumed from checkpoint at iteration " + checkpoint.getIteration());
+    }
     @Nonnull final TrainingMonitor monitor = new TrainingMonitor() {
       @Nonnull
-      TrainingMonitor inner = TestUtil.getMonitor(history);
+      TrainingMonitor inner = null == checkpoint
+          ? TestUtil.getMonitor(history)
+          : checkpoint.monitor(TestUtil.getMonitor(checkpoint.recorder(history)), supervisedNetwork, history);
 
       @Override
       public void log(final String msg) {
@@ -165,18 +248,30 @@ public class AutoencodingProblem implements Problem {
     @Nonnull final ValidatingTrainer trainer = optimizer.train(log,
         new SampledArrayTrainable(trainingData, supervisedNetwork, trainingData.length / 2, batchSize),
         new ArrayTrainable(trainingData, supervisedNetwork, batchSize), monitor);
-    log.run(() -> {
-      trainer.setTimeout(timeoutMinutes, TimeUnit.MINUTES);
-      ValidatingTrainer validatingTrainer = trainer.addRef();
-      validatingTrainer.setMaxIterations(10000);
-      validatingTrainer.addRef().run();
-    });
+    if (resumed) TrainingCheckpoint.resetOptimizer(trainer);
+    try {
+      log.run(() -> {
+        trainer.setTimeout(timeoutMinutes, TimeUnit.MINUTES);
+        ValidatingTrainer validatingTrainer = trainer.addRef();
+        validatingTrainer.setMaxIterations(10000);
+        validatingTrainer.addRef().run();
+      });
+    } finally {
+      if (null != checkpoint) {
+        try {
+          checkpoint.save(supervisedNetwork, history);
+        } finally {
+          checkpoint.close();
+        }
+      }
+      history.closeCsvSink();
+    }
     if (!history.isEmpty()) {
       log.eval(() -> {
-        return TestUtil.plot(history);
+        return history.plot(false);
       });
       log.eval(() -> {
-        return TestUtil.plotTime(history);
+        return history.plot(true);
       });
     }
     TestUtil.extractPerformance(log, supervisedNetwork);
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.test.integration;
+
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.ref.wrappers.RefStream;
+import com.simiacryptus.util.test.LabeledObject;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class CachedProblemData implements ImageProblemData {
+
+  private final ImageProblemData inner;
+  private final File directory;
+  private final String name;
+  @Nullable
+  private volatile LabeledTensorCache training = null;
+  @Nullable
+  private volatile LabeledTensorCache validation = null;
+
+  public CachedProblemData(final ImageProblemData inner, final String name) {
+    this(inner, new File("tensor_cache"), name);
+  }
+
+  public CachedProblemData(final ImageProblemData inner, final File directory, final String name) {
+    this.inner = inner;
+    this.directory = directory;
+    this.name = name;
+  }
+
+  @Nonnull
+  public LabeledTensorCache getTraining() {
+    if (null == training) {
+      synchronized (this) {
+        if (null == training) {
+          training = LabeledTensorCache.open(directory, name + "_train", () -> inner.trainingData());
+        }
+      }
+    }
+    return training;
+  }
+
+  @Nonnull
+  public LabeledTensorCache getValidation() {
+    if (null == validation) {
+      synchronized (this) {
+        if (null == validation) {
+          validation = LabeledTensorCache.open(directory, name + "_test", () -> inner.validationData());
+        }
+      }
+    }
+    return validation;
+  }
+
+  @Nonnull
+  @Override
+  public List<CharSequence> getLabels() {
+    return Stream.concat(getTraining().getLabels().stream(), getValidation().getLabels().stream())
+        .map(x -> (CharSequence) x).distinct().sorted().collect(Collectors.toList());
+  }
+
+  @Nonnull
+  @Override
+  public RefStream<LabeledObject<Tensor>> trainingData() {
+    return getTraining().stream();
+  }
+
+  @Nonnull
+  @Override
+  public RefStream<LabeledObject<Tensor>> validationData() {
+    return getValidation().stream();
+  }
+}
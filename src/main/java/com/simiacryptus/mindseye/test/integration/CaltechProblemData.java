@@ -23,16 +23,27 @@ import com.simiacryptus.mindseye.lang.Tensor;
 import com.simiacryptus.mindseye.test.data.Caltech101;
 import com.simiacryptus.mindseye.util.ImageUtil;
 import com.simiacryptus.ref.wrappers.RefStream;
+import com.simiacryptus.util.Util;
 import com.simiacryptus.util.test.LabeledObject;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.io.File;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
 
 public class CaltechProblemData implements ImageProblemData {
 
+  private static final Map<String, LabeledTensorCache> caches = new ConcurrentHashMap<>();
+  private static final Map<String, Object> cacheLocks = new ConcurrentHashMap<>();
   private final int imageSize;
+  @Nonnull
+  private File cacheDirectory = new File("tensor_cache");
+  private int decodeThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
   @Nullable
   private List<CharSequence> labels = null;
 
@@ -44,27 +55,74 @@ public class CaltechProblemData implements ImageProblemData {
     this.imageSize = imageSize;
   }
 
+  @Nonnull
+  public File getCacheDirectory() {
+    return cacheDirectory;
+  }
+
+  @Nonnull
+  public CaltechProblemData setCacheDirectory(@Nonnull final File cacheDirectory) {
+    this.cacheDirectory = cacheDirectory;
+    return this;
+  }
+
+  public int getDecodeThreads() {
+    return decodeThreads;
+  }
+
+  @Nonnull
+  public CaltechProblemData setDecodeThreads(final int decodeThreads) {
+    this.decodeThreads = decodeThreads;
+    return this;
+  }
+
   public int getImageSize() {
     return imageSize;
   }
 
   @Nullable
+  @Override
   public List<CharSequence> getLabels() {
     if (null == labels) {
       synchronized (this) {
         if (null == labels) {
-          labels = trainingData().map(x -> x.label).distinct().sorted().collect(Collectors.toList());
+          labels = getCache().getLabels().stream().map(x -> (CharSequence) x).sorted().collect(Collectors.toList());
         }
       }
     }
     return labels;
   }
 
+  /**
+   * The shared cache for this directory and image size. The decode runs under a per-key lock rather
+   * than inside the map update, so opening one cache does not block lookups of the others.
+   */
+  @Nonnull
+  public LabeledTensorCache getCache() {
+    final String key = cacheDirectory.getAbsolutePath() + File.separator + imageSize;
+    final LabeledTensorCache cached = caches.get(key);
+    if (null != cached) return cached;
+    synchronized (cacheLocks.computeIfAbsent(key, k -> new Object())) {
+      final LabeledTensorCache existing = caches.get(key);
+      if (null != existing) return existing;
+      @Nonnull final ForkJoinPool pool = new ForkJoinPool(decodeThreads);
+      try {
+        final LabeledTensorCache cache = pool.submit(() ->
+            LabeledTensorCache.open(cacheDirectory, "caltech101_" + imageSize, () -> decode(imageSize))).get();
+        caches.put(key, cache);
+        return cache;
+      } catch (InterruptedException | ExecutionException e) {
+        throw Util.throwException(e);
+      } finally {
+        pool.shutdown();
+      }
+    }
+  }
+
   @Nonnull
   @Override
   public RefStream<LabeledObject<Tensor>> trainingData() {
-    return Caltech101.trainingDataStream().parallel()
-        .map(x -> x.map(y -> Tensor.fromRGB(ImageUtil.resize(y.get(), getImageSize()))));
+    return getCache().stream();
   }
 
   @Nonnull
@@ -73,4 +131,10 @@ public class CaltechProblemData implements ImageProblemData {
     return trainingData();
   }
 
+  @Nonnull
+  protected RefStream<LabeledObject<Tensor>> decode(final int size) {
+    return Caltech101.trainingDataStream().parallel()
+        .map(x -> x.map(y -> Tensor.fromRGB(ImageUtil.resize(y.get(), size))));
+  }
+
 }
@@ -25,16 +25,19 @@ import com.simiacryptus.mindseye.lang.*;
 import com.simiacryptus.mindseye.layers.java.EntropyLossLayer;
 import com.simiacryptus.mindseye.network.DAGNetwork;
 import com.simiacryptus.mindseye.network.SimpleLossNetwork;
+import com.simiacryptus.mindseye.opt.Step;
 import com.simiacryptus.mindseye.opt.TrainingMonitor;
 import com.simiacryptus.mindseye.opt.ValidatingTrainer;
+import com.simiacryptus.mindseye.test.BatchedClassifier;
+import com.simiacryptus.mindseye.test.ClassificationMetrics;
 import com.simiacryptus.mindseye.test.GraphVizNetworkInspector;
-import com.simiacryptus.mindseye.test.StepRecord;
+import com.simiacryptus.mindseye.test.RandomSeeds;
 import com.simiacryptus.mindseye.test.TestUtil;
+import com.simiacryptus.mindseye.test.TrainingCheckpoint;
+import com.simiacryptus.mindseye.test.TrainingHistory;
 import com.simiacryptus.notebook.NotebookOutput;
 import com.simiacryptus.notebook.TableOutput;
 import com.simiacryptus.ref.lang.RefUtil;
-import com.simiacryptus.ref.wrappers.RefCollectors;
-import com.simiacryptus.ref.wrappers.RefLists;
 import com.simiacryptus.ref.wrappers.RefString;
 import com.simiacryptus.util.Util;
 import com.simiacryptus.util.test.LabeledObject;
@@ -51,9 +54,6 @@ import java.io.File;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
-import java.util.stream.Stream;
 
 public class ClassifyProblem implements Problem {
 
@@ -63,11 +63,19 @@ public class ClassifyProblem implements Problem {
   private final int categories;
   private final ImageProblemData data;
   private final FwdNetworkFactory fwdFactory;
-  private final List<StepRecord> history = new ArrayList<>();
+  private final TrainingHistory history = new TrainingHistory();
   private final OptimizationStrategy optimizer;
   private final List<CharSequence> labels;
   private int batchSize = 10000;
+  private int streamingWindow = 0;
   private int timeoutMinutes = 1;
+  private long seed = RandomSeeds.getSeed();
+  @Nullable
+  private File checkpointDirectory = null;
+  private boolean resume = false;
+  private int historyRows = 10000;
+  @Nullable
+  private File historyCsv = null;
 
   public ClassifyProblem(final FwdNetworkFactory fwdFactory, final OptimizationStrategy optimizer,
                          final ImageProblemData data, final int categories) {
@@ -76,8 +84,7 @@ public class ClassifyProblem implements Problem {
     this.data = data;
     this.categories = categories;
     try {
-      this.labels = Stream.concat(this.data.trainingData(), this.data.validationData()).map(x -> x.label).distinct()
-          .sorted().collect(Collectors.toList());
+      this.labels = this.data.getLabels();
     } catch (IOException e) {
       throw Util.throwException(e);
     }
@@ -93,12 +100,72 @@ public class ClassifyProblem implements Problem {
     return this;
   }
 
+  public int getStreamingWindow() {
+    return streamingWindow;
+  }
+
+  @Nonnull
+  public ClassifyProblem setStreamingWindow(final int streamingWindow) {
+    this.streamingWindow = streamingWindow;
+    return this;
+  }
+
+  @Nullable
+  public File getCheckpointDirectory() {
+    return checkpointDirectory;
+  }
+
+  @Nonnull
+  public ClassifyProblem setCheckpointDirectory(@Nullable final File checkpointDirectory) {
+    this.checkpointDirectory = checkpointDirectory;
+    return this;
+  }
+
+  public int getHistoryRows() {
+    return historyRows;
+  }
+
+  /**
+   * Row limit of the in-memory training history; longer runs are downsampled.
+   */
+  @Nonnull
+  public ClassifyProblem setHistoryRows(final int historyRows) {
+    this.historyRows = historyRows;
+    return this;
+  }
+
+  @Nullable
+  public File getHistoryCsv() {
+    return historyCsv;
+  }
+
+  /**
+   * File receiving every training step at full resolution, appended to when resuming.
+   */
+  @Nonnull
+  public ClassifyProblem setHistoryCsv(@Nullable final File historyCsv) {
+    this.historyCsv = historyCsv;
+    return this;
+  }
+
   @Nonnull
   @Override
-  public List<StepRecord> getHistory() {
+  public TrainingHistory getHistory() {
     return history;
   }
 
+  @Override
+  public long getSeed() {
+    return seed;
+  }
+
+  @Nonnull
+  @Override
+  public ClassifyProblem setSeed(final long seed) {
+    this.seed = seed;
+    return this;
+  }
+
   public int getTimeoutMinutes() {
     return timeoutMinutes;
   }
@@ -112,17 +179,20 @@ public class ClassifyProblem implements Problem {
   @Nonnull
   public Tensor[][] getTrainingData() {
     try {
-      return data.trainingData().map(labeledObject -> {
-        @Nonnull final Tensor categoryTensor = new Tensor(categories);
-        final int category = parse(labeledObject.label);
-        categoryTensor.set(category, 1);
-        return new Tensor[]{labeledObject.data, categoryTensor};
-      }).toArray(i -> new Tensor[i][]);
+      return data.trainingData().map(labeledObject -> toTrainingRow(labeledObject)).toArray(i -> new Tensor[i][]);
     } catch (@Nonnull final IOException e) {
       throw Util.throwException(e);
     }
   }
 
+  @Nonnull
+  public Tensor[] toTrainingRow(@Nonnull final LabeledObject<Tensor> labeledObject) {
+    @Nonnull final Tensor categoryTensor = new Tensor(categories);
+    final int category = parse(labeledObject.label);
+    categoryTensor.set(category, 1);
+    return new Tensor[]{labeledObject.data, categoryTensor};
+  }
+
   public int parse(final CharSequence label) {
     return this.labels.indexOf(label);
   }
@@ -133,17 +203,42 @@ public class ClassifyProblem implements Problem {
     Tensor tensor = data.get(0);
     data.freeRef();
     eval.freeRef();
-    return IntStream.range(0, categories).mapToObj(x -> x).sorted(Comparator.comparing(i -> -tensor.get(i)))
-        .mapToInt(x -> x).toArray();
+    final double[] signal = tensor.copyData();
+    tensor.freeRef();
+    return BatchedClassifier.topK(signal, categories);
+  }
+
+  @Nonnull
+  @Override
+  public ClassifyProblem resume(@Nonnull final NotebookOutput log) {
+    resume = true;
+    try {
+      return run(log);
+    } finally {
+      resume = false;
+    }
   }
 
   @Nonnull
   @Override
   public ClassifyProblem run(@Nonnull final NotebookOutput log) {
-    @Nonnull final TrainingMonitor monitor = TestUtil.getMonitor(history);
-    final Tensor[][] trainingData = getTrainingData();
+    return RandomSeeds.withSeed(seed, () -> train(log));
+  }
 
+  @Nonnull
+  private ClassifyProblem train(@Nonnull final NotebookOutput log) {
     @Nonnull final DAGNetwork network = fwdFactory.imageToVector(log, categories);
+    @Nullable final TrainingCheckpoint checkpoint = null == checkpointDirectory ? null : new TrainingCheckpoint(checkpointDirectory);
+    final boolean resumed = resume && null != checkpoint && checkpoint.restore(network, history);
+    history.setMaxRows(historyRows);
+    if (null != historyCsv) history.openCsvSink(historyCsv, resumed);
+    if (resumed) {
+      log.p("Resumed from checkpoint at iteration " + checkpoint.getIteration());
+    }
+    @Nonnull final TrainingMonitor monitor = null == checkpoint
+        ? TestUtil.getMonitor(history)
+        : checkpoint.monitor(TestUtil.getMonitor(checkpoint.recorder(history)), network, history);
+
     log.h3("Network Diagram");
     log.eval(() -> {
       return Graphviz.fromGraph(GraphVizNetworkInspector.toGraphviz(network)).height(400).width(600).render(Format.PNG).toImage();
@@ -152,29 +247,40 @@ public class ClassifyProblem implements Problem {
     log.h3("Training");
     @Nonnull final SimpleLossNetwork supervisedNetwork = new SimpleLossNetwork(network, new EntropyLossLayer());
     TestUtil.instrumentPerformance(supervisedNetwork);
-    int initialSampleSize = Math.max(trainingData.length / 5, Math.min(10, trainingData.length / 2));
-    @Nonnull final ValidatingTrainer trainer = optimizer.train(log,
-        new SampledArrayTrainable(trainingData, supervisedNetwork, initialSampleSize, getBatchSize()),
-        new ArrayTrainable(trainingData, supervisedNetwork, getBatchSize()), monitor);
-    log.run(() -> {
-      trainer.setTimeout(timeoutMinutes, TimeUnit.MINUTES);
-      ValidatingTrainer validatingTrainer = trainer.addRef();
-      validatingTrainer.setMaxIterations(10000);
-      validatingTrainer.addRef().run();
-    });
+    @Nonnull final ValidatingTrainer trainer = 0 < streamingWindow
+        ? streamingTrainer(log, supervisedNetwork, monitor)
+        : materializedTrainer(log, supervisedNetwork, monitor);
+    if (resumed) TrainingCheckpoint.resetOptimizer(trainer);
+    try {
+      log.run(() -> {
+        trainer.setTimeout(timeoutMinutes, TimeUnit.MINUTES);
+        ValidatingTrainer validatingTrainer = trainer.addRef();
+        validatingTrainer.setMaxIterations(10000);
+        validatingTrainer.addRef().run();
+      });
+    } finally {
+      if (null != checkpoint) {
+        try {
+          checkpoint.save(network, history);
+        } finally {
+          checkpoint.close();
+        }
+      }
+      history.closeCsvSink();
+    }
     if (!history.isEmpty()) {
       log.eval(() -> {
-        return TestUtil.plot(history);
+        return history.plot(false);
       });
       log.eval(() -> {
-        return TestUtil.plotTime(history);
+        return history.plot(true);
       });
     }
 
     @Nonnull
     String training_name = log.getFileName() + "_" + ClassifyProblem.modelNo++ + "_plot.png";
     try {
-      BufferedImage image = Util.toImage(TestUtil.plot(history));
+      BufferedImage image = Util.toImage(history.plot(false));
       if (null != image)
         ImageIO.write(image, "png", log.file(training_name));
     } catch (IOException e) {
@@ -188,43 +294,98 @@ public class ClassifyProblem implements Problem {
     log.p("Saved model as " + log.file(network.getJson().toString(), modelName, modelName));
 
     log.h3("Validation");
+    @Nonnull final ClassificationMetrics metrics = new ClassificationMetrics(categories, 5);
+    // The first mispredicted rows in source order, so the report does not depend on scheduling
+    @Nonnull final TreeMap<Integer, Map.Entry<LabeledObject<Tensor>, double[]>> mispredicted = new TreeMap<>();
+    log.run(() -> {
+      try {
+        new BatchedClassifier(network).classify(data.validationData(), (index, labeledObject, signal) -> {
+          if (metrics.accept(parse(labeledObject.label), signal)) return;
+          synchronized (mispredicted) {
+            mispredicted.put(index, new AbstractMap.SimpleImmutableEntry<>(labeledObject, signal));
+            if (mispredicted.size() > 10) mispredicted.pollLastEntry();
+          }
+        });
+      } catch (@Nonnull final IOException e) {
+        throw Util.throwException(e);
+      }
+    });
     log.p("If we apply our model against the entire validation dataset, we get this accuracy:");
     log.eval(() -> {
-      return data.validationData()
-          .mapToDouble(labeledObject -> predict(network, labeledObject)[0] == parse(labeledObject.label) ? 1 : 0)
-          .average().getAsDouble() * 100;
+      return metrics.getAccuracy();
+    });
+    log.p("Top-k accuracy:");
+    log.eval(() -> {
+      return metrics.topKTable();
+    });
+    log.p("Per-class precision and recall:");
+    log.eval(() -> {
+      return metrics.classTable(labels);
     });
+    if (categories <= 20) {
+      log.p("Confusion matrix (rows are actual classes, columns are predictions):");
+      log.eval(() -> {
+        return metrics.confusionTable(labels);
+      });
+    }
 
     log.p("Let's examine some incorrectly predicted results in more detail:");
     log.eval(() -> {
-      try {
-        @Nonnull final TableOutput table = new TableOutput();
-        RefLists.partition(data.validationData().collect(RefCollectors.toList()), 100).stream().flatMap(batch -> {
-          @Nonnull
-          TensorList batchIn = new TensorArray(batch.stream().map(x -> x.data).toArray(i1 -> new Tensor[i1]));
-          TensorList batchOut = network.eval(new ConstantResult(batchIn)).getData();
-          return IntStream.range(0, batchOut.length())
-              .mapToObj(i -> {
-                Tensor tensorout = batchOut.get(i);
-                LinkedHashMap<CharSequence, Object> row = toRow(log, batch.get(i), tensorout.copyData());
-                tensorout.freeRef();
-                return row;
-              });
-        }).filter(x -> null != x).limit(10).forEach(properties -> table.putRow(properties));
-        return table;
-      } catch (@Nonnull final IOException e) {
-        throw Util.throwException(e);
-      }
+      @Nonnull final TableOutput table = new TableOutput();
+      mispredicted.values().forEach(entry -> {
+        LinkedHashMap<CharSequence, Object> row = toRow(log, entry.getKey(), entry.getValue());
+        if (null != row) table.putRow(row);
+      });
+      return table;
     });
     return this;
   }
 
+  @Nonnull
+  protected ValidatingTrainer materializedTrainer(@Nonnull final NotebookOutput log, @Nonnull final Layer supervisedNetwork,
+                                                  @Nonnull final TrainingMonitor monitor) {
+    final Tensor[][] trainingData = getTrainingData();
+    int initialSampleSize = Math.max(trainingData.length / 5, Math.min(10, trainingData.length / 2));
+    return optimizer.train(log,
+        new SampledArrayTrainable(trainingData, supervisedNetwork, initialSampleSize, getBatchSize()),
+        new ArrayTrainable(trainingData, supervisedNetwork, getBatchSize()), monitor);
+  }
+
+  /**
+   * Trains on a window of the training stream that moves forward after every step, and validates
+   * against a fixed window taken from the start of the validation stream, so validation losses are
+   * comparable across iterations.
+   */
+  @Nonnull
+  protected ValidatingTrainer streamingTrainer(@Nonnull final NotebookOutput log, @Nonnull final Layer supervisedNetwork,
+                                               @Nonnull final TrainingMonitor monitor) {
+    @Nonnull final StreamingTrainingData training = new StreamingTrainingData(() -> data.trainingData(), x -> toTrainingRow(x));
+    @Nonnull final StreamingTrainingData validation = new StreamingTrainingData(() -> data.validationData(), x -> toTrainingRow(x));
+    @Nonnull final StreamingTrainingData.Window trainingWindow = training.window(streamingWindow);
+    int initialSampleSize = Math.max(streamingWindow / 5, Math.min(10, streamingWindow / 2));
+    SampledArrayTrainable validationSubject = new SampledArrayTrainable(validation.window(streamingWindow), supervisedNetwork,
+        streamingWindow, getBatchSize());
+    return optimizer.train(log,
+        new SampledArrayTrainable(trainingWindow, supervisedNetwork, initialSampleSize, getBatchSize()),
+        validationSubject, new TrainingMonitor() {
+          @Override
+          public void log(final String msg) {
+            monitor.log(msg);
+          }
+
+          @Override
+          public void onStepComplete(final Step currentPoint) {
+            monitor.onStepComplete(currentPoint);
+            trainingWindow.advance();
+          }
+        });
+  }
+
   @Nullable
   public LinkedHashMap<CharSequence, Object> toRow(@Nonnull final NotebookOutput log,
                                                    @Nonnull final LabeledObject<Tensor> labeledObject, final double[] predictionSignal) {
     final int actualCategory = parse(labeledObject.label);
-    final int[] predictionList = IntStream.range(0, categories).mapToObj(x -> x)
-        .sorted(Comparator.comparing(i -> -predictionSignal[i])).mapToInt(x -> x).toArray();
+    final int[] predictionList = BatchedClassifier.topK(predictionSignal, 3);
     if (predictionList[0] == actualCategory)
       return null; // We will only examine mispredicted rows
     @Nonnull final LinkedHashMap<CharSequence, Object> row = new LinkedHashMap<>();
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.test.integration;
+
+import com.simiacryptus.mindseye.test.ProblemRun;
+import com.simiacryptus.mindseye.test.StepRecord;
+import com.simiacryptus.notebook.NotebookOutput;
+import com.simiacryptus.notebook.NullNotebookOutput;
+import com.simiacryptus.ref.wrappers.RefString;
+import com.simiacryptus.util.Util;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Runs the trainings of an optimizer comparison concurrently. Each run executes inside its own
+ * ForkJoinPool sized to an equal share of the processors, so the parallel streams it starts stay
+ * within that thread budget instead of contending on the common pool. The runs are returned as
+ * ProblemRun series in the order they were added, ready for TestUtil.compare/compareTime.
+ * <p>
+ * NotebookOutput is not thread-safe, so when a report is given each run writes to its own
+ * sub-report. The runs take turns opening them in registration order, so the parent report gets
+ * one heading and sub-report link per run, in order, and is never written concurrently.
+ */
+public class ComparisonRunner {
+
+  @Nonnull
+  private final List<Entry> entries = new ArrayList<>();
+  private int concurrency = 0;
+  private int threadsPerRun = 0;
+
+  public int getConcurrency() {
+    return concurrency;
+  }
+
+  /**
+   * Number of runs executed at once; 0 (the default) runs all of them at once.
+   */
+  @Nonnull
+  public ComparisonRunner setConcurrency(final int concurrency) {
+    this.concurrency = concurrency;
+    return this;
+  }
+
+  public int getThreadsPerRun() {
+    return threadsPerRun;
+  }
+
+  /**
+   * Parallelism of each run's pool; 0 (the default) divides the processors evenly among the
+   * concurrent runs.
+   */
+  @Nonnull
+  public ComparisonRunner setThreadsPerRun(final int threadsPerRun) {
+    this.threadsPerRun = threadsPerRun;
+    return this;
+  }
+
+  @Nonnull
+  public ComparisonRunner add(@Nonnull final String name, @Nonnull final Color color,
+                              @Nonnull final Supplier<List<StepRecord>> run) {
+    return add(name, color, ProblemRun.PlotType.Line, run);
+  }
+
+  @Nonnull
+  public ComparisonRunner add(@Nonnull final String name, @Nonnull final Color color,
+                              @Nonnull final ProblemRun.PlotType type, @Nonnull final Supplier<List<StepRecord>> run) {
+    entries.add(new Entry(name, name, color, type, log -> run.get()));
+    return this;
+  }
+
+  /**
+   * Adds a run that writes to the report; it is given its own sub-report, introduced in the parent
+   * report by the given title.
+   */
+  @Nonnull
+  public ComparisonRunner add(@Nonnull final String name, @Nonnull final String title, @Nonnull final Color color,
+                              @Nonnull final Function<NotebookOutput, List<StepRecord>> run) {
+    entries.add(new Entry(name, title, color, ProblemRun.PlotType.Line, run));
+    return this;
+  }
+
+  @Nonnull
+  public List<ProblemRun> run() {
+    return run(null);
+  }
+
+  /**
+   * Runs every entry; with a null report the runs write to a NullNotebookOutput.
+   */
+  @Nonnull
+  public List<ProblemRun> run(@Nullable final NotebookOutput log) {
+    if (entries.isEmpty()) return new ArrayList<>();
+    final int concurrent = Math.min(entries.size(), concurrency > 0 ? concurrency : entries.size());
+    final int threads = threadsPerRun > 0 ? threadsPerRun
+        : Math.max(1, Runtime.getRuntime().availableProcessors() / concurrent);
+    @Nonnull final ExecutorService executor = Executors.newFixedThreadPool(concurrent, runnable -> {
+      final Thread thread = new Thread(runnable, "comparison-runner");
+      thread.setDaemon(true);
+      return thread;
+    });
+    try {
+      @Nonnull final List<Future<List<StepRecord>>> futures = new ArrayList<>();
+      @Nonnull final CountDownLatch[] opened = new CountDownLatch[entries.size()];
+      for (int i = 0; i < entries.size(); i++) {
+        final Entry entry = entries.get(i);
+        @Nullable final CountDownLatch previous = 0 == i ? null : opened[i - 1];
+        @Nonnull final CountDownLatch current = opened[i] = new CountDownLatch(1);
+        futures.add(executor.submit(() -> {
+          @Nonnull final ForkJoinPool pool = new ForkJoinPool(threads);
+          try {
+            return pool.submit(() -> report(log, entry, previous, current)).get();
+          } finally {
+            pool.shutdown();
+          }
+        }));
+      }
+      @Nonnull final List<ProblemRun> runs = new ArrayList<>();
+      for (int i = 0; i < entries.size(); i++) {
+        final Entry entry = entries.get(i);
+        try {
+          runs.add(new ProblemRun(entry.name, futures.get(i).get(), entry.color, entry.type));
+        } catch (ExecutionException e) {
+          throw new RuntimeException(RefString.format("Run %s failed", entry.name), e.getCause());
+        }
+      }
+      return runs;
+    } catch (InterruptedException e) {
+      throw Util.throwException(e);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Runs one entry in its own sub-report, which it opens only after the previous entry has opened
+   * its own; {@code opened} is released once this entry's sub-report exists or the entry fails.
+   */
+  private static List<StepRecord> report(@Nullable final NotebookOutput log, @Nonnull final Entry entry,
+                                         @Nullable final CountDownLatch previous, @Nonnull final CountDownLatch opened) {
+    if (null == log) {
+      opened.countDown();
+      return entry.run.apply(new NullNotebookOutput());
+    }
+    try {
+      if (null != previous) previous.await();
+      log.h2(entry.title);
+      return log.subreport(sub -> {
+        opened.countDown();
+        return entry.run.apply(sub);
+      }, entry.name);
+    } catch (InterruptedException e) {
+      throw Util.throwException(e);
+    } finally {
+      opened.countDown();
+    }
+  }
+
+  private static class Entry {
+    @Nonnull
+    final String name;
+    @Nonnull
+    final String title;
+    @Nonnull
+    final Color color;
+    @Nonnull
+    final ProblemRun.PlotType type;
+    @Nonnull
+    final Function<NotebookOutput, List<StepRecord>> run;
+
+    Entry(@Nonnull final String name, @Nonnull final String title, @Nonnull final Color color,
+          @Nonnull final ProblemRun.PlotType type, @Nonnull final Function<NotebookOutput, List<StepRecord>> run) {
+      this.name = name;
+      this.title = title;
+      this.color = color;
+      this.type = type;
+      this.run = run;
+    }
+  }
+}
@@ -29,37 +29,48 @@ import com.simiacryptus.mindseye.network.PipelineNetwork;
 import com.simiacryptus.mindseye.opt.TrainingMonitor;
 import com.simiacryptus.mindseye.opt.ValidatingTrainer;
 import com.simiacryptus.mindseye.test.GraphVizNetworkInspector;
-import com.simiacryptus.mindseye.test.StepRecord;
+import com.simiacryptus.mindseye.test.RandomSeeds;
 import com.simiacryptus.mindseye.test.TestUtil;
+import com.simiacryptus.mindseye.test.TrainingCheckpoint;
+import com.simiacryptus.mindseye.test.TrainingHistory;
 import com.simiacryptus.mindseye.util.ImageUtil;
 import com.simiacryptus.notebook.NotebookOutput;
 import com.simiacryptus.notebook.TableOutput;
 import com.simiacryptus.ref.wrappers.RefArrays;
 import com.simiacryptus.util.Util;
 import com.simiacryptus.util.data.ScalarStatistics;
+import com.simiacryptus.util.test.LabeledObject;
 import guru.nidi.graphviz.engine.Format;
 import guru.nidi.graphviz.engine.Graphviz;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.imageio.ImageIO;
+import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 public class EncodingProblem implements Problem {
 
   private static int modelNo = 0;
   private final ImageProblemData data;
-  private final List<StepRecord> history = new ArrayList<>();
+  private final TrainingHistory history = new TrainingHistory();
   private final OptimizationStrategy optimizer;
   private final RevNetworkFactory revFactory;
   private int batchSize = 10000;
   private int features;
   private int timeoutMinutes = 1;
+  private long seed = RandomSeeds.getSeed();
+  @Nullable
+  private File checkpointDirectory = null;
+  private boolean resume = false;
+  private int historyRows = 10000;
+  @Nullable
+  private File historyCsv = null;
   private int trainingSize = 15000;
 
   public EncodingProblem(final RevNetworkFactory revFactory, final OptimizationStrategy optimizer,
@@ -80,6 +91,44 @@ public class EncodingProblem implements Problem {
     return this;
   }
 
+  @Nullable
+  public File getCheckpointDirectory() {
+    return checkpointDirectory;
+  }
+
+  @Nonnull
+  public EncodingProblem setCheckpointDirectory(@Nullable final File checkpointDirectory) {
+    this.checkpointDirectory = checkpointDirectory;
+    return this;
+  }
+
+  public int getHistoryRows() {
+    return historyRows;
+  }
+
+  /**
+   * Row limit of the in-memory training history; longer runs are downsampled.
+   */
+  @Nonnull
+  public EncodingProblem setHistoryRows(final int historyRows) {
+    this.historyRows = historyRows;
+    return this;
+  }
+
+  @Nullable
+  public File getHistoryCsv() {
+    return historyCsv;
+  }
+
+  /**
+   * File receiving every training step at full resolution, appended to when resuming.
+   */
+  @Nonnull
+  public EncodingProblem setHistoryCsv(@Nullable final File historyCsv) {
+    this.historyCsv = historyCsv;
+    return this;
+  }
+
   public int getFeatures() {
     return features;
   }
@@ -92,10 +141,22 @@ public class EncodingProblem implements Problem {
 
   @Nonnull
   @Override
-  public List<StepRecord> getHistory() {
+  public TrainingHistory getHistory() {
     return history;
   }
 
+  @Override
+  public long getSeed() {
+    return seed;
+  }
+
+  @Nonnull
+  @Override
+  public EncodingProblem setSeed(final long seed) {
+    this.seed = seed;
+    return this;
+  }
+
   public int getTimeoutMinutes() {
     return timeoutMinutes;
   }
@@ -116,21 +177,38 @@ public class EncodingProblem implements Problem {
     return this;
   }
 
-  public double random() {
-    return 0.1 * (Math.random() - 0.5);
+  @Nonnull
+  @Override
+  public EncodingProblem resume(@Nonnull final NotebookOutput log) {
+    resume = true;
+    try {
+      return run(log);
+    } finally {
+      resume = false;
+    }
   }
 
   @Nonnull
   @Override
   public EncodingProblem run(@Nonnull final NotebookOutput log) {
-    @Nonnull final TrainingMonitor monitor = TestUtil.getMonitor(history);
+    return RandomSeeds.withSeed(seed, () -> train(log));
+  }
+
+  @Nonnull
+  private EncodingProblem train(@Nonnull final NotebookOutput log) {
     Tensor[][] trainingData;
     try {
-      trainingData = data.trainingData().map(labeledObject -> {
-        Tensor tensor = new Tensor(features);
-        tensor.set(() -> random());
-        return new Tensor[]{tensor.addRef(), labeledObject.data};
-      }).toArray(i -> new Tensor[i][]);
+      // Indexed by row and element, so the latent init does not depend on how the stream is scheduled
+      final long latent = RandomSeeds.mix(RandomSeeds.getSeed(), RandomSeeds.key("EncodingProblem.latent"));
+      final List<LabeledObject<Tensor>> rows = data.trainingData().collect(Collectors.toList());
+      trainingData = new Tensor[rows.size()][];
+      for (int row = 0; row < rows.size(); row++) {
+        @Nonnull final double[] values = new double[features];
+        for (int j = 0; j < features; j++) {
+          values[j] = 0.1 * (RandomSeeds.uniform(latent, (long) row * features + j) - 0.5);
+        }
+        trainingData[row] = new Tensor[]{new Tensor(values, features), rows.get(row).data};
+      }
     } catch (@Nonnull final IOException e) {
       throw Util.throwException(e);
     }
@@ -151,53 +229,80 @@ public class EncodingProblem implements Problem {
         trainingNetwork.add(nthPowerActivationLayer.addRef(),
             trainingNetwork.add(new MeanSqLossLayer(), image, trainingNetwork.getInput(1))))
         .freeRef();
-    log.h3("Training");
-    log.p("We start by training apply a very small population to improve initial convergence performance:");
-    TestUtil.instrumentPerformance(trainingNetwork);
-    @Nonnull final Tensor[][] primingData = RefArrays.copyOfRange(trainingData, 0, 1000);
-    SampledArrayTrainable sampledArrayTrainable1 = new SampledArrayTrainable(primingData, trainingNetwork, trainingSize, batchSize);
-    sampledArrayTrainable1.setMinSamples(trainingSize);
-    sampledArrayTrainable1.setMask(true, false);
-    @Nonnull final ValidatingTrainer preTrainer = optimizer.train(log,
-        sampledArrayTrainable1.addRef(),
-        new ArrayTrainable(primingData, trainingNetwork, batchSize), monitor);
-    log.run(() -> {
-      preTrainer.setTimeout(timeoutMinutes / 2, TimeUnit.MINUTES);
-      ValidatingTrainer validatingTrainer = preTrainer.addRef();
-      validatingTrainer.setMaxIterations(batchSize);
-      validatingTrainer.addRef().run();
-    });
-    TestUtil.extractPerformance(log, trainingNetwork);
-
-    log.p("Then our main training phase:");
-    TestUtil.instrumentPerformance(trainingNetwork);
-    SampledArrayTrainable sampledArrayTrainable = new SampledArrayTrainable(trainingData, trainingNetwork, trainingSize, batchSize);
-    sampledArrayTrainable.setMinSamples(trainingSize);
-    sampledArrayTrainable.setMask(true, false);
-    @Nonnull final ValidatingTrainer mainTrainer = optimizer.train(log,
-        sampledArrayTrainable,
-        new ArrayTrainable(trainingData, trainingNetwork, batchSize), monitor);
-    log.run(() -> {
-      mainTrainer.setTimeout(timeoutMinutes, TimeUnit.MINUTES);
-      ValidatingTrainer validatingTrainer = mainTrainer.addRef();
-      validatingTrainer.setMaxIterations(batchSize);
-      validatingTrainer.addRef().run();
-    });
-    TestUtil.extractPerformance(log, trainingNetwork);
+    @Nullable final TrainingCheckpoint checkpoint = null == checkpointDirectory ? null : new TrainingCheckpoint(checkpointDirectory);
+    boolean resumed = false;
+    if (null != checkpoint) {
+      checkpoint.addTensors("latent", RefArrays.stream(trainingData).map(row -> row[0]).toArray(i -> new Tensor[i]));
+      resumed = resume && checkpoint.restore(trainingNetwork, history);
+    }
+    history.setMaxRows(historyRows);
+    if (null != historyCsv) history.openCsvSink(historyCsv, resumed);
+    @Nonnull final TrainingMonitor monitor = null == checkpoint
+        ? TestUtil.getMonitor(history)
+        : checkpoint.monitor(TestUtil.getMonitor(checkpoint.recorder(history)), trainingNetwork, history);
+    try {
+      log.h3("Training");
+      if (resumed) {
+        log.p("Resumed from checkpoint at iteration " + checkpoint.getIteration() + ", skipping the priming phase.");
+      } else {
+        log.p("We start by training apply a very small population to improve initial convergence performance:");
+        TestUtil.instrumentPerformance(trainingNetwork);
+        @Nonnull final Tensor[][] primingData = RefArrays.copyOfRange(trainingData, 0, 1000);
+        SampledArrayTrainable sampledArrayTrainable1 = new SampledArrayTrainable(primingData, trainingNetwork, trainingSize, batchSize);
+        sampledArrayTrainable1.setMinSamples(trainingSize);
+        sampledArrayTrainable1.setMask(true, false);
+        @Nonnull final ValidatingTrainer preTrainer = optimizer.train(log,
+            sampledArrayTrainable1.addRef(),
+            new ArrayTrainable(primingData, trainingNetwork, batchSize), monitor);
+        log.run(() -> {
+          preTrainer.setTimeout(timeoutMinutes / 2, TimeUnit.MINUTES);
+          ValidatingTrainer validatingTrainer = preTrainer.addRef();
+          validatingTrainer.setMaxIterations(batchSize);
+          validatingTrainer.addRef().run();
+        });
+        TestUtil.extractPerformance(log, trainingNetwork);
+      }
+
+      log.p("Then our main training phase:");
+      TestUtil.instrumentPerformance(trainingNetwork);
+      SampledArrayTrainable sampledArrayTrainable = new SampledArrayTrainable(trainingData, trainingNetwork, trainingSize, batchSize);
+      sampledArrayTrainable.setMinSamples(trainingSize);
+      sampledArrayTrainable.setMask(true, false);
+      @Nonnull final ValidatingTrainer mainTrainer = optimizer.train(log,
+          sampledArrayTrainable,
+          new ArrayTrainable(trainingData, trainingNetwork, batchSize), monitor);
+      if (resumed) TrainingCheckpoint.resetOptimizer(mainTrainer);
+      log.run(() -> {
+        mainTrainer.setTimeout(timeoutMinutes, TimeUnit.MINUTES);
+        ValidatingTrainer validatingTrainer = mainTrainer.addRef();
+        validatingTrainer.setMaxIterations(batchSize);
+        validatingTrainer.addRef().run();
+      });
+      TestUtil.extractPerformance(log, trainingNetwork);
+    } finally {
+      if (null != checkpoint) {
+        try {
+          checkpoint.save(trainingNetwork, history);
+        } finally {
+          checkpoint.close();
+        }
+      }
+      history.closeCsvSink();
+    }
 
     if (!history.isEmpty()) {
       log.eval(() -> {
-        return TestUtil.plot(history);
+        return history.plot(false);
       });
       log.eval(() -> {
-        return TestUtil.plotTime(history);
+        return history.plot(true);
       });
     }
 
     try {
       @Nonnull
       String filename = log.getFileName() + EncodingProblem.modelNo++ + "_plot.png";
-      ImageIO.write(Util.toImage(TestUtil.plot(history)), "png", log.file(filename));
+      ImageIO.write(Util.toImage(history.plot(false)), "png", log.file(filename));
       log.addMetadata("result_plot", filename);
     } catch (IOException e) {
       throw Util.throwException(e);
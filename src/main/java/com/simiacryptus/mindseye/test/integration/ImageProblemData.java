@@ -24,8 +24,16 @@ import com.simiacryptus.ref.wrappers.RefStream;
 import com.simiacryptus.util.test.LabeledObject;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public interface ImageProblemData {
+  default List<CharSequence> getLabels() throws IOException {
+    return Stream.concat(trainingData(), validationData()).map(x -> (CharSequence) x.label).distinct().sorted()
+        .collect(Collectors.toList());
+  }
+
   RefStream<LabeledObject<Tensor>> trainingData() throws IOException;
 
   RefStream<LabeledObject<Tensor>> validationData() throws IOException;
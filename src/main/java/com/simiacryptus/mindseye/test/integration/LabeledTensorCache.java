@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.test.integration;
+
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.test.MappedTensorStore;
+import com.simiacryptus.ref.wrappers.RefIntStream;
+import com.simiacryptus.ref.wrappers.RefStream;
+import com.simiacryptus.ref.wrappers.RefString;
+import com.simiacryptus.util.Util;
+import com.simiacryptus.util.test.LabeledObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+public class LabeledTensorCache {
+  private static final Logger log = LoggerFactory.getLogger(LabeledTensorCache.class);
+
+  @Nonnull
+  private final MappedTensorStore store;
+  @Nonnull
+  private final String[] labelTable;
+  @Nonnull
+  private final int[] labelIndex;
+
+  private LabeledTensorCache(@Nonnull final MappedTensorStore store, @Nonnull final String[] labelTable,
+                             @Nonnull final int[] labelIndex) {
+    if (store.size() != labelIndex.length)
+      throw new IllegalStateException(store.size() + " != " + labelIndex.length);
+    this.store = store;
+    this.labelTable = labelTable;
+    this.labelIndex = labelIndex;
+  }
+
+  @Nonnull
+  public List<String> getLabels() {
+    return Collections.unmodifiableList(Arrays.asList(labelTable));
+  }
+
+  public int size() {
+    return store.size();
+  }
+
+  @Nonnull
+  public static LabeledTensorCache open(@Nonnull final File directory, @Nonnull final String name,
+                                        @Nonnull final StreamingTrainingData.Source source) {
+    @Nonnull final File dataFile = new File(directory, name + ".tensors");
+    @Nonnull final File labelFile = new File(directory, name + ".labels");
+    try {
+      if (!dataFile.exists() || !labelFile.exists()) {
+        build(directory, name, source.get(), dataFile, labelFile);
+      }
+      return load(dataFile, labelFile);
+    } catch (IOException e) {
+      throw Util.throwException(e);
+    }
+  }
+
+  @Nonnull
+  public LabeledObject<Tensor> get(final int index) {
+    return new LabeledObject<>(store.get(index), labelTable[labelIndex[index]]);
+  }
+
+  @Nonnull
+  public RefStream<LabeledObject<Tensor>> stream() {
+    return RefIntStream.range(0, size()).mapToObj(i -> get(i));
+  }
+
+  private static void build(@Nonnull final File directory, @Nonnull final String name,
+                            @Nonnull final RefStream<LabeledObject<Tensor>> source,
+                            @Nonnull final File dataFile, @Nonnull final File labelFile) throws IOException {
+    directory.mkdirs();
+    @Nonnull final File tmpData = new File(directory, name + ".tensors.tmp");
+    @Nonnull final File tmpLabels = new File(directory, name + ".labels.tmp");
+    final long startTime = System.currentTimeMillis();
+    @Nonnull final Map<String, Integer> labelCodes = new LinkedHashMap<>();
+    @Nonnull final List<Integer> codes = new ArrayList<>();
+    @Nonnull final MappedTensorStore.Writer[] writer = new MappedTensorStore.Writer[]{null};
+    try {
+      source.forEach(labeledObject -> {
+        synchronized (writer) {
+          if (null == writer[0]) writer[0] = MappedTensorStore.write(tmpData, labeledObject.data.getDimensions());
+          writer[0].add(labeledObject.data.getData());
+          codes.add(labelCodes.computeIfAbsent(labeledObject.label, x -> labelCodes.size()));
+        }
+      });
+    } finally {
+      if (null != writer[0]) writer[0].close();
+    }
+    if (null == writer[0]) throw new IllegalStateException("Empty source for " + name);
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpLabels)))) {
+      out.writeInt(labelCodes.size());
+      for (final String label : labelCodes.keySet()) {
+        out.writeUTF(label);
+      }
+      out.writeInt(codes.size());
+      for (final Integer code : codes) {
+        out.writeInt(code);
+      }
+    }
+    Files.move(tmpLabels.toPath(), labelFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    Files.move(tmpData.toPath(), dataFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    log.info(RefString.format("Cached %d items as %s in %.3fs", codes.size(), name,
+        (System.currentTimeMillis() - startTime) / 1000.0));
+  }
+
+  @Nonnull
+  private static LabeledTensorCache load(@Nonnull final File dataFile, @Nonnull final File labelFile) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(labelFile)))) {
+      @Nonnull final String[] table = new String[in.readInt()];
+      for (int i = 0; i < table.length; i++) {
+        table[i] = in.readUTF();
+      }
+      @Nonnull final int[] index = new int[in.readInt()];
+      for (int i = 0; i < index.length; i++) {
+        index[i] = in.readInt();
+      }
+      return new LabeledTensorCache(MappedTensorStore.open(dataFile), table, index);
+    }
+  }
+}
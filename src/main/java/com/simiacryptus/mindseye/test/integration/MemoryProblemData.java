@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.test.integration;
+
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.ref.wrappers.RefIntStream;
+import com.simiacryptus.ref.wrappers.RefStream;
+import com.simiacryptus.util.Util;
+import com.simiacryptus.util.test.LabeledObject;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Decodes another data source once and serves both splits from memory, so concurrent problems
+ * share one copy of the dataset. Each stream hands out its own reference to the shared tensors.
+ */
+public class MemoryProblemData implements ImageProblemData {
+
+  private final ImageProblemData inner;
+  @Nullable
+  private volatile List<LabeledObject<Tensor>> training = null;
+  @Nullable
+  private volatile List<LabeledObject<Tensor>> validation = null;
+
+  public MemoryProblemData(final ImageProblemData inner) {
+    this.inner = inner;
+  }
+
+  @Nonnull
+  public List<LabeledObject<Tensor>> getTraining() {
+    if (null == training) {
+      synchronized (this) {
+        if (null == training) {
+          training = load(true);
+        }
+      }
+    }
+    return training;
+  }
+
+  @Nonnull
+  public List<LabeledObject<Tensor>> getValidation() {
+    if (null == validation) {
+      synchronized (this) {
+        if (null == validation) {
+          validation = load(false);
+        }
+      }
+    }
+    return validation;
+  }
+
+  @Nonnull
+  @Override
+  public List<CharSequence> getLabels() {
+    return Stream.concat(getTraining().stream(), getValidation().stream()).map(x -> (CharSequence) x.label)
+        .distinct().sorted().collect(Collectors.toList());
+  }
+
+  @Nonnull
+  @Override
+  public RefStream<LabeledObject<Tensor>> trainingData() {
+    return stream(getTraining());
+  }
+
+  @Nonnull
+  @Override
+  public RefStream<LabeledObject<Tensor>> validationData() {
+    return stream(getValidation());
+  }
+
+  @Nonnull
+  private static RefStream<LabeledObject<Tensor>> stream(@Nonnull final List<LabeledObject<Tensor>> rows) {
+    return RefIntStream.range(0, rows.size()).mapToObj(i -> {
+      final LabeledObject<Tensor> row = rows.get(i);
+      return new LabeledObject<>(row.data.addRef(), row.label);
+    });
+  }
+
+  @Nonnull
+  private List<LabeledObject<Tensor>> load(final boolean trainingSplit) {
+    try {
+      // The source stream may be parallel; collect() is safe where forEach into a list is not
+      @Nonnull final List<LabeledObject<Tensor>> rows = (trainingSplit ? inner.trainingData() : inner.validationData())
+          .collect(Collectors.toList());
+      return Collections.unmodifiableList(rows);
+    } catch (IOException e) {
+      throw Util.throwException(e);
+    }
+  }
+}
@@ -19,16 +19,33 @@
 
 package com.simiacryptus.mindseye.test.integration;
 
-import com.simiacryptus.mindseye.test.StepRecord;
+import com.simiacryptus.mindseye.test.TrainingHistory;
 import com.simiacryptus.notebook.NotebookOutput;
 
 import javax.annotation.Nonnull;
-import java.util.List;
 
 public interface Problem {
   @Nonnull
-  List<StepRecord> getHistory();
+  TrainingHistory getHistory();
 
   @Nonnull
   Problem run(NotebookOutput log);
+
+  /**
+   * Seed for the random streams used while running: network initialization, latent vectors and
+   * data augmentation all derive from it through {@link com.simiacryptus.mindseye.test.RandomSeeds}.
+   */
+  long getSeed();
+
+  @Nonnull
+  Problem setSeed(long seed);
+
+  /**
+   * Runs the problem, continuing from the last checkpoint if one exists. Problems without
+   * checkpoint support start over.
+   */
+  @Nonnull
+  default Problem resume(NotebookOutput log) {
+    return run(log);
+  }
 }
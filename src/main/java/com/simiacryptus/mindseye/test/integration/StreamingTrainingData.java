@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.test.integration;
+
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.ref.wrappers.RefStream;
+import com.simiacryptus.util.Util;
+import com.simiacryptus.util.test.LabeledObject;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Feeds training rows to a SampledArrayTrainable without materializing the dataset.
+ * A {@link Window} holds the next block of rows read from a cursor over the source stream, which is
+ * closed and re-opened when exhausted. Row i of the window is the same row for every call until the
+ * window is advanced, so repeated resampling sees a consistent dataset; only the current block is
+ * resident.
+ * A window that is never advanced is a fixed subset, suitable for validation.
+ */
+public class StreamingTrainingData {
+
+  @Nonnull
+  private final Source source;
+  @Nonnull
+  private final Function<LabeledObject<Tensor>, Tensor[]> toRow;
+  @Nullable
+  private RefStream<LabeledObject<Tensor>> stream = null;
+  @Nullable
+  private Iterator<LabeledObject<Tensor>> cursor = null;
+
+  public StreamingTrainingData(@Nonnull final Source source, @Nonnull final Function<LabeledObject<Tensor>, Tensor[]> toRow) {
+    this.source = source;
+    this.toRow = toRow;
+  }
+
+  @Nonnull
+  public synchronized Tensor[] next() {
+    if (null == cursor || !cursor.hasNext()) {
+      open();
+      if (!cursor.hasNext()) throw new IllegalStateException("Empty training stream");
+    }
+    return toRow.apply(cursor.next());
+  }
+
+  @Nonnull
+  public Window window(final int size) {
+    if (size < 1) throw new IllegalArgumentException(Integer.toString(size));
+    return new Window(size);
+  }
+
+  private void open() {
+    if (null != stream) stream.close();
+    cursor = null;
+    try {
+      stream = source.get();
+    } catch (@Nonnull final IOException e) {
+      stream = null;
+      throw Util.throwException(e);
+    }
+    cursor = stream.iterator();
+  }
+
+  public interface Source {
+    RefStream<LabeledObject<Tensor>> get() throws IOException;
+  }
+
+  /**
+   * A block of consecutive stream rows addressed by index. Rows are read on first access and kept
+   * until {@link #advance()}; each supplier hands out its own references to the row's tensors.
+   */
+  public class Window extends AbstractList<Supplier<Tensor[]>> {
+    private final int size;
+    @Nullable
+    private Tensor[][] rows = null;
+
+    private Window(final int size) {
+      this.size = size;
+    }
+
+    @Override
+    public Supplier<Tensor[]> get(final int index) {
+      if (index < 0 || index >= size) throw new IndexOutOfBoundsException(Integer.toString(index));
+      return () -> row(index);
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    /**
+     * Releases the current block; the next access reads the following rows of the stream.
+     */
+    public synchronized void advance() {
+      if (null == rows) return;
+      for (final Tensor[] row : rows) {
+        for (final Tensor tensor : row) {
+          tensor.freeRef();
+        }
+      }
+      rows = null;
+    }
+
+    @Nonnull
+    private synchronized Tensor[] row(final int index) {
+      if (null == rows) {
+        rows = new Tensor[size][];
+        for (int i = 0; i < size; i++) {
+          rows[i] = next();
+        }
+      }
+      return Arrays.stream(rows[index]).map(tensor -> tensor.addRef()).toArray(i -> new Tensor[i]);
+    }
+  }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.test.integration;
+
+import com.simiacryptus.mindseye.test.ProblemRun;
+import com.simiacryptus.mindseye.test.StepRecord;
+import com.simiacryptus.notebook.NotebookOutput;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.awt.*;
+import java.util.List;
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Successive-halving search over a parameterized family of training runs. Each rung trains every
+ * surviving configuration with the rung's budget, scores it from its StepRecord history (lower is
+ * better) and promotes the best 1/eta to the next rung, whose budget is eta times larger.
+ * {@link #hyperband} repeats this over brackets that trade the number of configurations against
+ * the starting budget. Runs within a rung execute concurrently through a {@link ComparisonRunner}.
+ *
+ * @param <C> the configuration type
+ */
+public class SuccessiveHalving<C> {
+
+  @Nonnull
+  private final Trial<C> trial;
+  private int eta = 3;
+  private int minBudget = 1;
+  private int maxBudget = 9;
+  private int concurrency = 0;
+  @Nullable
+  private NotebookOutput log = null;
+  @Nonnull
+  private Function<C, String> describe = String::valueOf;
+  @Nonnull
+  private ToDoubleFunction<List<StepRecord>> score = SuccessiveHalving::minFitness;
+
+  public SuccessiveHalving(@Nonnull final Trial<C> trial) {
+    this.trial = trial;
+  }
+
+  public int getConcurrency() {
+    return concurrency;
+  }
+
+  /**
+   * Number of runs trained at once within a rung; 0 (the default) runs a whole rung at once.
+   */
+  @Nonnull
+  public SuccessiveHalving<C> setConcurrency(final int concurrency) {
+    this.concurrency = concurrency;
+    return this;
+  }
+
+  @Nullable
+  public NotebookOutput getLog() {
+    return log;
+  }
+
+  /**
+   * Report the trials write to, one sub-report per run; null (the default) discards their output.
+   */
+  @Nonnull
+  public SuccessiveHalving<C> setLog(@Nullable final NotebookOutput log) {
+    this.log = log;
+    return this;
+  }
+
+  @Nonnull
+  public SuccessiveHalving<C> setDescribe(@Nonnull final Function<C, String> describe) {
+    this.describe = describe;
+    return this;
+  }
+
+  public int getEta() {
+    return eta;
+  }
+
+  @Nonnull
+  public SuccessiveHalving<C> setEta(final int eta) {
+    if (eta < 2) throw new IllegalArgumentException(Integer.toString(eta));
+    this.eta = eta;
+    return this;
+  }
+
+  public int getMaxBudget() {
+    return maxBudget;
+  }
+
+  @Nonnull
+  public SuccessiveHalving<C> setMaxBudget(final int maxBudget) {
+    this.maxBudget = maxBudget;
+    return this;
+  }
+
+  public int getMinBudget() {
+    return minBudget;
+  }
+
+  @Nonnull
+  public SuccessiveHalving<C> setMinBudget(final int minBudget) {
+    if (minBudget < 1) throw new IllegalArgumentException(Integer.toString(minBudget));
+    this.minBudget = minBudget;
+    return this;
+  }
+
+  /**
+   * Scores a run history; lower is better. Defaults to the lowest recorded fitness.
+   */
+  @Nonnull
+  public SuccessiveHalving<C> setScore(@Nonnull final ToDoubleFunction<List<StepRecord>> score) {
+    this.score = score;
+    return this;
+  }
+
+  public static double minFitness(@Nonnull final List<StepRecord> history) {
+    return history.stream().mapToDouble(step -> step.fitness).min().orElse(Double.POSITIVE_INFINITY);
+  }
+
+  /**
+   * One successive-halving pass over the given configurations, from the minimum budget up to the
+   * maximum budget. Returns every evaluation, ordered by rung and then by score.
+   */
+  @Nonnull
+  public List<Evaluation<C>> run(@Nonnull final List<C> configurations) {
+    return run(configurations, minBudget);
+  }
+
+  /**
+   * Hyperband: runs successive halving in brackets s = smax..0, where bracket s starts
+   * ceil((smax + 1) / (s + 1) * eta^s) sampled configurations at budget maxBudget / eta^s.
+   */
+  @Nonnull
+  public List<Evaluation<C>> hyperband(@Nonnull final Supplier<C> sampler) {
+    final int smax = (int) Math.floor(Math.log((double) maxBudget / minBudget) / Math.log(eta) + 1e-9);
+    @Nonnull final List<Evaluation<C>> evaluations = new ArrayList<>();
+    for (int s = smax; s >= 0; s--) {
+      final int count = (int) Math.ceil((double) (smax + 1) / (s + 1) * Math.pow(eta, s));
+      @Nonnull final List<C> configurations = new ArrayList<>();
+      for (int i = 0; i < count; i++) {
+        configurations.add(sampler.get());
+      }
+      final int budget = Math.max(minBudget, (int) Math.round(maxBudget / Math.pow(eta, s)));
+      evaluations.addAll(run(configurations, budget));
+    }
+    return evaluations;
+  }
+
+  @Nullable
+  public static <C> Evaluation<C> best(@Nonnull final List<Evaluation<C>> evaluations) {
+    // Prefer the longest budget reached; compare scores only among runs at that budget
+    return evaluations.stream().max(Comparator.<Evaluation<C>>comparingInt(e -> e.budget)
+        .thenComparing(Comparator.<Evaluation<C>>comparingDouble(e -> e.score).reversed())).orElse(null);
+  }
+
+  @Nonnull
+  private List<Evaluation<C>> run(@Nonnull final List<C> configurations, final int startBudget) {
+    @Nonnull final List<Evaluation<C>> evaluations = new ArrayList<>();
+    @Nonnull List<C> survivors = new ArrayList<>(configurations);
+    int budget = startBudget;
+    while (!survivors.isEmpty()) {
+      @Nonnull final List<Evaluation<C>> rung = evaluate(survivors, budget);
+      evaluations.addAll(rung);
+      final int keep = survivors.size() / eta;
+      if (keep < 1 || budget >= maxBudget) break;
+      survivors = new ArrayList<>();
+      for (int i = 0; i < keep; i++) {
+        survivors.add(rung.get(i).configuration);
+      }
+      budget = Math.min(maxBudget, budget * eta);
+    }
+    return evaluations;
+  }
+
+  @Nonnull
+  private List<Evaluation<C>> evaluate(@Nonnull final List<C> configurations, final int budget) {
+    @Nonnull final ComparisonRunner runner = new ComparisonRunner().setConcurrency(concurrency);
+    for (final C configuration : configurations) {
+      final String name = describe.apply(configuration);
+      runner.add(name, name + " @ " + budget, Color.BLACK, runLog -> trial.run(runLog, configuration, budget));
+    }
+    final List<ProblemRun> runs = runner.run(log);
+    @Nonnull final List<Evaluation<C>> rung = new ArrayList<>();
+    for (int i = 0; i < configurations.size(); i++) {
+      final ProblemRun run = runs.get(i);
+      rung.add(new Evaluation<>(configurations.get(i), run.name, budget, score.applyAsDouble(run.history), run.history));
+    }
+    rung.sort(Comparator.comparingDouble(e -> e.score));
+    return rung;
+  }
+
+  /**
+   * Trains one configuration with the given budget, in the units the trial defines (for the
+   * integration problems, timeout minutes), and returns its history. Trials run concurrently, each
+   * writing only to the report it is given.
+   */
+  public interface Trial<C> {
+    @Nonnull
+    List<StepRecord> run(NotebookOutput log, C configuration, int budget);
+  }
+
+  public static class Evaluation<C> {
+    public final C configuration;
+    @Nonnull
+    public final String name;
+    public final int budget;
+    public final double score;
+    @Nonnull
+    public final List<StepRecord> history;
+
+    public Evaluation(final C configuration, @Nonnull final String name, final int budget, final double score,
+                      @Nonnull final List<StepRecord> history) {
+      this.configuration = configuration;
+      this.name = name;
+      this.budget = budget;
+      this.score = score;
+      this.history = history;
+    }
+
+    @Nonnull
+    public ProblemRun toProblemRun(@Nonnull final Color color) {
+      return new ProblemRun(name + "@" + budget, history, color, ProblemRun.PlotType.Line);
+    }
+  }
+}
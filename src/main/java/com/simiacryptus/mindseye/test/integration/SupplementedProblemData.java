@@ -20,25 +20,43 @@
 package com.simiacryptus.mindseye.test.integration;
 
 import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.test.RandomSeeds;
 import com.simiacryptus.notebook.NotebookOutput;
 import com.simiacryptus.ref.lang.RefUtil;
 import com.simiacryptus.ref.wrappers.*;
 import com.simiacryptus.util.test.LabeledObject;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.IOException;
-import java.util.Random;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
 
 public class SupplementedProblemData implements ImageProblemData {
 
   private final int expansion = 10;
   private final ImageProblemData inner;
-  private final Random random = new Random();
+  @Nullable
+  private Long seed = null;
 
   public SupplementedProblemData(final ImageProblemData inner) {
     this.inner = inner;
   }
 
+  /**
+   * The augmentation seed; unless set explicitly, the RandomSeeds seed in effect on the calling thread.
+   */
+  public long getSeed() {
+    return null == seed ? RandomSeeds.getSeed() : seed;
+  }
+
+  @Nonnull
+  public SupplementedProblemData setSeed(final long seed) {
+    this.seed = seed;
+    return this;
+  }
+
   public static void printSample(@Nonnull final NotebookOutput log, final Tensor[][] expanded, final int size) {
     @Nonnull final RefArrayList<Tensor[]> list = new RefArrayList<>(RefArrays.asList(expanded));
     RefCollections.shuffle(list);
@@ -48,37 +66,64 @@ public class SupplementedProblemData implements ImageProblemData {
   }
 
   @Nonnull
-  protected static Tensor addNoise(@Nonnull final Tensor tensor) {
-    return tensor.mapParallel(v -> Math.random() < 0.9 ? v : v + Math.random() * 100);
+  protected static Tensor addNoise(@Nonnull final Tensor tensor, @Nonnull final SplittableRandom random) {
+    final double[] data = tensor.getData();
+    for (int i = 0; i < data.length; i++) {
+      if (random.nextDouble() >= 0.9) data[i] += random.nextDouble() * 100;
+    }
+    return tensor;
   }
 
   @Nonnull
   protected static Tensor translate(final int dx, final int dy, @Nonnull final Tensor tensor) {
-    final int sx = tensor.getDimensions()[0];
-    final int sy = tensor.getDimensions()[1];
-    return new Tensor(tensor.coordStream(true).mapToDouble(c -> {
-      final int x = c.getCoords()[0] + dx;
-      final int y = c.getCoords()[1] + dy;
-      if (x < 0 || x >= sx) {
-        return 0.0;
-      } else if (y < 0 || y >= sy) {
-        return 0.0;
-      } else {
-        return tensor.get(x, y);
+    final int[] dimensions = tensor.getDimensions();
+    final double[] in = tensor.getData();
+    final int sx = dimensions[0];
+    final int sy = dimensions.length > 1 ? dimensions[1] : 1;
+    final int bands = in.length / (sx * sy);
+    final double[] out = new double[in.length];
+    for (int b = 0; b < bands; b++) {
+      for (int y = Math.max(0, -dy); y < Math.min(sy, sy - dy); y++) {
+        final int outRow = sx * (y + sy * b);
+        final int inRow = sx * (y + dy + sy * b);
+        for (int x = Math.max(0, -dx); x < Math.min(sx, sx - dx); x++) {
+          out[outRow + x] = in[inRow + x + dx];
+        }
       }
-    }).toArray(), tensor.getDimensions());
+    }
+    return new Tensor(out, dimensions);
+  }
+
+  @Nonnull
+  public Tensor augment(@Nonnull final LabeledObject<Tensor> labeledObject, final int variant) {
+    return augment(labeledObject, getSeed(), variant);
+  }
+
+  @Nonnull
+  protected static Tensor augment(@Nonnull final LabeledObject<Tensor> labeledObject, final long seed, final int variant) {
+    final long sampleKey = 31L * labeledObject.label.hashCode() + Arrays.hashCode(labeledObject.data.getData());
+    @Nonnull final SplittableRandom random = new SplittableRandom(RandomSeeds.mix(RandomSeeds.mix(seed, sampleKey), variant));
+    final int dx = random.nextInt(10) - 5;
+    final int dy = random.nextInt(10) - 5;
+    return SupplementedProblemData.addNoise(SupplementedProblemData.translate(dx, dy, labeledObject.data), random);
+  }
+
+  @Override
+  public List<CharSequence> getLabels() throws IOException {
+    return inner.getLabels();
   }
 
+  /**
+   * Yields {@code expansion} augmented variants of every source sample. Variants are computed as the
+   * stream is consumed, so the expanded dataset is never materialized at once.
+   */
   @Nonnull
   @Override
   public RefStream<LabeledObject<Tensor>> trainingData() throws IOException {
-    return inner.trainingData().flatMap(labeledObject -> {
-      return RefIntStream.range(0, expansion).mapToObj(i -> {
-        final int dx = random.nextInt(10) - 5;
-        final int dy = random.nextInt(10) - 5;
-        return SupplementedProblemData.addNoise(SupplementedProblemData.translate(dx, dy, labeledObject.data));
-      }).map(t -> new LabeledObject<>(t, labeledObject.label));
-    });
+    // Resolved on the calling thread, where a problem run's seed is in effect
+    final long seed = getSeed();
+    return inner.trainingData().flatMap(labeledObject -> RefIntStream.range(0, expansion)
+        .mapToObj(variant -> new LabeledObject<>(augment(labeledObject, seed, variant), labeledObject.label)));
   }
 
   @Override
@@ -37,6 +37,7 @@ public abstract class AllTrainingTests extends NotebookTestBase {
   protected final RevNetworkFactory revFactory;
   protected int timeoutMinutes = 10;
   protected int batchSize = 1000;
+  protected int streamingWindow = 0;
 
   public AllTrainingTests(final FwdNetworkFactory fwdFactory, final RevNetworkFactory revFactory,
                           final OptimizationStrategy optimizationStrategy) {
@@ -75,7 +76,7 @@ public abstract class AllTrainingTests extends NotebookTestBase {
     log.h1(getDatasetName() + " Denoising Autoencoder");
     intro(log);
     new ClassifyProblem(fwdFactory, optimizationStrategy, getData(), 100).setBatchSize(batchSize)
-        .setTimeoutMinutes(timeoutMinutes).run(log);
+        .setStreamingWindow(streamingWindow).setTimeoutMinutes(timeoutMinutes).run(log);
   }
 
   @Test
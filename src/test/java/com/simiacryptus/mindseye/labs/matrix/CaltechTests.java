@@ -23,6 +23,7 @@ import com.simiacryptus.mindseye.layers.cudnn.PoolingLayer;
 import com.simiacryptus.mindseye.layers.cudnn.conv.ConvolutionLayer;
 import com.simiacryptus.mindseye.layers.java.*;
 import com.simiacryptus.mindseye.network.PipelineNetwork;
+import com.simiacryptus.mindseye.test.RandomSeeds;
 import com.simiacryptus.mindseye.test.data.Caltech101;
 import com.simiacryptus.mindseye.test.integration.*;
 import com.simiacryptus.notebook.NotebookOutput;
@@ -41,7 +42,8 @@ public class CaltechTests {
       @Nonnull final PipelineNetwork network = new PipelineNetwork();
 
       @Nonnull
-      IntToDoubleFunction weights = i -> 1e-8 * (Math.random() - 0.5);
+      IntToDoubleFunction random = RandomSeeds.uniform("CaltechTests.fwd_conv_1.0");
+      IntToDoubleFunction weights = i -> 1e-8 * (random.applyAsDouble(i) - 0.5);
       ConvolutionLayer convolutionLayer3 = new ConvolutionLayer(3, 3, 3, 10);
       convolutionLayer3.set(weights);
       network.add(convolutionLayer3.addRef()).freeRef();
@@ -103,7 +105,8 @@ public class CaltechTests {
       @Nonnull final PipelineNetwork network = new PipelineNetwork();
 
       @Nonnull
-      IntToDoubleFunction weights = i -> 1e-8 * (Math.random() - 0.5);
+      IntToDoubleFunction random = RandomSeeds.uniform("CaltechTests.rev_conv_1.0");
+      IntToDoubleFunction weights = i -> 1e-8 * (random.applyAsDouble(i) - 0.5);
       FullyConnectedLayer fullyConnectedLayer = new FullyConnectedLayer(new int[]{features}, new int[]{4, 4, 40});
       fullyConnectedLayer.set(weights);
       network.add(fullyConnectedLayer.addRef()).freeRef();
@@ -161,6 +164,7 @@ public class CaltechTests {
                              final FwdNetworkFactory fwdFactory) {
       super(fwdFactory, revFactory, optimizationStrategy);
       batchSize = 10;
+      streamingWindow = 1000;
     }
 
     @Nonnull
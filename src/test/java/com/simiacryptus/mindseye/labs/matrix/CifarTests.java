@@ -26,11 +26,13 @@ import com.simiacryptus.mindseye.layers.java.FullyConnectedLayer;
 import com.simiacryptus.mindseye.layers.java.ReLuActivationLayer;
 import com.simiacryptus.mindseye.layers.java.SoftmaxLayer;
 import com.simiacryptus.mindseye.network.PipelineNetwork;
+import com.simiacryptus.mindseye.test.RandomSeeds;
 import com.simiacryptus.mindseye.test.data.CIFAR10;
 import com.simiacryptus.mindseye.test.integration.*;
 import com.simiacryptus.notebook.NotebookOutput;
 
 import javax.annotation.Nonnull;
+import java.util.function.IntToDoubleFunction;
 
 public class CifarTests {
 
@@ -40,7 +42,8 @@ public class CifarTests {
     return log.eval(() -> {
       @Nonnull final PipelineNetwork network = new PipelineNetwork();
       ConvolutionLayer convolutionLayer = new ConvolutionLayer(3, 3, 3, 5);
-      convolutionLayer.set(i -> 1e-8 * (Math.random() - 0.5));
+      IntToDoubleFunction random = RandomSeeds.uniform("CifarTests.fwd_conv_1.0");
+      convolutionLayer.set(i -> 1e-8 * (random.applyAsDouble(i) - 0.5));
       network.add(convolutionLayer.addRef());
       PoolingLayer poolingLayer = new PoolingLayer();
       poolingLayer.setMode(PoolingLayer.PoolingMode.Max);
@@ -48,7 +51,8 @@ public class CifarTests {
       network.add(new ReLuActivationLayer());
       network.add(new BiasLayer(16, 16, 5));
       FullyConnectedLayer fullyConnectedLayer = new FullyConnectedLayer(new int[]{16, 16, 5}, new int[]{features});
-      fullyConnectedLayer.set(() -> 0.001 * (Math.random() - 0.45));
+      IntToDoubleFunction random1 = RandomSeeds.uniform("CifarTests.fwd_conv_1.1");
+      fullyConnectedLayer.set(i -> 0.001 * (random1.applyAsDouble(i) - 0.45));
       network.add(fullyConnectedLayer.addRef());
       network.add(new SoftmaxLayer());
       return network;
@@ -61,7 +65,8 @@ public class CifarTests {
       @Nonnull final PipelineNetwork network = new PipelineNetwork();
       network.add(new BiasLayer(32, 32, 3));
       FullyConnectedLayer fullyConnectedLayer = new FullyConnectedLayer(new int[]{32, 32, 3}, new int[]{features});
-      fullyConnectedLayer.set(() -> 0.001 * (Math.random() - 0.45));
+      IntToDoubleFunction random = RandomSeeds.uniform("CifarTests.fwd_linear_1.0");
+      fullyConnectedLayer.set(i -> 0.001 * (random.applyAsDouble(i) - 0.45));
       network.add(fullyConnectedLayer.addRef());
       network.add(new SoftmaxLayer());
       return network;
@@ -73,11 +78,13 @@ public class CifarTests {
     return log.eval(() -> {
       @Nonnull final PipelineNetwork network = new PipelineNetwork();
       FullyConnectedLayer fullyConnectedLayer = new FullyConnectedLayer(new int[]{features}, new int[]{32, 32, 5});
-      fullyConnectedLayer.set(() -> 0.25 * (Math.random() - 0.5));
+      IntToDoubleFunction random = RandomSeeds.uniform("CifarTests.rev_conv_1.0");
+      fullyConnectedLayer.set(i -> 0.25 * (random.applyAsDouble(i) - 0.5));
       network.add(fullyConnectedLayer.addRef());
       network.add(new ReLuActivationLayer());
       ConvolutionLayer convolutionLayer = new ConvolutionLayer(3, 3, 5, 3);
-      convolutionLayer.set(i -> 1e-8 * (Math.random() - 0.5));
+      IntToDoubleFunction random1 = RandomSeeds.uniform("CifarTests.rev_conv_1.1");
+      convolutionLayer.set(i -> 1e-8 * (random1.applyAsDouble(i) - 0.5));
       network.add(convolutionLayer.addRef());
       network.add(new BiasLayer(32, 32, 3));
       network.add(new ReLuActivationLayer());
@@ -90,7 +97,8 @@ public class CifarTests {
     return log.eval(() -> {
       @Nonnull final PipelineNetwork network = new PipelineNetwork();
       FullyConnectedLayer fullyConnectedLayer = new FullyConnectedLayer(new int[]{features}, new int[]{32, 32, 3});
-      fullyConnectedLayer.set(() -> 0.25 * (Math.random() - 0.5));
+      IntToDoubleFunction random = RandomSeeds.uniform("CifarTests.rev_linear_1.0");
+      fullyConnectedLayer.set(i -> 0.25 * (random.applyAsDouble(i) - 0.5));
       network.add(fullyConnectedLayer.addRef());
       network.add(new BiasLayer(32, 32, 3));
       return network;
@@ -106,7 +114,7 @@ public class CifarTests {
     @Nonnull
     @Override
     public ImageProblemData getData() {
-      return new CIFARProblemData();
+      return new CachedProblemData(new CIFARProblemData(), "cifar10");
     }
 
     @Nonnull
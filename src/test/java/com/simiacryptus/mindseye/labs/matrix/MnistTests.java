@@ -23,12 +23,14 @@ import com.simiacryptus.mindseye.layers.cudnn.PoolingLayer;
 import com.simiacryptus.mindseye.layers.cudnn.conv.ConvolutionLayer;
 import com.simiacryptus.mindseye.layers.java.*;
 import com.simiacryptus.mindseye.network.PipelineNetwork;
+import com.simiacryptus.mindseye.test.RandomSeeds;
 import com.simiacryptus.mindseye.test.data.MNIST;
 import com.simiacryptus.mindseye.test.integration.*;
 import com.simiacryptus.notebook.NotebookOutput;
 
 import javax.annotation.Nonnull;
-import java.util.function.DoubleSupplier;
+import java.util.function.Function;
+import java.util.function.IntToDoubleFunction;
 
 public class MnistTests {
   @Nonnull
@@ -37,14 +39,16 @@ public class MnistTests {
     return log.eval(() -> {
       @Nonnull final PipelineNetwork network = new PipelineNetwork();
       ConvolutionLayer convolutionLayer1 = new ConvolutionLayer(5, 5, 1, 32);
-      convolutionLayer1.set(i1 -> 1e-8 * (Math.random() - 0.5));
+      IntToDoubleFunction random = RandomSeeds.uniform("MnistTests.fwd_conv_1.0");
+      convolutionLayer1.set(i1 -> 1e-8 * (random.applyAsDouble(i1) - 0.5));
       network.add(convolutionLayer1.addRef());
       network.add(new ImgBandBiasLayer(32));
       PoolingLayer poolingLayer1 = new PoolingLayer();
       poolingLayer1.setMode(PoolingLayer.PoolingMode.Max);
       network.add(poolingLayer1.addRef());
       ConvolutionLayer convolutionLayer = new ConvolutionLayer(5, 5, 32, 64);
-      convolutionLayer.set(i -> 1e-8 * (Math.random() - 0.5));
+      IntToDoubleFunction random1 = RandomSeeds.uniform("MnistTests.fwd_conv_1.1");
+      convolutionLayer.set(i -> 1e-8 * (random1.applyAsDouble(i) - 0.5));
       network.add(convolutionLayer.addRef());
       network.add(new ImgBandBiasLayer(64));
       PoolingLayer poolingLayer = new PoolingLayer();
@@ -52,13 +56,15 @@ public class MnistTests {
       network.add(poolingLayer.addRef());
       network.add(new ReLuActivationLayer());
       FullyConnectedLayer fullyConnectedLayer1 = new FullyConnectedLayer(new int[]{7, 7, 64}, new int[]{1024});
-      fullyConnectedLayer1.set(() -> 0.001 * (Math.random() - 0.45));
+      IntToDoubleFunction random2 = RandomSeeds.uniform("MnistTests.fwd_conv_1.2");
+      fullyConnectedLayer1.set(i -> 0.001 * (random2.applyAsDouble(i) - 0.45));
       network.add(fullyConnectedLayer1.addRef());
       network.add(new BiasLayer(1024));
       network.add(new ReLuActivationLayer());
       network.add(new DropoutNoiseLayer(0.5));
       FullyConnectedLayer fullyConnectedLayer = new FullyConnectedLayer(new int[]{1024}, new int[]{features});
-      fullyConnectedLayer.set(() -> 0.001 * (Math.random() - 0.45));
+      IntToDoubleFunction random3 = RandomSeeds.uniform("MnistTests.fwd_conv_1.3");
+      fullyConnectedLayer.set(i -> 0.001 * (random3.applyAsDouble(i) - 0.45));
       network.add(fullyConnectedLayer.addRef());
       network.add(new BiasLayer(features));
       network.add(new SoftmaxLayer());
@@ -74,11 +80,14 @@ public class MnistTests {
       double weight = 1e-3;
 
       network.add(new NormalizationMetaLayer());
-      @Nonnull
-      DoubleSupplier init = () -> weight * (Math.random() - 0.5);
+      // One indexed stream per layer, so parallel initializers give the same weights on every run
+      final Function<String, IntToDoubleFunction> init = key -> {
+        final IntToDoubleFunction random = RandomSeeds.uniform("MnistTests.fwd_conv_1_n." + key);
+        return i -> weight * (random.applyAsDouble(i) - 0.5);
+      };
 
       ConvolutionLayer convolutionLayer1 = new ConvolutionLayer(5, 5, 1, 32);
-      convolutionLayer1.set(init);
+      convolutionLayer1.set(init.apply("0"));
       network.add(convolutionLayer1);
       network.add(new ImgBandBiasLayer(32));
       network.add(new NormalizationMetaLayer());
@@ -86,7 +95,7 @@ public class MnistTests {
       poolingLayer1.setMode(PoolingLayer.PoolingMode.Max);
       network.add(poolingLayer1.addRef());
       ConvolutionLayer convolutionLayer = new ConvolutionLayer(5, 5, 32, 64);
-      convolutionLayer.set(init);
+      convolutionLayer.set(init.apply("1"));
       network.add(convolutionLayer);
       network.add(new ImgBandBiasLayer(64));
       PoolingLayer poolingLayer = new PoolingLayer();
@@ -95,14 +104,14 @@ public class MnistTests {
       network.add(new ReLuActivationLayer());
       network.add(new NormalizationMetaLayer());
       FullyConnectedLayer fullyConnectedLayer1 = new FullyConnectedLayer(new int[]{4, 4, 64}, new int[]{1024});
-      fullyConnectedLayer1.set(init);
+      fullyConnectedLayer1.set(init.apply("2"));
       network.add(fullyConnectedLayer1.addRef());
       network.add(new BiasLayer(1024));
       network.add(new ReLuActivationLayer());
       network.add(new NormalizationMetaLayer());
       network.add(new DropoutNoiseLayer(0.5));
       FullyConnectedLayer fullyConnectedLayer = new FullyConnectedLayer(new int[]{1024}, new int[]{features});
-      fullyConnectedLayer.set(init);
+      fullyConnectedLayer.set(init.apply("3"));
       network.add(fullyConnectedLayer.addRef());
       network.add(new BiasLayer(features));
       network.add(new SoftmaxLayer());
@@ -118,7 +127,8 @@ public class MnistTests {
       @Nonnull final PipelineNetwork network = new PipelineNetwork();
       network.add(new BiasLayer(28, 28, 1));
       FullyConnectedLayer fullyConnectedLayer = new FullyConnectedLayer(new int[]{28, 28, 1}, new int[]{features});
-      fullyConnectedLayer.set(() -> 0.001 * (Math.random() - 0.45));
+      IntToDoubleFunction random = RandomSeeds.uniform("MnistTests.fwd_linear_1.0");
+      fullyConnectedLayer.set(i -> 0.001 * (random.applyAsDouble(i) - 0.45));
       network.add(fullyConnectedLayer.addRef());
       network.add(new SoftmaxLayer());
       return network;
@@ -130,33 +140,39 @@ public class MnistTests {
     return log.eval(() -> {
       @Nonnull final PipelineNetwork network = new PipelineNetwork();
       FullyConnectedLayer fullyConnectedLayer1 = new FullyConnectedLayer(new int[]{features}, new int[]{1024});
-      fullyConnectedLayer1.set(() -> 0.25 * (Math.random() - 0.5));
+      IntToDoubleFunction random = RandomSeeds.uniform("MnistTests.rev_conv_1.0");
+      fullyConnectedLayer1.set(i -> 0.25 * (random.applyAsDouble(i) - 0.5));
       network.add(
           fullyConnectedLayer1.addRef());
       network.add(new DropoutNoiseLayer(0.5));
       network.add(new ReLuActivationLayer());
       network.add(new BiasLayer(1024));
       FullyConnectedLayer fullyConnectedLayer = new FullyConnectedLayer(new int[]{1024}, new int[]{4, 4, 64});
-      fullyConnectedLayer.set(() -> 0.001 * (Math.random() - 0.45));
+      IntToDoubleFunction random1 = RandomSeeds.uniform("MnistTests.rev_conv_1.1");
+      fullyConnectedLayer.set(i -> 0.001 * (random1.applyAsDouble(i) - 0.45));
       network.add(fullyConnectedLayer.addRef());
       network.add(new ReLuActivationLayer());
 
       ConvolutionLayer convolutionLayer3 = new ConvolutionLayer(1, 1, 64, 4 * 64);
-      convolutionLayer3.set(i3 -> 1e-8 * (Math.random() - 0.5));
+      IntToDoubleFunction random2 = RandomSeeds.uniform("MnistTests.rev_conv_1.2");
+      convolutionLayer3.set(i3 -> 1e-8 * (random2.applyAsDouble(i3) - 0.5));
       network.add(convolutionLayer3.addRef());
       network.add(new ImgReshapeLayer(2, 2, true));
       network.add(new ImgBandBiasLayer(64));
       ConvolutionLayer convolutionLayer2 = new ConvolutionLayer(5, 5, 64, 32);
-      convolutionLayer2.set(i2 -> 1e-8 * (Math.random() - 0.5));
+      IntToDoubleFunction random3 = RandomSeeds.uniform("MnistTests.rev_conv_1.3");
+      convolutionLayer2.set(i2 -> 1e-8 * (random3.applyAsDouble(i2) - 0.5));
       network.add(convolutionLayer2.addRef());
 
       ConvolutionLayer convolutionLayer1 = new ConvolutionLayer(1, 1, 32, 4 * 32);
-      convolutionLayer1.set(i1 -> 1e-8 * (Math.random() - 0.5));
+      IntToDoubleFunction random4 = RandomSeeds.uniform("MnistTests.rev_conv_1.4");
+      convolutionLayer1.set(i1 -> 1e-8 * (random4.applyAsDouble(i1) - 0.5));
       network.add(convolutionLayer1.addRef());
       network.add(new ImgReshapeLayer(2, 2, true));
       network.add(new ImgBandBiasLayer(32));
       ConvolutionLayer convolutionLayer = new ConvolutionLayer(5, 5, 32, 1);
-      convolutionLayer.set(i -> 1e-8 * (Math.random() - 0.5));
+      IntToDoubleFunction random5 = RandomSeeds.uniform("MnistTests.rev_conv_1.5");
+      convolutionLayer.set(i -> 1e-8 * (random5.applyAsDouble(i) - 0.5));
       network.add(convolutionLayer.addRef());
 
       return network;
@@ -168,7 +184,8 @@ public class MnistTests {
     return log.eval(() -> {
       @Nonnull final PipelineNetwork network = new PipelineNetwork();
       FullyConnectedLayer fullyConnectedLayer = new FullyConnectedLayer(new int[]{features}, new int[]{28, 28, 1});
-      fullyConnectedLayer.set(() -> 0.25 * (Math.random() - 0.5));
+      IntToDoubleFunction random = RandomSeeds.uniform("MnistTests.rev_linear_1.0");
+      fullyConnectedLayer.set(i -> 0.25 * (random.applyAsDouble(i) - 0.5));
       network.add(fullyConnectedLayer.addRef());
       network.add(new BiasLayer(28, 28, 1));
       return network;
@@ -184,7 +201,7 @@ public class MnistTests {
     @Nonnull
     @Override
     public ImageProblemData getData() {
-      return new MnistProblemData();
+      return new CachedProblemData(new MnistProblemData(), "mnist");
     }
 
     @Nonnull
@@ -28,7 +28,6 @@ import org.junit.jupiter.api.Test;
 
 import javax.annotation.Nonnull;
 import java.util.List;
-import java.util.function.Function;
 
 public abstract class OptimizerComparison extends NotebookTestBase {
 
@@ -41,7 +40,8 @@ public abstract class OptimizerComparison extends NotebookTestBase {
                              final ImageProblemData data) {
     this.fwdFactory = fwdFactory;
     this.revFactory = revFactory;
-    this.data = data;
+    // Decoded once and shared by the concurrently running problems
+    this.data = new MemoryProblemData(data);
   }
 
   @Nonnull
@@ -70,21 +70,29 @@ public abstract class OptimizerComparison extends NotebookTestBase {
   @Tag("Report")
   public void classification() {
     @Nonnull NotebookOutput log = getLog();
-    compare(log, opt -> {
-      return new ClassifyProblem(fwdFactory, opt, data, 10).setTimeoutMinutes(timeoutMinutes).run(log).getHistory();
+    compare(log, (runLog, fwdFactory, opt) -> {
+      return new ClassifyProblem(fwdFactory, opt, data, 10).setTimeoutMinutes(timeoutMinutes).run(runLog).getHistory();
     });
   }
 
-  public abstract void compare(NotebookOutput log, Function<OptimizationStrategy, List<StepRecord>> test);
+  /**
+   * Runs the comparison; the trial is called concurrently, once per strategy, with that strategy's
+   * own sub-report and the forward network factory it should be evaluated on.
+   */
+  public abstract void compare(NotebookOutput log, Trial test);
 
   @Test
   @Tag("Report")
   public void encoding() {
     @Nonnull NotebookOutput log = getLog();
-    compare(log, opt -> {
+    compare(log, (runLog, fwdFactory, opt) -> {
       return new EncodingProblem(revFactory, opt, data, 20).setTimeoutMinutes(timeoutMinutes).setTrainingSize(1000)
-          .run(log).getHistory();
+          .run(runLog).getHistory();
     });
   }
 
+  public interface Trial {
+    List<StepRecord> run(NotebookOutput log, FwdNetworkFactory fwdFactory, OptimizationStrategy opt);
+  }
+
 }
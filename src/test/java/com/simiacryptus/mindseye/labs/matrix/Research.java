@@ -32,16 +32,20 @@ import com.simiacryptus.mindseye.opt.orient.LBFGS;
 import com.simiacryptus.mindseye.opt.orient.QQN;
 import com.simiacryptus.mindseye.opt.orient.RecursiveSubspace;
 import com.simiacryptus.mindseye.test.ProblemRun;
-import com.simiacryptus.mindseye.test.StepRecord;
+import com.simiacryptus.mindseye.test.RandomSeeds;
 import com.simiacryptus.mindseye.test.TestUtil;
-import com.simiacryptus.mindseye.test.integration.MnistProblemData;
-import com.simiacryptus.mindseye.test.integration.OptimizationStrategy;
+import com.simiacryptus.mindseye.test.integration.*;
 import com.simiacryptus.notebook.NotebookOutput;
+import com.simiacryptus.notebook.TableOutput;
+import com.simiacryptus.ref.wrappers.RefString;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
 
 import javax.annotation.Nonnull;
 import java.awt.*;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.function.Function;
+import java.util.SplittableRandom;
 
 public class Research extends OptimizerComparison {
 
@@ -115,18 +119,7 @@ public class Research extends OptimizerComparison {
   };
 
   @Nonnull
-  public static OptimizationStrategy quadratic_quasi_newton = (log, trainingSubject, validationSubject, monitor) -> {
-    log.p("Optimized via the Quadratic Quasi-Newton method:");
-    return log.eval(() -> {
-      ValidatingTrainer validatingTrainer = new ValidatingTrainer(trainingSubject, validationSubject);
-      validatingTrainer.setMonitor(monitor);
-      ValidatingTrainer.TrainingPhase trainingPhase = validatingTrainer.getRegimen().get(0);
-      trainingPhase.setOrientation(new QQN());
-      trainingPhase.setLineSearchFactory(name -> new QuadraticSearch()
-          .setCurrentRate(name.toString().contains("QQN") ? 1.0 : 1e-6).setRelativeTolerance(2e-1));
-      return validatingTrainer;
-    });
-  };
+  public static OptimizationStrategy quadratic_quasi_newton = quadratic_quasi_newton(2e-1);
 
   @Nonnull
   public static OptimizationStrategy limited_memory_bfgs = (log, trainingSubject, validationSubject, monitor) -> {
@@ -142,6 +135,25 @@ public class Research extends OptimizerComparison {
     });
   };
 
+  /**
+   * QQN with the given relative tolerance for its quadratic line search.
+   */
+  @Nonnull
+  public static OptimizationStrategy quadratic_quasi_newton(final double relativeTolerance) {
+    return (log, trainingSubject, validationSubject, monitor) -> {
+      log.p("Optimized via the Quadratic Quasi-Newton method:");
+      return log.eval(() -> {
+        ValidatingTrainer validatingTrainer = new ValidatingTrainer(trainingSubject, validationSubject);
+        validatingTrainer.setMonitor(monitor);
+        ValidatingTrainer.TrainingPhase trainingPhase = validatingTrainer.getRegimen().get(0);
+        trainingPhase.setOrientation(new QQN());
+        trainingPhase.setLineSearchFactory(name -> new QuadraticSearch()
+            .setCurrentRate(name.toString().contains("QQN") ? 1.0 : 1e-6).setRelativeTolerance(relativeTolerance));
+        return validatingTrainer;
+      });
+    };
+  }
+
   public Research() {
     super(MnistTests.fwd_conv_1, MnistTests.rev_conv_1, new MnistProblemData());
   }
@@ -149,46 +161,69 @@ public class Research extends OptimizerComparison {
 
   @Override
   public void compare(@Nonnull final NotebookOutput log,
-                      @Nonnull final Function<OptimizationStrategy, List<StepRecord>> test) {
+                      @Nonnull final Trial test) {
     log.h1("Research Optimizer Comparison");
-
-    log.h2("Recursive Subspace (Un-Normalized)");
-    fwdFactory = MnistTests.fwd_conv_1;
-    @Nonnull final ProblemRun subspace_1 = new ProblemRun("SS", test.apply(Research.recursive_subspace), Color.LIGHT_GRAY,
-        ProblemRun.PlotType.Line);
-
-    log.h2("Recursive Subspace (Un-Normalized)");
-    fwdFactory = MnistTests.fwd_conv_1;
-    @Nonnull final ProblemRun subspace_2 = new ProblemRun("SS+QQN", test.apply(Research.recursive_subspace_2), Color.RED,
-        ProblemRun.PlotType.Line);
-
-    log.h2("QQN (Normalized)");
-    fwdFactory = MnistTests.fwd_conv_1_n;
-    @Nonnull final ProblemRun qqn1 = new ProblemRun("QQN", test.apply(Research.quadratic_quasi_newton), Color.DARK_GRAY,
-        ProblemRun.PlotType.Line);
-
-    log.h2("L-BFGS (Strong Line Search) (Normalized)");
-    fwdFactory = MnistTests.fwd_conv_1_n;
-    @Nonnull final ProblemRun lbfgs_2 = new ProblemRun("LB-2", test.apply(Research.limited_memory_bfgs), Color.MAGENTA,
-        ProblemRun.PlotType.Line);
-
-    log.h2("L-BFGS (Normalized)");
-    fwdFactory = MnistTests.fwd_conv_1_n;
-    @Nonnull final ProblemRun lbfgs_1 = new ProblemRun("LB-1", test.apply(TextbookOptimizers.limited_memory_bfgs), Color.GREEN,
-        ProblemRun.PlotType.Line);
-
-    log.h2("L-BFGS-0 (Un-Normalized)");
-    fwdFactory = MnistTests.fwd_conv_1;
-    @Nonnull final ProblemRun rawlbfgs = new ProblemRun("LBFGS-0", test.apply(TextbookOptimizers.limited_memory_bfgs),
-        Color.CYAN, ProblemRun.PlotType.Line);
+    @Nonnull final List<ProblemRun> runs = new ComparisonRunner()
+        .add("SS", "Recursive Subspace (Un-Normalized)", Color.LIGHT_GRAY,
+            runLog -> test.run(runLog, MnistTests.fwd_conv_1, Research.recursive_subspace))
+        .add("SS+QQN", "Recursive Subspace + QQN (Un-Normalized)", Color.RED,
+            runLog -> test.run(runLog, MnistTests.fwd_conv_1, Research.recursive_subspace_2))
+        .add("QQN", "QQN (Normalized)", Color.DARK_GRAY,
+            runLog -> test.run(runLog, MnistTests.fwd_conv_1_n, Research.quadratic_quasi_newton))
+        .add("LB-2", "L-BFGS (Strong Line Search) (Normalized)", Color.MAGENTA,
+            runLog -> test.run(runLog, MnistTests.fwd_conv_1_n, Research.limited_memory_bfgs))
+        .add("LB-1", "L-BFGS (Normalized)", Color.GREEN,
+            runLog -> test.run(runLog, MnistTests.fwd_conv_1_n, TextbookOptimizers.limited_memory_bfgs))
+        .add("LBFGS-0", "L-BFGS-0 (Un-Normalized)", Color.CYAN,
+            runLog -> test.run(runLog, MnistTests.fwd_conv_1, TextbookOptimizers.limited_memory_bfgs))
+        .run(log);
+    @Nonnull final ProblemRun[] series = runs.toArray(new ProblemRun[]{});
 
     log.h2("Comparison");
     log.eval(() -> {
-      return TestUtil.compare("Convergence Plot", subspace_1, subspace_2, rawlbfgs, lbfgs_1, lbfgs_2, qqn1);
+      return TestUtil.compare("Convergence Plot", series);
     });
     log.eval(() -> {
-      return TestUtil.compareTime("Convergence Plot", subspace_1, subspace_2, rawlbfgs, lbfgs_1, lbfgs_2, qqn1);
+      return TestUtil.compareTime("Convergence Plot", series);
     });
   }
 
+  @Test
+  @Tag("Report")
+  public void tuning() {
+    @Nonnull NotebookOutput log = getLog();
+    log.h1("QQN Line Search Tolerance");
+    log.p("Hyperband search over the relative tolerance of the QQN line search, sampled log-uniformly from [1e-3, 1]:");
+    @Nonnull final SplittableRandom random = RandomSeeds.random("Research.tuning");
+    @Nonnull final List<SuccessiveHalving.Evaluation<Double>> evaluations = new SuccessiveHalving<Double>(
+        (runLog, tolerance, budget) -> new ClassifyProblem(MnistTests.fwd_conv_1_n,
+            Research.quadratic_quasi_newton(tolerance), data, 10).setTimeoutMinutes(budget).run(runLog).getHistory())
+        .setLog(log)
+        .setDescribe(tolerance -> RefString.format("QQN(%.2e)", tolerance))
+        .setMaxBudget(timeoutMinutes)
+        .hyperband(() -> Math.pow(10, -3 + 3 * random.nextDouble()));
+
+    log.h2("Results");
+    log.eval(() -> {
+      @Nonnull final TableOutput table = new TableOutput();
+      for (final SuccessiveHalving.Evaluation<Double> evaluation : evaluations) {
+        @Nonnull final LinkedHashMap<CharSequence, Object> row = new LinkedHashMap<>();
+        row.put("Configuration", evaluation.name);
+        row.put("Budget", evaluation.budget);
+        row.put("Score", evaluation.score);
+        table.putRow(row);
+      }
+      return table;
+    });
+    final SuccessiveHalving.Evaluation<Double> best = SuccessiveHalving.best(evaluations);
+    if (null != best) {
+      log.p("Best configuration: " + best.name);
+      @Nonnull final ProblemRun[] series = evaluations.stream().filter(e -> e.budget == best.budget)
+          .map(e -> e.toProblemRun(e == best ? Color.RED : Color.LIGHT_GRAY)).toArray(i -> new ProblemRun[i]);
+      log.eval(() -> {
+        return TestUtil.compare("Final Rung", series);
+      });
+    }
+  }
+
 }
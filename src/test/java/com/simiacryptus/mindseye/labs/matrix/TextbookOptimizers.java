@@ -28,16 +28,14 @@ import com.simiacryptus.mindseye.opt.orient.LBFGS;
 import com.simiacryptus.mindseye.opt.orient.MomentumStrategy;
 import com.simiacryptus.mindseye.opt.orient.OwlQn;
 import com.simiacryptus.mindseye.test.ProblemRun;
-import com.simiacryptus.mindseye.test.StepRecord;
 import com.simiacryptus.mindseye.test.TestUtil;
+import com.simiacryptus.mindseye.test.integration.ComparisonRunner;
 import com.simiacryptus.mindseye.test.integration.MnistProblemData;
 import com.simiacryptus.mindseye.test.integration.OptimizationStrategy;
 import com.simiacryptus.notebook.NotebookOutput;
 
 import javax.annotation.Nonnull;
 import java.awt.*;
-import java.util.List;
-import java.util.function.Function;
 
 public class TextbookOptimizers extends OptimizerComparison {
 
@@ -120,29 +118,27 @@ public class TextbookOptimizers extends OptimizerComparison {
 
   @Override
   public void compare(@Nonnull final NotebookOutput log,
-                      @Nonnull final Function<OptimizationStrategy, List<StepRecord>> test) {
+                      @Nonnull final Trial test) {
     log.h1("Textbook Optimizer Comparison");
-    log.h2("GD");
-    @Nonnull final ProblemRun gd = new ProblemRun("GD", test.apply(TextbookOptimizers.simple_gradient_descent), Color.BLACK,
-        ProblemRun.PlotType.Line);
-    log.h2("SGD");
-    @Nonnull final ProblemRun sgd = new ProblemRun("SGD", test.apply(TextbookOptimizers.stochastic_gradient_descent),
-        Color.GREEN, ProblemRun.PlotType.Line);
-    log.h2("CGD");
-    @Nonnull final ProblemRun cgd = new ProblemRun("CjGD", test.apply(TextbookOptimizers.conjugate_gradient_descent), Color.BLUE,
-        ProblemRun.PlotType.Line);
-    log.h2("L-BFGS");
-    @Nonnull final ProblemRun lbfgs = new ProblemRun("L-BFGS", test.apply(TextbookOptimizers.limited_memory_bfgs), Color.MAGENTA,
-        ProblemRun.PlotType.Line);
-    log.h2("OWL-QN");
-    @Nonnull final ProblemRun owlqn = new ProblemRun("OWL-QN", test.apply(TextbookOptimizers.orthantwise_quasi_newton),
-        Color.ORANGE, ProblemRun.PlotType.Line);
+    @Nonnull final List<ProblemRun> runs = new ComparisonRunner()
+        .add("GD", "GD", Color.BLACK,
+            runLog -> test.run(runLog, fwdFactory, TextbookOptimizers.simple_gradient_descent))
+        .add("SGD", "SGD", Color.GREEN,
+            runLog -> test.run(runLog, fwdFactory, TextbookOptimizers.stochastic_gradient_descent))
+        .add("CjGD", "CGD", Color.BLUE,
+            runLog -> test.run(runLog, fwdFactory, TextbookOptimizers.conjugate_gradient_descent))
+        .add("L-BFGS", "L-BFGS", Color.MAGENTA,
+            runLog -> test.run(runLog, fwdFactory, TextbookOptimizers.limited_memory_bfgs))
+        .add("OWL-QN", "OWL-QN", Color.ORANGE,
+            runLog -> test.run(runLog, fwdFactory, TextbookOptimizers.orthantwise_quasi_newton))
+        .run(log);
+    @Nonnull final ProblemRun[] series = runs.toArray(new ProblemRun[]{});
     log.h2("Comparison");
     log.eval(() -> {
-      return TestUtil.compare("Convergence Plot", gd, sgd, cgd, lbfgs, owlqn);
+      return TestUtil.compare("Convergence Plot", series);
     });
     log.eval(() -> {
-      return TestUtil.compareTime("Convergence Plot", gd, sgd, cgd, lbfgs, owlqn);
+      return TestUtil.compareTime("Convergence Plot", series);
     });
   }
 
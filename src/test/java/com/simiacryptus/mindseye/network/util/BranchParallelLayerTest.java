@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.network.util;
+
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.mindseye.layers.java.BiasLayer;
+import com.simiacryptus.mindseye.layers.java.FullyConnectedLayer;
+import com.simiacryptus.mindseye.network.DAGNetwork;
+import com.simiacryptus.mindseye.network.DAGNode;
+import com.simiacryptus.ref.wrappers.RefList;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+public class BranchParallelLayerTest {
+
+  // Positive inputs and weights keep every polynomial term's base away from zero
+  private static final double[][] rows = {{0.5, 1.0, 2.0}, {1.5, 0.25, 0.5}};
+
+  @Test
+  public void polynomialNetworkMatchesSerial() {
+    @Nonnull final PolynomialNetwork network = new PolynomialNetwork(new int[]{3}, new int[]{3});
+    network.addTerm(2.0);
+    network.addTerm(-1.0);
+    check(network, network::setBranchParallel);
+    network.freeRef();
+  }
+
+  @Test
+  public void fusedPolynomialNetworkMatchesSerial() {
+    @Nonnull final PolynomialNetwork network = new PolynomialNetwork(new int[]{3}, new int[]{3});
+    network.addTerm(2.0);
+    network.addTerm(-1.0);
+    network.setFused(true);
+    check(network, network::setBranchParallel);
+    network.freeRef();
+  }
+
+  @Test
+  public void bilinearSigmoidTreeMatchesSerial() {
+    @Nonnull final SigmoidTreeNetwork network = newSigmoidTree(2);
+    Assertions.assertEquals(SigmoidTreeNetwork.NodeMode.Bilinear, network.getMode());
+    check(network, network::setBranchParallel);
+    network.freeRef();
+  }
+
+  @Test
+  public void finalSigmoidTreeMatchesSerial() {
+    @Nonnull final SigmoidTreeNetwork network = newSigmoidTree(3);
+    Assertions.assertEquals(SigmoidTreeNetwork.NodeMode.Final, network.getMode());
+    check(network, network::setBranchParallel);
+    network.freeRef();
+  }
+
+  @Nonnull
+  private static SigmoidTreeNetwork newSigmoidTree(final int phases) {
+    @Nonnull final SigmoidTreeNetwork network = new SigmoidTreeNetwork(
+        new FullyConnectedLayer(new int[]{3}, new int[]{3}), new BiasLayer(3));
+    for (int i = 0; i < phases; i++) {
+      network.nextPhase();
+    }
+    return network;
+  }
+
+  /**
+   * Evaluates the serial graph, switches to branch-parallel evaluation and checks that the output,
+   * the input gradient and every weight gradient are unchanged.
+   */
+  private static void check(@Nonnull final DAGNetwork network, @Nonnull final Consumer<Boolean> setBranchParallel) {
+    evaluate(network).freeRef();
+    initWeights(network);
+    @Nonnull final Evaluation expected = evaluate(network);
+    setBranchParallel.accept(true);
+    final DAGNode head = network.getHead();
+    final Layer body = head.getLayer();
+    Assertions.assertTrue(body instanceof BranchParallelLayer, body.getClass().getSimpleName());
+    body.freeRef();
+    head.freeRef();
+    @Nonnull final Evaluation actual = evaluate(network);
+    Assertions.assertArrayEquals(expected.output, actual.output, 1e-12);
+    Assertions.assertArrayEquals(expected.inputGradient, actual.inputGradient, 1e-12);
+    Assertions.assertEquals(expected.buffer.getMap().keySet(), actual.buffer.getMap().keySet());
+    for (final UUID id : expected.buffer.getMap().keySet()) {
+      Assertions.assertArrayEquals(expected.weightGradient(id), actual.weightGradient(id), 1e-12, "gradient of " + id);
+    }
+    expected.freeRef();
+    actual.freeRef();
+  }
+
+  // Distinct positive weights, so a gradient routed to the wrong layer or row shows up
+  private static void initWeights(@Nonnull final Layer network) {
+    final RefList<double[]> state = network.state();
+    assert state != null;
+    for (int a = 0; a < state.size(); a++) {
+      final double[] weights = state.get(a);
+      for (int k = 0; k < weights.length; k++) {
+        weights[k] = 0.2 + 0.05 * ((k + a) % 6);
+      }
+    }
+    state.freeRef();
+  }
+
+  @Nonnull
+  private static Evaluation evaluate(@Nonnull final Layer layer) {
+    @Nonnull final Tensor[] inputs = new Tensor[rows.length];
+    for (int b = 0; b < rows.length; b++) {
+      inputs[b] = new Tensor(rows[b].clone(), 3);
+    }
+    @Nonnull final TensorList[] passback = new TensorList[1];
+    final Result in = new Result(new TensorArray(inputs), new Result.Accumulator() {
+      @Override
+      public void accept(@Nonnull final DeltaSet<UUID> buffer, @Nonnull final TensorList delta) {
+        passback[0] = delta;
+        buffer.freeRef();
+      }
+    });
+    final Result result = layer.eval(in);
+    final TensorList data = result.getData();
+    @Nonnull final Tensor[] ones = new Tensor[data.length()];
+    double[] values = new double[0];
+    for (int b = 0; b < data.length(); b++) {
+      final Tensor row = data.get(b);
+      values = concat(values, row.getData());
+      @Nonnull final double[] one = new double[row.length()];
+      Arrays.fill(one, 1.0);
+      ones[b] = new Tensor(one, row.getDimensions());
+      row.freeRef();
+    }
+    @Nonnull final DeltaSet<UUID> buffer = new DeltaSet<>();
+    result.accumulate(buffer.addRef(), new TensorArray(ones));
+    double[] gradient = new double[0];
+    for (int b = 0; b < rows.length; b++) {
+      final Tensor row = passback[0].get(b);
+      gradient = concat(gradient, row.getData());
+      row.freeRef();
+    }
+    passback[0].freeRef();
+    data.freeRef();
+    result.freeRef();
+    return new Evaluation(values, gradient, buffer);
+  }
+
+  @Nonnull
+  private static double[] concat(@Nonnull final double[] a, @Nonnull final double[] b) {
+    @Nonnull final double[] joined = Arrays.copyOf(a, a.length + b.length);
+    System.arraycopy(b, 0, joined, a.length, b.length);
+    return joined;
+  }
+
+  private static class Evaluation {
+    final double[] output;
+    final double[] inputGradient;
+    final DeltaSet<UUID> buffer;
+
+    Evaluation(final double[] output, final double[] inputGradient, final DeltaSet<UUID> buffer) {
+      this.output = output;
+      this.inputGradient = inputGradient;
+      this.buffer = buffer;
+    }
+
+    double[] weightGradient(@Nonnull final UUID id) {
+      final Delta<UUID> delta = buffer.getMap().get(id);
+      return null == delta ? null : delta.getDelta();
+    }
+
+    void freeRef() {
+      buffer.freeRef();
+    }
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.network.util;
+
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.mindseye.layers.java.BiasLayer;
+import com.simiacryptus.mindseye.layers.java.FullyConnectedLayer;
+import com.simiacryptus.mindseye.layers.java.NthPowerActivationLayer;
+import com.simiacryptus.mindseye.layers.java.ProductInputsLayer;
+import com.simiacryptus.mindseye.network.DAGNode;
+import com.simiacryptus.mindseye.network.PipelineNetwork;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+public class PolynomialTermsLayerTest {
+
+  private static final double[] input = {1.0, 2.0, 3.0};
+  private static final double[] powers = {-1.0, 0.5};
+  // Pre-activations per term: a zero base for the negative power, a negative base for the square root
+  private static final double[][] preActivations = {{0.0, 2.0}, {-1.0, 4.0}};
+
+  @Test
+  public void fusedMatchesUnfused() {
+    @Nonnull final List<Layer> factors = new ArrayList<>();
+    @Nonnull final List<Layer> biases = new ArrayList<>();
+    for (int t = 0; t < powers.length; t++) {
+      @Nonnull final FullyConnectedLayer factor = new FullyConnectedLayer(new int[]{3}, new int[]{2});
+      final double[] w = factor.getWeights().getData();
+      for (int k = 0; k < w.length; k++) {
+        // Exact binary fractions, so both graphs compute identical pre-activations
+        w[k] = 0.25 * (k + 1 + t);
+      }
+      @Nonnull final double[] b = new double[2];
+      for (int o = 0; o < 2; o++) {
+        double sum = 0;
+        for (int i = 0; i < 3; i++) {
+          sum += w[i + 3 * o] * input[i];
+        }
+        b[o] = preActivations[t][o] - sum;
+      }
+      @Nonnull final BiasLayer bias = new BiasLayer(2);
+      bias.setWeights(o -> b[o]);
+      factors.add(factor);
+      biases.add(bias);
+    }
+    @Nonnull final PolynomialTermsLayer fused = new PolynomialTermsLayer(factors, biases, powers);
+    @Nonnull final PipelineNetwork unfused = new PipelineNetwork(1);
+    @Nonnull final DAGNode[] terms = new DAGNode[powers.length];
+    for (int t = 0; t < powers.length; t++) {
+      @Nonnull final NthPowerActivationLayer power = new NthPowerActivationLayer();
+      power.setPower(powers[t]);
+      terms[t] = unfused.add(power, unfused.add(biases.get(t).addRef(),
+          unfused.add(factors.get(t).addRef(), unfused.getInput(0))));
+    }
+    unfused.add(new ProductInputsLayer(), terms).freeRef();
+
+    @Nonnull final Evaluation expected = evaluate(unfused);
+    @Nonnull final Evaluation actual = evaluate(fused);
+    Assertions.assertArrayEquals(expected.output, actual.output, 1e-12);
+    Assertions.assertArrayEquals(expected.inputGradient, actual.inputGradient, 1e-12);
+    for (int t = 0; t < powers.length; t++) {
+      for (final Layer layer : Arrays.asList(factors.get(t), biases.get(t))) {
+        Assertions.assertArrayEquals(expected.weightGradient(layer.getId()), actual.weightGradient(layer.getId()), 1e-12,
+            "gradient of " + layer.getName());
+      }
+    }
+    for (final double v : actual.output) {
+      Assertions.assertTrue(Double.isFinite(v));
+    }
+    expected.freeRef();
+    actual.freeRef();
+    fused.freeRef();
+    unfused.freeRef();
+  }
+
+  @Nonnull
+  private static Evaluation evaluate(@Nonnull final Layer layer) {
+    @Nonnull final TensorList[] passback = new TensorList[1];
+    final Result in = new Result(new TensorArray(new Tensor(input.clone(), 3)), new Result.Accumulator() {
+      @Override
+      public void accept(@Nonnull final DeltaSet<UUID> buffer, @Nonnull final TensorList delta) {
+        passback[0] = delta;
+      }
+    });
+    final Result result = layer.eval(in);
+    final TensorList data = result.getData();
+    final Tensor output = data.get(0);
+    @Nonnull final double[] ones = new double[output.length()];
+    Arrays.fill(ones, 1.0);
+    @Nonnull final DeltaSet<UUID> buffer = new DeltaSet<>();
+    result.accumulate(buffer.addRef(), new TensorArray(new Tensor(ones, output.getDimensions())));
+    final Tensor gradient = passback[0].get(0);
+    @Nonnull final Evaluation evaluation = new Evaluation(output.copyData(), gradient.copyData(), buffer);
+    gradient.freeRef();
+    passback[0].freeRef();
+    output.freeRef();
+    data.freeRef();
+    result.freeRef();
+    return evaluation;
+  }
+
+  private static class Evaluation {
+    final double[] output;
+    final double[] inputGradient;
+    final DeltaSet<UUID> buffer;
+
+    Evaluation(final double[] output, final double[] inputGradient, final DeltaSet<UUID> buffer) {
+      this.output = output;
+      this.inputGradient = inputGradient;
+      this.buffer = buffer;
+    }
+
+    double[] weightGradient(@Nonnull final UUID id) {
+      final Delta<UUID> delta = buffer.getMap().get(id);
+      return null == delta ? null : delta.getDelta();
+    }
+
+    void freeRef() {
+      buffer.freeRef();
+    }
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.network.util;
+
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.mindseye.layers.java.BiasLayer;
+import com.simiacryptus.mindseye.layers.java.FullyConnectedLayer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+
+public class SigmoidTreeNetworkTest {
+
+  // Rows with a saturated gate (logit +-15), a moderate gate (logit +-5) and an open gate (logit 0)
+  private static final double[][] rows = {{2.0, 1.0}, {-2.0, -1.0}, {0.5, 0.5}, {-0.5, -0.5}, {0.0, 0.0}};
+
+  @Test
+  public void inferIsWithinGateEpsilonOfEval() {
+    check(false);
+  }
+
+  @Test
+  public void inferIsWithinGateEpsilonOfEvalAfterReload() {
+    check(true);
+  }
+
+  private static void check(final boolean reload) {
+    @Nonnull final FullyConnectedLayer alpha = new FullyConnectedLayer(new int[]{2}, new int[]{2});
+    final double[] weights = alpha.getWeights().getData();
+    for (int i = 0; i < weights.length; i++) {
+      weights[i] = 0.5 * (i + 1);
+    }
+    @Nonnull final BiasLayer alphaBias = new BiasLayer(2);
+    alphaBias.setWeights(i -> 0.25);
+    @Nonnull SigmoidTreeNetwork network = new SigmoidTreeNetwork(alpha.addRef(), alphaBias.addRef());
+    network.nextPhase();
+    network.nextPhase();
+    Assertions.assertEquals(SigmoidTreeNetwork.NodeMode.Bilinear, network.getMode());
+    final Layer gate = network.getGate();
+    Assertions.assertNotNull(gate);
+    final double[] gateWeights = ((FullyConnectedLayer) gate).getWeights().getData();
+    for (int i = 0; i < gateWeights.length; i++) {
+      gateWeights[i] = 5.0;
+    }
+    gate.freeRef();
+    if (reload) {
+      final SigmoidTreeNetwork copy = (SigmoidTreeNetwork) Layer.fromJson(network.getJson());
+      network.freeRef();
+      network = copy;
+    }
+    final double epsilon = network.getGateEpsilon();
+    Assertions.assertTrue(epsilon > 0);
+
+    final TensorList data = input();
+    final TensorList expected = evalData(network, data.addRef());
+    final TensorList actual = network.infer(data.addRef());
+    // Beta starts as a copy of alpha, so alpha's output bounds either branch's skipped contribution
+    final TensorList branch = evalData(alpha, evalData(alphaBias, data.addRef()));
+    for (int row = 0; row < rows.length; row++) {
+      final Tensor e = expected.get(row);
+      final Tensor a = actual.get(row);
+      final Tensor b = branch.get(row);
+      for (int j = 0; j < e.length(); j++) {
+        final double bound = epsilon * Math.abs(b.get(j)) * (1 + 1e-6) + 1e-12;
+        Assertions.assertEquals(e.get(j), a.get(j), bound, "row " + row + ", element " + j);
+      }
+      e.freeRef();
+      a.freeRef();
+      b.freeRef();
+    }
+    branch.freeRef();
+    actual.freeRef();
+    expected.freeRef();
+    data.freeRef();
+    network.freeRef();
+    alphaBias.freeRef();
+    alpha.freeRef();
+  }
+
+  @Nonnull
+  private static TensorList input() {
+    @Nonnull final Tensor[] tensors = new Tensor[rows.length];
+    for (int i = 0; i < rows.length; i++) {
+      tensors[i] = new Tensor(rows[i].clone(), 2);
+    }
+    return new TensorArray(tensors);
+  }
+
+  @Nonnull
+  private static TensorList evalData(@Nonnull final Layer layer, @Nonnull final TensorList data) {
+    final Result result = layer.eval(new ConstantResult(data));
+    final TensorList output = result.getData();
+    result.freeRef();
+    return output;
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.network.util;
+
+import com.simiacryptus.mindseye.lang.*;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import java.util.UUID;
+
+public class SparseReconstructionLossLayerTest {
+
+  private static final double[][] reconstruction = {{0.5, -1.0, 2.0}, {1.5, 0.25, -0.5}};
+  private static final double[][] target = {{0.0, -0.5, 1.0}, {1.0, 1.0, 0.0}};
+  private static final double step = 1e-6;
+
+  @Test
+  public void l1GradientMatchesFiniteDifferences() {
+    // Code values stay clear of zero, where |x| has its kink
+    check(new SparseReconstructionLossLayer().setPenalty(SparseReconstructionLossLayer.Penalty.L1)
+        .setSparsityWeight(0.3), new double[][]{{0.4, -0.7}, {-0.2, 0.9}});
+  }
+
+  @Test
+  public void klGradientMatchesFiniteDifferences() {
+    // The last unit is inactive in every row; its mean stays clamped, so the loss is flat in it
+    check(new SparseReconstructionLossLayer().setPenalty(SparseReconstructionLossLayer.Penalty.KL)
+        .setSparsityWeight(0.3).setTargetActivation(0.2), new double[][]{{0.3, 0.6, 0.0}, {0.1, 0.8, 0.0}});
+  }
+
+  private static void check(@Nonnull final SparseReconstructionLossLayer layer, @Nonnull final double[][] code) {
+    @Nonnull final double[][][] inputs = {reconstruction, target, code};
+    @Nonnull final double[][][] analytic = gradient(layer, inputs);
+    for (int n = 0; n < inputs.length; n++) {
+      for (int b = 0; b < inputs[n].length; b++) {
+        for (int j = 0; j < inputs[n][b].length; j++) {
+          @Nonnull final double[][][] plus = copy(inputs);
+          @Nonnull final double[][][] minus = copy(inputs);
+          plus[n][b][j] += step;
+          minus[n][b][j] -= step;
+          final double numeric = (loss(layer, plus) - loss(layer, minus)) / (2 * step);
+          Assertions.assertEquals(numeric, analytic[n][b][j], 1e-6, "input " + n + ", row " + b + ", element " + j);
+        }
+      }
+    }
+    layer.freeRef();
+  }
+
+  private static double loss(@Nonnull final Layer layer, @Nonnull final double[][][] inputs) {
+    @Nonnull final Result[] in = new Result[inputs.length];
+    for (int n = 0; n < inputs.length; n++) {
+      in[n] = new ConstantResult(toTensorList(inputs[n]));
+    }
+    final Result result = layer.eval(in);
+    final TensorList data = result.getData();
+    double sum = 0;
+    for (int b = 0; b < data.length(); b++) {
+      final Tensor row = data.get(b);
+      sum += row.get(0);
+      row.freeRef();
+    }
+    data.freeRef();
+    result.freeRef();
+    return sum;
+  }
+
+  /**
+   * Gradient of the summed row losses with respect to every input element, laid out [input][row][element].
+   */
+  @Nonnull
+  private static double[][][] gradient(@Nonnull final Layer layer, @Nonnull final double[][][] inputs) {
+    @Nonnull final TensorList[] passback = new TensorList[inputs.length];
+    @Nonnull final Result[] in = new Result[inputs.length];
+    for (int n = 0; n < inputs.length; n++) {
+      final int index = n;
+      in[n] = new Result(toTensorList(inputs[n]), new Result.Accumulator() {
+        @Override
+        public void accept(@Nonnull final DeltaSet<UUID> buffer, @Nonnull final TensorList delta) {
+          passback[index] = delta;
+          buffer.freeRef();
+        }
+      });
+    }
+    final Result result = layer.eval(in);
+    final int length = inputs[0].length;
+    @Nonnull final Tensor[] ones = new Tensor[length];
+    for (int b = 0; b < length; b++) {
+      ones[b] = new Tensor(new double[]{1.0}, 1);
+    }
+    result.accumulate(new DeltaSet<>(), new TensorArray(ones));
+    @Nonnull final double[][][] gradient = new double[inputs.length][length][];
+    for (int n = 0; n < inputs.length; n++) {
+      for (int b = 0; b < length; b++) {
+        final Tensor row = passback[n].get(b);
+        gradient[n][b] = row.copyData();
+        row.freeRef();
+      }
+      passback[n].freeRef();
+    }
+    result.freeRef();
+    return gradient;
+  }
+
+  @Nonnull
+  private static TensorList toTensorList(@Nonnull final double[][] rows) {
+    @Nonnull final Tensor[] tensors = new Tensor[rows.length];
+    for (int b = 0; b < rows.length; b++) {
+      tensors[b] = new Tensor(rows[b].clone(), rows[b].length);
+    }
+    return new TensorArray(tensors);
+  }
+
+  @Nonnull
+  private static double[][][] copy(@Nonnull final double[][][] inputs) {
+    @Nonnull final double[][][] copy = new double[inputs.length][][];
+    for (int n = 0; n < inputs.length; n++) {
+      copy[n] = new double[inputs[n].length][];
+      for (int b = 0; b < inputs[n].length; b++) {
+        copy[n][b] = inputs[n][b].clone();
+      }
+    }
+    return copy;
+  }
+}
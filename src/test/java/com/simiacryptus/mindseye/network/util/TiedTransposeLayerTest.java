@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.network.util;
+
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.mindseye.layers.java.FullyConnectedLayer;
+import com.simiacryptus.mindseye.network.DAGNetwork;
+import com.simiacryptus.mindseye.network.PipelineNetwork;
+import com.simiacryptus.mindseye.network.SimpleLossNetwork;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import java.util.UUID;
+
+public class TiedTransposeLayerTest {
+
+  @Test
+  public void matchesFullyConnectedTranspose() {
+    @Nonnull final FullyConnectedLayer encoder = newEncoder();
+    @Nonnull final TiedTransposeLayer tied = new TiedTransposeLayer(encoder.addRef());
+    @Nonnull final Layer transpose = encoder.getTranspose();
+    @Nonnull final Tensor input = new Tensor(new double[]{0.5, -1.5}, 2);
+    Assertions.assertArrayEquals(output(transpose, input), output(tied, input), 1e-12);
+    transpose.freeRef();
+    tied.freeRef();
+    encoder.freeRef();
+    input.freeRef();
+  }
+
+  @Test
+  public void roundTripSharesWeights() {
+    @Nonnull final PipelineNetwork network = new PipelineNetwork(1);
+    @Nonnull final FullyConnectedLayer encoder = newEncoder();
+    network.add(encoder.addRef()).freeRef();
+    network.add(new TiedTransposeLayer(encoder.addRef())).freeRef();
+    @Nonnull final PipelineNetwork copy = (PipelineNetwork) Layer.fromJson(network.getJson());
+    TiedTransposeLayer.bind(copy);
+    final FullyConnectedLayer copiedEncoder = (FullyConnectedLayer) copy.getLayersById().get(encoder.getId());
+    final TiedTransposeLayer copiedView = (TiedTransposeLayer) copy.getLayersById().values().stream()
+        .filter(layer -> layer instanceof TiedTransposeLayer).findFirst().get();
+    Assertions.assertSame(copiedEncoder, copiedView.getEncoder());
+    // Changing the copied encoder's weights must change the view's output
+    @Nonnull final Tensor input = new Tensor(new double[]{1.0, 0.0}, 2);
+    final double[] before = output(copiedView, input);
+    copiedEncoder.getWeights().getData()[0] += 1.0;
+    final double[] after = output(copiedView, input);
+    Assertions.assertEquals(before[0] + 1.0, after[0], 1e-12);
+    input.freeRef();
+    copy.freeRef();
+    network.freeRef();
+    encoder.freeRef();
+  }
+
+  @Test
+  public void autoencoderRoundTrip() {
+    @Nonnull final AutoencoderNetwork autoencoder = AutoencoderNetwork.newLayer(new int[]{3}, new int[]{2})
+        .setTiedWeights(true).build();
+    final double[] weights = autoencoder.getEncoderSynapse().getWeights().getData();
+    for (int i = 0; i < weights.length; i++) {
+      weights[i] = 0.1 * (i + 1);
+    }
+    final Layer decoder = autoencoder.getDecoder();
+    @Nonnull final Tensor code = new Tensor(new double[]{0.5, 1.5}, 2);
+    // The decoder saved on its own, as AutoencodingProblem writes it
+    @Nonnull final Layer loadedDecoder = Layer.fromJson(decoder.getJson());
+    Assertions.assertArrayEquals(output(decoder, code), output(loadedDecoder, code), 1e-12);
+    // Encoder and decoder saved together share weights again once bound
+    final SimpleLossNetwork trainingNetwork = autoencoder.train().getTrainingNetwork();
+    @Nonnull final DAGNetwork loaded = (DAGNetwork) Layer.fromJson(trainingNetwork.getJson());
+    TiedTransposeLayer.bind(loaded);
+    final FullyConnectedLayer loadedEncoder = (FullyConnectedLayer) BranchParallelLayer.findLayer(loaded,
+        autoencoder.getEncoderSynapse().getId());
+    final Layer loadedTrainingDecoder = BranchParallelLayer.findLayer(loaded, decoder.getId());
+    final double[] before = output(loadedTrainingDecoder, code);
+    loadedEncoder.getWeights().getData()[0] += 1.0;
+    final double[] after = output(loadedTrainingDecoder, code);
+    Assertions.assertEquals(before[0] + 0.5, after[0], 1e-12);
+    code.freeRef();
+    loaded.freeRef();
+    trainingNetwork.freeRef();
+    loadedDecoder.freeRef();
+    autoencoder.freeRef();
+  }
+
+  @Test
+  public void frozenEncoderReceivesNoGradient() {
+    @Nonnull final FullyConnectedLayer encoder = newEncoder();
+    encoder.freeze();
+    @Nonnull final TiedTransposeLayer tied = new TiedTransposeLayer(encoder.addRef());
+    final Result result = tied.eval(new Tensor(new double[]{1.0, 2.0}, 2));
+    @Nonnull final DeltaSet<UUID> buffer = new DeltaSet<>();
+    result.accumulate(buffer.addRef(), new TensorArray(new Tensor(new double[]{1.0, 1.0, 1.0}, 3)));
+    Assertions.assertFalse(buffer.getMap().containsKey(encoder.getId()));
+    buffer.freeRef();
+    result.freeRef();
+    tied.freeRef();
+    encoder.freeRef();
+  }
+
+  /**
+   * A 3-to-2 layer with distinct weights, so any transposition error shows up in the output.
+   */
+  @Nonnull
+  private static FullyConnectedLayer newEncoder() {
+    @Nonnull final FullyConnectedLayer encoder = new FullyConnectedLayer(new int[]{3}, new int[]{2});
+    final double[] weights = encoder.getWeights().getData();
+    for (int i = 0; i < weights.length; i++) {
+      weights[i] = 0.1 * (i + 1);
+    }
+    return encoder;
+  }
+
+  @Nonnull
+  private static double[] output(@Nonnull final Layer layer, @Nonnull final Tensor input) {
+    final Result result = layer.eval(input.addRef());
+    final TensorList data = result.getData();
+    final Tensor tensor = data.get(0);
+    final double[] output = tensor.copyData();
+    tensor.freeRef();
+    data.freeRef();
+    result.freeRef();
+    return output;
+  }
+}
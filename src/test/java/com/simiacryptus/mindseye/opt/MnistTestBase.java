@@ -29,6 +29,9 @@ import com.simiacryptus.mindseye.layers.java.FullyConnectedLayer;
 import com.simiacryptus.mindseye.layers.java.SoftmaxLayer;
 import com.simiacryptus.mindseye.network.DAGNetwork;
 import com.simiacryptus.mindseye.network.PipelineNetwork;
+import com.simiacryptus.mindseye.test.BatchedClassifier;
+import com.simiacryptus.mindseye.test.RandomSeeds;
+import com.simiacryptus.mindseye.test.TrainingHistory;
 import com.simiacryptus.mindseye.test.data.MNIST;
 import com.simiacryptus.notebook.NotebookOutput;
 import com.simiacryptus.notebook.TableOutput;
@@ -43,13 +46,14 @@ import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import smile.plot.swing.Canvas;
-import smile.plot.swing.PlotPanel;
-import smile.plot.swing.ScatterPlot;
 
 import javax.annotation.Nonnull;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.IntToDoubleFunction;
 
 public abstract class MnistTestBase extends NotebookTestBase {
   private static final Logger log = LoggerFactory.getLogger(MnistTestBase.class);
@@ -76,7 +80,7 @@ public abstract class MnistTestBase extends NotebookTestBase {
   @Tag("Report")
   public void test() {
     @Nonnull NotebookOutput log = getLog();
-    @Nonnull final RefList<Step> history = new RefArrayList<>();
+    @Nonnull final TrainingHistory history = new TrainingHistory();
     @Nonnull final MonitoredObject monitoringRoot = new MonitoredObject();
     @Nonnull final TrainingMonitor monitor = getMonitor(history);
     final Tensor[][] trainingData = getTrainingData();
@@ -105,7 +109,8 @@ public abstract class MnistTestBase extends NotebookTestBase {
       @Nonnull final PipelineNetwork network = new PipelineNetwork();
       network.add(new BiasLayer(28, 28, 1)).freeRef();
       FullyConnectedLayer fullyConnectedLayer = new FullyConnectedLayer(new int[]{28, 28, 1}, new int[]{10});
-      fullyConnectedLayer.set(() -> 0.001 * (Math.random() - 0.45));
+      IntToDoubleFunction random = RandomSeeds.uniform("MnistTestBase.buildModel.0");
+      fullyConnectedLayer.set(i -> 0.001 * (random.applyAsDouble(i) - 0.45));
       network.add(
           fullyConnectedLayer.addRef())
           .freeRef();
@@ -124,11 +129,9 @@ public abstract class MnistTestBase extends NotebookTestBase {
     Tensor tensor = data.get(0);
     data.freeRef();
     eval.freeRef();
-    return RefIntStream.range(0, 10)
-        .mapToObj(x -> x)
-        .sorted(RefComparator.comparingDouble(i -> -tensor.get(i)))
-        .mapToInt(x -> x)
-        .toArray();
+    final double[] signal = tensor.copyData();
+    tensor.freeRef();
+    return BatchedClassifier.topK(signal, 10);
   }
 
   public void removeMonitoring(@Nonnull final DAGNetwork network) {
@@ -140,23 +143,11 @@ public abstract class MnistTestBase extends NotebookTestBase {
   }
 
   public void report(@Nonnull final NotebookOutput log, @Nonnull final MonitoredObject monitoringRoot,
-                     @Nonnull final RefList<Step> history, @Nonnull final Layer network) {
+                     @Nonnull final TrainingHistory history, @Nonnull final Layer network) {
 
     if (!history.isEmpty()) {
       log.eval(() -> {
-        @Nonnull final ScatterPlot plot = ScatterPlot
-            .of(history.stream().map(step -> {
-              assert step.point != null;
-              return new double[]{step.iteration, Math.log10(step.point.getMean())};
-            })
-                .toArray(i -> new double[i][]));
-        Canvas canvas = new Canvas(new double[]{0,0}, new double[]{1,1});
-        canvas.add(plot);
-        PlotPanel plotPanel = new PlotPanel(canvas);
-        canvas.setTitle("Convergence Plot");
-        canvas.setAxisLabels("Iteration", "log10(Fitness)");
-        plotPanel.setSize(600, 400);
-        return plotPanel;
+        return history.plot(false);
       });
     }
 
@@ -176,7 +167,7 @@ public abstract class MnistTestBase extends NotebookTestBase {
   }
 
   @Nonnull
-  public TrainingMonitor getMonitor(@Nonnull final RefList<Step> history) {
+  public TrainingMonitor getMonitor(@Nonnull final TrainingHistory history) {
     return new TrainingMonitor() {
       @Override
       public void clear() {
@@ -191,7 +182,8 @@ public abstract class MnistTestBase extends NotebookTestBase {
 
       @Override
       public void onStepComplete(final Step currentPoint) {
-        history.add(currentPoint);
+        assert currentPoint.point != null;
+        history.add(currentPoint.iteration, currentPoint.time, currentPoint.point.getMean());
         super.onStepComplete(currentPoint);
       }
     };
@@ -202,35 +194,38 @@ public abstract class MnistTestBase extends NotebookTestBase {
   public void validate(@Nonnull final NotebookOutput log, @Nonnull final Layer network) {
     log.h1("Validation");
     log.p("If we apply our model against the entire validation dataset, we get this accuracy:");
+    @Nonnull final BatchedClassifier classifier = new BatchedClassifier(network);
+    // One pass scores accuracy and keeps the first mispredicted rows in source order
+    final long[] counts = new long[2];
+    @Nonnull final TreeMap<Integer, Map.Entry<LabeledObject<Tensor>, double[]>> mispredicted = new TreeMap<>();
+    classifier.classify(MNIST.validationDataStream(), (index, labeledObject, signal) -> {
+      final boolean correct = BatchedClassifier.topK(signal, 1)[0] == parse(labeledObject.label);
+      synchronized (mispredicted) {
+        if (correct) counts[0]++;
+        counts[1]++;
+        if (correct) return;
+        mispredicted.put(index, new AbstractMap.SimpleImmutableEntry<>(labeledObject, signal));
+        if (mispredicted.size() > 10) mispredicted.pollLastEntry();
+      }
+    });
     log.eval(() -> {
-      return MNIST.validationDataStream()
-          .mapToDouble(labeledObject -> predict(network, labeledObject)[0] == parse(labeledObject.label) ? 1 : 0)
-          .average().getAsDouble() * 100;
+      return 0 == counts[1] ? Double.NaN : 100.0 * counts[0] / counts[1];
     });
 
     log.p("Let's examine some incorrectly predicted results in more detail:");
     log.eval(() -> {
       @Nonnull final TableOutput table = new TableOutput();
-      MNIST.validationDataStream().map(labeledObject -> {
-        final int actualCategory = parse(labeledObject.label);
-        Result eval = network.eval(labeledObject.data);
-        TensorList data = eval.getData();
-        Tensor tensor = data.get(0);
-        data.freeRef();
-        eval.freeRef();
-        final int[] predictionList = RefIntStream.range(0, 10).mapToObj(x -> x)
-            .sorted(RefComparator.comparingDouble(i -> -tensor.get(i)))
-            .mapToInt(x -> x).toArray();
-        if (predictionList[0] == actualCategory)
-          return null; // We will only examine mispredicted rows
+      mispredicted.values().forEach(entry -> {
+        final LabeledObject<Tensor> labeledObject = entry.getKey();
+        final double[] signal = entry.getValue();
         @Nonnull final RefLinkedHashMap<CharSequence, Object> row = new RefLinkedHashMap<>();
         row.put("Image", log.png(labeledObject.data.toGrayImage(), labeledObject.label));
         row.put("Prediction",
-            RefUtil.get(RefArrays.stream(predictionList).limit(3)
-                .mapToObj(i -> RefString.format("%d (%.1f%%)", i, 100.0 * tensor.get(i)))
+            RefUtil.get(RefArrays.stream(BatchedClassifier.topK(signal, 3))
+                .mapToObj(i -> RefString.format("%d (%.1f%%)", i, 100.0 * signal[i]))
                 .reduce((a, b) -> a + ", " + b)));
-        return row;
-      }).filter(x -> null != x).limit(10).forEach(properties -> table.putRow(properties));
+        table.putRow(row);
+      });
       return table;
     });
   }
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.test;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.MatrixUtils;
+import org.apache.commons.math3.linear.QRDecomposition;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import java.util.Random;
+
+public class PCAUtilTest {
+
+  @Test
+  public void subspaceMatchesFullDecomposition() {
+    final int n = 40;
+    final int components = 5;
+    @Nonnull final RealMatrix covariance = covariance(n, 42);
+    @Nonnull final PCAUtil.EigenPairs full = PCAUtil.EigenSolver.Full.solve(covariance, components);
+    @Nonnull final PCAUtil.EigenPairs subspace = PCAUtil.EigenSolver.Subspace.solve(covariance, components);
+    Assertions.assertEquals(components, subspace.values.length);
+    for (int i = 0; i < components; i++) {
+      Assertions.assertEquals(full.values[i], subspace.values[i], 1e-11 * full.values[0], "eigenvalue " + i);
+      double dot = 0;
+      for (int j = 0; j < n; j++) {
+        dot += full.vectors[i][j] * subspace.vectors[i][j];
+      }
+      // Eigenvectors are determined up to sign
+      Assertions.assertEquals(1.0, Math.abs(dot), 1e-8, "eigenvector " + i);
+    }
+  }
+
+  /**
+   * A symmetric positive definite matrix Q diag(2^-i) Q^T with a seeded random orthogonal Q, so the
+   * spectrum is known and well separated.
+   */
+  @Nonnull
+  private static RealMatrix covariance(final int n, final long seed) {
+    @Nonnull final Random random = new Random(seed);
+    @Nonnull final double[][] gaussian = new double[n][n];
+    for (int i = 0; i < n; i++) {
+      for (int j = 0; j < n; j++) {
+        gaussian[i][j] = random.nextGaussian();
+      }
+    }
+    @Nonnull final RealMatrix q = new QRDecomposition(new Array2DRowRealMatrix(gaussian)).getQ();
+    @Nonnull final double[] spectrum = new double[n];
+    for (int i = 0; i < n; i++) {
+      spectrum[i] = Math.pow(2, -i);
+    }
+    return q.multiply(MatrixUtils.createRealDiagonalMatrix(spectrum)).multiply(q.transpose());
+  }
+}
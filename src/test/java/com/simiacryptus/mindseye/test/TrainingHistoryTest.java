@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.test;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import java.io.StringWriter;
+
+public class TrainingHistoryTest {
+
+  @Test
+  public void staysWithinRowLimit() {
+    for (int maxRows = 3; maxRows <= 8; maxRows++) {
+      @Nonnull final TrainingHistory history = new TrainingHistory(1).setMaxRows(maxRows);
+      for (int i = 0; i < 1000; i++) {
+        history.add(i, i, 1.0 / (i + 1));
+        Assertions.assertTrue(history.size() <= maxRows, "maxRows " + maxRows);
+        Assertions.assertEquals(i, history.get(history.size() - 1).iteration);
+      }
+      Assertions.assertEquals(0, history.get(0).iteration);
+    }
+  }
+
+  @Test
+  public void rejectsRowLimitBelowThree() {
+    Assertions.assertThrows(IllegalArgumentException.class, () -> new TrainingHistory().setMaxRows(2));
+  }
+
+  @Test
+  public void sinkReceivesEveryStep() {
+    @Nonnull final StringWriter csv = new StringWriter();
+    @Nonnull final TrainingHistory history = new TrainingHistory().setMaxRows(3).setCsvSink(csv);
+    for (int i = 0; i < 10; i++) {
+      history.add(i, i, 1.0);
+    }
+    // One header line and one line per step
+    Assertions.assertEquals(11, csv.toString().split("\n").length);
+  }
+}